@@ -28,6 +28,8 @@
 package de.mpicbg.ulman.fusion;
 
 import de.mpicbg.ulman.fusion.util.ReusableMemory;
+import de.mpicbg.ulman.fusion.util.LabelBoxTable;
+import de.mpicbg.ulman.fusion.util.OverlapTable;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 
@@ -46,7 +48,6 @@ import de.mpicbg.ulman.fusion.util.loggers.ThreadpoolDiskSavingLogger;
 
 import java.nio.file.InvalidPathException;
 import java.util.Date;
-import java.util.Map;
 import java.util.Vector;
 import java.util.List;
 import java.util.LinkedList;
@@ -67,13 +68,15 @@ import java.nio.file.Paths;
 
 import net.celltrackingchallenge.measures.util.NumberSequenceHandler;
 import de.mpicbg.ulman.fusion.ng.backbones.JobIO;
+import de.mpicbg.ulman.fusion.ng.backbones.JobSessionCache;
 import de.mpicbg.ulman.fusion.util.SegGtImageLoader;
 import de.mpicbg.ulman.fusion.util.DetSegCumulativeScores;
 
 import de.mpicbg.ulman.fusion.ng.backbones.WeightedVotingFusionFeeder;
-import de.mpicbg.ulman.fusion.ng.BIC;
-import de.mpicbg.ulman.fusion.ng.BICenhancedFlat;
-import de.mpicbg.ulman.fusion.ng.BICenhancedWeighted;
+import de.mpicbg.ulman.fusion.ng.AccumulatorPrecision;
+import de.mpicbg.ulman.fusion.ng.BICwithAccumulator;
+import de.mpicbg.ulman.fusion.ng.BICenhancedFlatWithAccumulator;
+import de.mpicbg.ulman.fusion.ng.BICenhancedWeightedWithAccumulator;
 import de.mpicbg.ulman.fusion.ng.SIMPLE;
 
 @Plugin(type = Command.class, menuPath = "Plugins>Annotations Fusing Tools")
@@ -129,6 +132,15 @@ public class Fusers extends CommonGUI implements Command
 		description = "Pixel is merged if there is more-or-equal to this threshold voters supporting it.")
 	private float mergeThreshold=1.0f;
 
+	@Parameter(label = "Votes accumulator precision:",
+			choices = {AccumulatorPrecision.Choices.DEFAULT,
+			           AccumulatorPrecision.Choices.DOUBLE,
+			           AccumulatorPrecision.Choices.FLOAT,
+			           AccumulatorPrecision.Choices.FIXED16,
+			           AccumulatorPrecision.Choices.UINT8},
+		description = "Voxel type in which the votes are summed up, smaller types save memory; not used with the SIMPLE.")
+	private String accumulatorPrecision = AccumulatorPrecision.Choices.DEFAULT;
+
 	@Parameter(label = "Timepoints to be processed (e.g. 1-9,23,25):",
 		description = "Comma separated list of numbers or intervals, interval is number-hyphen-number.",
 		validater = "idxChanged")
@@ -156,6 +168,21 @@ public class Fusers extends CommonGUI implements Command
 	@Parameter
 	boolean saveFusionResults = true;
 
+	@Parameter(label = "Cache label index next to the input images:",
+		description = "Stores per-label boxes of every image into a sidecar file (.lbidx) and reuses them in next runs while the image is unchanged.")
+	boolean useLabelIndexCache = false;
+
+	@Parameter(label = "Export vote counts next to the output images:",
+		description = "Stores per time point the votes of every marker before they are thresholded (into .votes.gz files), VotesThresholder can then threshold them without re-running the fusion.")
+	boolean saveVoteCounts = false;
+
+	@Parameter(label = "Keep images in memory between runs (MB, 0 disables):", min="0",
+		description = "Re-runs of the same job (e.g., with another threshold) then reuse the images, their label index and the matched labels instead of loading and matching them again.")
+	int sessionCacheMB = 0;
+
+	/** shared among the runs of this command within one Fiji session */
+	private static JobSessionCache sessionCache = null;
+
 	//don't set to false unless you are sure you don't need the output folders,
 	//which is to say no output images are created and logs are not stored there too
 	boolean doCreateCmvOutputFolders = true;
@@ -378,27 +405,65 @@ public class Fusers extends CommonGUI implements Command
 		else
 		if (mergeModel.startsWith("BICv2 with Flat"))
 		{
+			final AccumulatorPrecision precision = AccumulatorPrecision.parse(accumulatorPrecision);
 			overAllCombinationsDo(combinations, c -> {
 				final Logger logger = getSubLoggerFrom(log,c);
-				c.feeder = new WeightedVotingFusionFeeder<IT,LT>(logger).setAlgorithm(new BICenhancedFlat<>(logger));
+				c.feeder = new WeightedVotingFusionFeeder<IT,LT>(logger).setAlgorithm(
+						BICenhancedFlatWithAccumulator.create(logger, precision));
 			});
 		}
 		else
 		if (mergeModel.startsWith("BICv2 with Weight"))
 		{
+			final AccumulatorPrecision precision = AccumulatorPrecision.parse(accumulatorPrecision);
 			overAllCombinationsDo(combinations, c -> {
 				final Logger logger = getSubLoggerFrom(log,c);
-				c.feeder = new WeightedVotingFusionFeeder<IT,LT>(logger).setAlgorithm(new BICenhancedWeighted<>(logger));
+				c.feeder = new WeightedVotingFusionFeeder<IT,LT>(logger).setAlgorithm(
+						BICenhancedWeightedWithAccumulator.create(logger, precision));
 			});
 		}
 		else
 		{
+			final AccumulatorPrecision precision = AccumulatorPrecision.parse(accumulatorPrecision);
 			overAllCombinationsDo(combinations, c -> {
 				final Logger logger = getSubLoggerFrom(log,c);
-				c.feeder = new WeightedVotingFusionFeeder<IT,LT>(logger).setAlgorithm(new BIC<>(logger));
+				c.feeder = new WeightedVotingFusionFeeder<IT,LT>(logger).setAlgorithm(
+						BICwithAccumulator.create(logger, precision));
 			});
 		}
 
+		if (useLabelIndexCache)
+			overAllCombinationsDo(combinations, c -> c.feeder.setUseLabelIndexCache(true));
+
+		if (sessionCacheMB > 0 && !doCMV)
+		{
+			final long budget = (long)sessionCacheMB << 20;
+			synchronized (Fusers.class)
+			{
+				if (sessionCache == null) sessionCache = new JobSessionCache(budget);
+				else sessionCache.setMemoryBudget(budget);
+			}
+			overAllCombinationsDo(combinations, c -> c.feeder.setSessionCache(sessionCache));
+		}
+		else if (sessionCache != null)
+		{
+			//NB: free the memory when the user has disabled the cache
+			sessionCache.clear();
+			sessionCache = null;
+		}
+
+		if (saveVoteCounts)
+		{
+			if (doCMV || mergeModel.startsWith("SIMPLE"))
+				log.warn("Vote counts are exported only for the non-CMV runs of the threshold-based models, skipping it.");
+			else
+				overAllCombinationsDo(combinations, c -> c.feeder.setRecordVoteCounts(true));
+		}
+
+		//NB: CMV processes the combinations concurrently, the threads are busy then
+		if (!doCMV && noOfThreads > 1)
+			overAllCombinationsDo(combinations, c -> c.feeder.setCollisionsThreadsCount(noOfThreads));
+
 		// ------------ action per time point ------------
 		final SegGtImageLoader<LT> SEGevaluator;
 		try {
@@ -421,6 +486,7 @@ public class Fusers extends CommonGUI implements Command
 				job.reportJobForTime(time,log);
 				feeder.processJob(job,time, noOfThreads);
 				if (saveFusionResults) feeder.saveJob(job,time);
+				if (saveVoteCounts && !mergeModel.startsWith("SIMPLE")) feeder.saveVoteCounts(job,time);
 				//
 				if (SEGevaluator != null && SEGevaluator.managedToLoadImageForTimepoint(time))
 				{
@@ -705,21 +771,32 @@ public class Fusers extends CommonGUI implements Command
 				feeder.inWeights = new Vector<>(size);
 				for (int i = 0; i < size; ++i) feeder.inWeights.add(null);
 
-				Vector<Map<Double,long[]>> boxes = new Vector<>(size);
+				Vector<LabelBoxTable> boxes = new Vector<>(size);
 				for (int i = 0; i < size; ++i) boxes.add(null);
 				feeder.setInBoxes(boxes);
 			}
 
-			Vector<Map<Double,long[]>> refBoxes = refLoadedImages.getInBoxes();
-			Vector<Map<Double,long[]>>  myBoxes = feeder.getInBoxes();
+			Vector<LabelBoxTable> refBoxes = refLoadedImages.getInBoxes();
+			Vector<LabelBoxTable>  myBoxes = feeder.getInBoxes();
 			for (int i = 0; i < relevantInputIndices.size(); ++i)
 			{
 				feeder.inImgs.set(i, refLoadedImages.inImgs.get( relevantInputIndices.get(i) ));
 				feeder.inWeights.set(i, refLoadedImages.inWeights.get( relevantInputIndices.get(i) ));
 				myBoxes.set(i, refBoxes.get( relevantInputIndices.get(i) ));
 			}
+
+			//NB: overlaps of the markers with the inputs are computed only once per time point
+			Vector<OverlapTable> refOverlaps = refLoadedImages.getInOverlaps();
+			if (refOverlaps != null)
+			{
+				Vector<OverlapTable> myOverlaps = new Vector<>(relevantInputIndices.size());
+				for (int idx : relevantInputIndices) myOverlaps.add( refOverlaps.get(idx) );
+				feeder.setInOverlaps(myOverlaps);
+			}
+			else feeder.setInOverlaps(null);
 			feeder.markerImg = refLoadedImages.markerImg;
 			feeder.setMarkerBoxes( refLoadedImages.getMarkerBoxes() );
+			feeder.setMarkerVoxels( refLoadedImages.getMarkerVoxels() );
 		}
 
 		@Override
@@ -831,10 +908,20 @@ public class Fusers extends CommonGUI implements Command
 		myself.mergeModel="BICv2 with FlatVoting, SingleMaskFailSafe and CollisionResolver";
 		myself.mergeModelChanged();
 
+		//the optional "--accumulator=PRECISION" and "--export-votes" can be given anywhere
+		final List<String> posArgs = new ArrayList<>(args.length);
+		for (String arg : args)
+		{
+			if (arg.startsWith("--accumulator=")) myself.accumulatorPrecision = arg.substring(14);
+			else if (arg.equals("--export-votes")) myself.saveVoteCounts = true;
+			else posArgs.add(arg);
+		}
+		args = posArgs.toArray(new String[0]);
+
 		if (args.length != 5 && args.length != 6 && args.length != 7)
 		{
 			System.out.println("In this regime, it is always using the \"BICv2 with FlatVoting, SingleMaskFailSafe and CollisionResolver\"");
-			System.out.println("Usage: pathToJobFile threshold pathToOutputImages timePointsRangeSpecification numberOfThreads [CMV] [SEGfolder]\n");
+			System.out.println("Usage: pathToJobFile threshold pathToOutputImages timePointsRangeSpecification numberOfThreads [CMV] [SEGfolder] [--accumulator=PRECISION] [--export-votes]\n");
 			System.out.println(myself.fileInfoA);
 			System.out.println(myself.fileInfoB);
 			System.out.println(myself.fileInfoC);
@@ -848,6 +935,10 @@ public class Fusers extends CommonGUI implements Command
 			System.out.println("  - enables SEG scoring of individual and overall time points,");
 			System.out.println("  - disables saving of the output images (because one likely wants");
 			System.out.println("    to run again for the full timelapse using the best combination).");
+			System.out.println("The --accumulator is optional param that chooses the voxel type for summing up the votes:");
+			for (String p : AccumulatorPrecision.choices()) System.out.println("  - "+p);
+			System.out.println("The --export-votes is optional param that saves the votes of every marker (before");
+			System.out.println("  thresholding) next to every output image, see the VotesThresholder tool.");
 			return;
 		}
 
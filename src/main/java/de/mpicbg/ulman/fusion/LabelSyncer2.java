@@ -35,7 +35,9 @@ import org.scijava.plugin.Plugin;
 import org.scijava.plugin.Parameter;
 import org.scijava.widget.FileWidget;
 
-import de.mpicbg.ulman.fusion.ng.LabelSync2;
+import de.mpicbg.ulman.fusion.ng.AccumulatorPrecision;
+import de.mpicbg.ulman.fusion.ng.LabelSync2WithAccumulator;
+import de.mpicbg.ulman.fusion.ng.backbones.WeightedVotingFusionAlgorithm;
 import ij.ImagePlus;
 import ij.io.Opener;
 import net.imglib2.RandomAccessibleInterval;
@@ -64,6 +66,15 @@ public class LabelSyncer2 implements Command
 	@Parameter(label="Output folder:", style = FileWidget.DIRECTORY_STYLE)
 	public File outputFolderPath;
 
+	@Parameter(label = "Votes accumulator precision:",
+			choices = {AccumulatorPrecision.Choices.DEFAULT,
+			           AccumulatorPrecision.Choices.DOUBLE,
+			           AccumulatorPrecision.Choices.FLOAT,
+			           AccumulatorPrecision.Choices.FIXED16,
+			           AccumulatorPrecision.Choices.UINT8},
+		description = "Voxel type in which the votes are summed up, smaller types save memory.")
+	public String accumulatorPrecision = AccumulatorPrecision.Choices.DEFAULT;
+
 	@Parameter
 	LogService logService;
 
@@ -74,6 +85,7 @@ public class LabelSyncer2 implements Command
 		w.pathToFolderWithResultsFromOneUser = pathToFolderWithResultsFromOneUser.getAbsolutePath();
 		w.pathToFolderWithTRAmarkers = pathToFolderWithTRAmarkers.getAbsolutePath();
 		w.outputFolderPath = outputFolderPath.getAbsolutePath();
+		w.accumulatorPrecision = AccumulatorPrecision.parse(accumulatorPrecision);
 		w.processImages();
 	}
 
@@ -81,9 +93,11 @@ public class LabelSyncer2 implements Command
 	public static void main(String[] args)
 	{
 		//check parameters first
-		if (args.length != 3)
+		if (args.length != 3 && args.length != 4)
 		{
-			System.out.println("I expect three params: pathToFolderWithResultsFromOneUser pathToFolderWithTRAmarkers outputFolderPath");
+			System.out.println("I expect three params: pathToFolderWithResultsFromOneUser pathToFolderWithTRAmarkers outputFolderPath [accumulatorPrecision]");
+			System.out.println("The optional accumulatorPrecision chooses the voxel type for summing up the votes:");
+			for (String p : AccumulatorPrecision.choices()) System.out.println("  - "+p);
 			return;
 		}
 
@@ -91,6 +105,7 @@ public class LabelSyncer2 implements Command
 		w.pathToFolderWithResultsFromOneUser = args[0];
 		w.pathToFolderWithTRAmarkers = args[1];
 		w.outputFolderPath = args[2];
+		if (args.length == 4) w.accumulatorPrecision = AccumulatorPrecision.parse(args[3]);
 		w.processImages();
 	}
 
@@ -109,6 +124,7 @@ public class LabelSyncer2 implements Command
 		String pathToFolderWithResultsFromOneUser;
 		String pathToFolderWithTRAmarkers;
 		String outputFolderPath;
+		AccumulatorPrecision accumulatorPrecision = AccumulatorPrecision.DEFAULT;
 
 		// ================= handling filenames =================
 		Set<String> listAllResultMaskFilesInFolder(String dir)
@@ -177,7 +193,7 @@ public class LabelSyncer2 implements Command
 		{
 			//prepare the syncing code
 			final SimpleConsoleLogger myLog = new SimpleConsoleLogger();
-			final LabelSync2<T,T> labelSync = new LabelSync2<>(myLog);
+			final WeightedVotingFusionAlgorithm<T,T> labelSync = LabelSync2WithAccumulator.create(myLog, accumulatorPrecision);
 
 			//prepare the syncing containers
 			Vector<Double> weights = new Vector<>(1);
@@ -225,7 +225,7 @@ public class Picker extends CommonGUI implements Command
 		// ------------ preparing for action ------------
 		ReusableMemory.setLogger(log);
 		final WeightedVotingFusionFeeder<IT,LT> feeder
-				= new WeightedVotingFusionFeeder<IT,LT>(log).setAlgorithm(new CherryPicker<>(log, SEGloaderAndEvaluator));
+				= new WeightedVotingFusionFeeder<IT,LT>(log).setAlgorithm(new CherryPicker<IT,LT>(log, SEGloaderAndEvaluator).setThreadsCount(noOfThreads));
 				//= new WeightedVotingFusionFeeder<IT,LT>(log).setAlgorithm(new CherryPickerOfSourceIDs<>(log, SEGloaderAndEvaluator));
 
 		final DetSegCumulativeScores runningDetSegScore = new DetSegCumulativeScores();
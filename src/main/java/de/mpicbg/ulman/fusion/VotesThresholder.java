@@ -0,0 +1,105 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.fusion;
+
+import de.mpicbg.ulman.fusion.util.VoteCountRecords;
+import net.celltrackingchallenge.measures.util.NumberSequenceHandler;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import sc.fiji.simplifiedio.SimplifiedIO;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.TreeSet;
+
+/**
+ * Companion tool to the Fusers' export of vote counts: it thresholds the
+ * saved votes (see {@link VoteCountRecords}) into label images, without
+ * loading the inputs or matching them against the markers again. It is
+ * meant for tuning the threshold; the fail-safe insertions, collision
+ * resolution and post-processing of the full fusion are not re-done.
+ */
+public class VotesThresholder
+{
+	public static
+	void thresholdOneFile(final String votesFile, final double threshold, final String outFile)
+	throws IOException
+	{
+		final VoteCountRecords votes = VoteCountRecords.load(votesFile);
+		final long[] min = new long[votes.numDimensions()];
+		final long[] dims = new long[votes.numDimensions()];
+		votes.min(min);
+		votes.dimensions(dims);
+
+		final ArrayImg<UnsignedShortType,?> outImg = ArrayImgs.unsignedShorts(dims);
+		final long collisions = votes.threshold(threshold, Views.translate(outImg, min));
+
+		System.out.println("Thresholded "+votes.size()+" markers from "+votesFile
+				+" at "+threshold+" ("+collisions+" voxels in collision) into "+outFile);
+		SimplifiedIO.saveImage(outImg, outFile);
+	}
+
+	public static
+	void main(String[] args)
+	{
+		if (args.length != 3 && args.length != 4)
+		{
+			System.out.println("Usage: pathToVotes threshold pathToOutputImage [timePointsRangeSpecification]\n");
+			System.out.println("The pathToVotes is a file saved with Fusers' --export-votes, typically the output");
+			System.out.println("image filename with .votes.gz extension. The threshold is in the same units as");
+			System.out.println("the Fusers' threshold.");
+			System.out.println("If timePointsRangeSpecification is given, e.g., 1-9,23,25, both paths are filename");
+			System.out.println("patterns that include TTT or TTTT where numbers should be substituted.");
+			return;
+		}
+
+		final double threshold = Double.parseDouble(args[1]);
+		try {
+			if (args.length == 3)
+			{
+				thresholdOneFile(args[0], threshold, args[2]);
+				return;
+			}
+
+			final TreeSet<Integer> fileIdxList = new TreeSet<>();
+			NumberSequenceHandler.parseSequenceOfNumbers(args[3],fileIdxList);
+			for (int time : fileIdxList)
+				thresholdOneFile(
+						JobSpecification.expandFilenamePattern(args[0],time), threshold,
+						JobSpecification.expandFilenamePattern(args[2],time) );
+		}
+		catch (ParseException e) {
+			System.out.println("Error parsing time points: "+e.getMessage());
+		}
+		catch (IOException e) {
+			System.out.println("Error reading votes: "+e.getMessage());
+		}
+	}
+}
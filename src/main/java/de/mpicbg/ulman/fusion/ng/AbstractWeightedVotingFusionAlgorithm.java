@@ -28,6 +28,7 @@
 package de.mpicbg.ulman.fusion.ng;
 
 import de.mpicbg.ulman.fusion.ng.postprocess.KeepLargestCCALabelPostprocessor;
+import de.mpicbg.ulman.fusion.util.MarkerTable;
 import de.mpicbg.ulman.fusion.util.ReusableMemory;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
@@ -48,8 +49,10 @@ import de.mpicbg.ulman.fusion.ng.backbones.WeightedVotingFusionAlgorithm;
 import de.mpicbg.ulman.fusion.ng.extract.LabelExtractor;
 import de.mpicbg.ulman.fusion.ng.extract.MajorityOverlapBasedLabelExtractor;
 import de.mpicbg.ulman.fusion.ng.fuse.LabelFuser;
+import de.mpicbg.ulman.fusion.ng.fuse.WeightedVotingLabelFuser;
 import de.mpicbg.ulman.fusion.ng.insert.LabelInsertor;
 import de.mpicbg.ulman.fusion.ng.insert.CollisionsAwareLabelInsertor;
+import de.mpicbg.ulman.fusion.ng.insert.CollisionsManagingLabelInsertor;
 import de.mpicbg.ulman.fusion.ng.postprocess.LabelPostprocessor;
 
 /**
@@ -129,23 +132,84 @@ implements WeightedVotingFusionAlgorithm<IT,LT>
 	LabelPostprocessor<LT> labelCleaner = null;
 
 
+	/**
+	 * Sets up the components of the voting algorithms: the labels are matched
+	 * by the majority overlap with the markers, and are fused with the given
+	 * 'fuser', which is given the current threshold if isThresholdPassedToFuser().
+	 */
+	protected
+	void setVotingFusionComponents(final WeightedVotingLabelFuser<IT,ET> fuser,
+	                               final CollisionsAwareLabelInsertor<LT,ET> insertor,
+	                               final LabelPostprocessor<LT> cleaner)
+	{
+		final MajorityOverlapBasedLabelExtractor<IT,LT,ET> e = new MajorityOverlapBasedLabelExtractor<>();
+		e.minFractionOfMarker = 0.5f;
+
+		if (isThresholdPassedToFuser()) fuser.minAcceptableWeight = this.threshold;
+
+		this.labelExtractor = e;
+		this.labelFuser     = fuser;
+		this.labelInsertor  = insertor;
+		this.labelCleaner   = cleaner;
+	}
+
+
 	protected Vector<Double> inWeights;
 	protected double threshold;
 
+	/**
+	 * The weights are also propagated inside this.labelFuser (if it does the weighted
+	 * voting), together with their scale from weightsScaleFor().
+	 */
 	@Override
 	public
 	void setWeights(final Vector<Double> weights)
 	{
 		inWeights = weights;
+		if (labelFuser instanceof WeightedVotingLabelFuser)
+			((WeightedVotingLabelFuser<IT,ET>)labelFuser).weightsScale = weightsScaleFor(weights);
 	}
 
+	/**
+	 * Any change in the voting threshold is also propagated inside
+	 * this.labelFuser (if it does the weighted voting), unless
+	 * isThresholdPassedToFuser() says otherwise.
+	 */
 	@Override
 	public
 	void setThreshold(final double minSumOfWeights)
 	{
 		threshold = minSumOfWeights;
+		if (isThresholdPassedToFuser() && labelFuser instanceof WeightedVotingLabelFuser)
+			((WeightedVotingLabelFuser<IT,ET>)labelFuser).minAcceptableWeight = this.threshold;
 	}
 
+	/** Returns the multiplier of the 'weights' for this.labelFuser, by default
+	    such that the weights fit into the ET (as fixed-point numbers). */
+	protected
+	double weightsScaleFor(final Vector<Double> weights)
+	{
+		return AccumulatorPrecision.fixedPointScale(referenceType, weights, log);
+	}
+
+	/** Returns whether this.labelFuser thresholds with the threshold from setThreshold(),
+	    algorithms whose fuser uses its own fixed threshold override it. */
+	protected
+	boolean isThresholdPassedToFuser()
+	{
+		return true;
+	}
+
+
+
+	/** sets how many threads resolve the collisions of the inserted labels,
+	    it has an effect only with the CollisionsManagingLabelInsertor */
+	public
+	void setCollisionsThreadsCount(final int threadsCount)
+	{
+		if (labelInsertor instanceof CollisionsManagingLabelInsertor)
+			((CollisionsManagingLabelInsertor<LT,ET>)labelInsertor).setThreadsCount(threadsCount);
+	}
 
 
 	/// Flag the "operational mode" regarding labels touching image boundary
@@ -317,8 +381,7 @@ implements WeightedVotingFusionAlgorithm<IT,LT>
 				else
 				{
 					insStatus.clear();
-					labelInsertor.mCollidingVolume.put(curMarker,0L);
-					labelInsertor.mNoCollidingVolume.put(curMarker,0L);
+					labelInsertor.markers.setVolumes(curMarker,0L,0L);
 				}
 
 				//some per marker report:
@@ -333,18 +396,18 @@ implements WeightedVotingFusionAlgorithm<IT,LT>
 				//found, not found, in collision, at border
 				if (!insStatus.foundAtAll)
 				{
-					labelInsertor.mNoMatches.add(curMarker);
+					labelInsertor.markers.setFlag(curMarker,MarkerTable.NO_MATCHES);
 					log.info(markerReport+" , not included because not matched in results");
 				}
 				else
 				{
 					if (removeMarkersAtBoundary & insStatus.atBorder)
 					{
-						labelInsertor.mBordering.add(curMarker);
+						labelInsertor.markers.setFlag(curMarker,MarkerTable.BORDERING);
 						log.info(markerReport+" , detected to be at boundary");
 					}
 					else if (insStatus.inCollision)
-						//NB: labelInsertor.mColliding.add() must be done after all markers are processed
+						//NB: flagging with MarkerTable.COLLIDING must be done after all markers are processed
 						log.info(markerReport+" , detected to be in collision");
 					else
 						log.info(markerReport+" , secured for now");
@@ -407,13 +470,15 @@ implements WeightedVotingFusionAlgorithm<IT,LT>
 
 		//report details of colliding markers:
 		log.info("reporting colliding markers:");
-		for (final int marker : labelInsertor.mCollidingVolume.keySet())
+		final MarkerTable markers = labelInsertor.markers;
+		for (int idx = 0; idx < markers.size(); ++idx)
 		{
-			float collRatio = (float) labelInsertor.mCollidingVolume.get(marker);
-			collRatio /= (float) (labelInsertor.mNoCollidingVolume.get(marker) + labelInsertor.mCollidingVolume.get(marker));
+			if (!markers.hasVolumesAt(idx)) continue;
+			float collRatio = (float) markers.collidingVolumeAt(idx);
+			collRatio /= (float) (markers.noCollidingVolumeAt(idx) + markers.collidingVolumeAt(idx));
 			if (collRatio > 0.f)
-				log.info("marker: " + marker + ": colliding " + labelInsertor.mCollidingVolume.get(marker)
-						+ " and non-colliding " + labelInsertor.mNoCollidingVolume.get(marker)
+				log.info("marker: " + markers.labelAt(idx) + ": colliding " + markers.collidingVolumeAt(idx)
+						+ " and non-colliding " + markers.noCollidingVolumeAt(idx)
 						+ " voxels ( " + collRatio + " ) "
 						+ (collRatio > removeMarkersCollisionThreshold ? "too much" : "acceptable"));
 		}
@@ -426,17 +491,17 @@ implements WeightedVotingFusionAlgorithm<IT,LT>
 		                  +collHistogram[10]+" times");
 
 		//also some per image report:
-		final int okMarkers = allMarkers - labelInsertor.mNoMatches.size() - labelInsertor.mBordering.size() - labelInsertor.mColliding.size();
-		log.info("not found markers    = "+labelInsertor.mNoMatches.size()
-			+" = "+ 100.0f*(float)labelInsertor.mNoMatches.size()/(float)allMarkers +" %");
-		log.info("markers at boundary  = "+labelInsertor.mBordering.size()
-			+" = "+ 100.0f*(float)labelInsertor.mBordering.size()/(float)allMarkers +" %");
-		log.info("markers in collision = "+labelInsertor.mColliding.size()
-			+" = "+ 100.0f*(float)labelInsertor.mColliding.size()/(float)allMarkers +" %");
+		final int okMarkers = allMarkers - markers.countOf(MarkerTable.NO_MATCHES) - markers.countOf(MarkerTable.BORDERING) - markers.countOf(MarkerTable.COLLIDING);
+		log.info("not found markers    = "+markers.countOf(MarkerTable.NO_MATCHES)
+			+" = "+ 100.0f*(float)markers.countOf(MarkerTable.NO_MATCHES)/(float)allMarkers +" %");
+		log.info("markers at boundary  = "+markers.countOf(MarkerTable.BORDERING)
+			+" = "+ 100.0f*(float)markers.countOf(MarkerTable.BORDERING)/(float)allMarkers +" %");
+		log.info("markers in collision = "+markers.countOf(MarkerTable.COLLIDING)
+			+" = "+ 100.0f*(float)markers.countOf(MarkerTable.COLLIDING)/(float)allMarkers +" %");
 		log.info("secured markers      = "+okMarkers
 			+" = "+ 100.0f*(float)okMarkers/(float)allMarkers +" %");
 
-		if (insertTRAforCollidingOrMissingMarkers && (labelInsertor.mColliding.size() > 0 || labelInsertor.mNoMatches.size() > 0))
+		if (insertTRAforCollidingOrMissingMarkers && (markers.countOf(MarkerTable.COLLIDING) > 0 || markers.countOf(MarkerTable.NO_MATCHES) > 0))
 		{
 			//sweep the output image and add missing TRA markers
 			//
@@ -446,7 +511,7 @@ implements WeightedVotingFusionAlgorithm<IT,LT>
 				(o,m) -> {
 					final int outLabel = o.getInteger();
 					final int traLabel = m.getInteger();
-					if (outLabel == 0 && (labelInsertor.mColliding.contains(traLabel) || labelInsertor.mNoMatches.contains(traLabel)))
+					if (outLabel == 0 && (markers.hasAnyFlag(traLabel,MarkerTable.COLLIDING|MarkerTable.NO_MATCHES)))
 						o.setInteger(traLabel);
 				} );
 		}
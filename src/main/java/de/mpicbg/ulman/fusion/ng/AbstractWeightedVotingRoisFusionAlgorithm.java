@@ -27,9 +27,18 @@
  */
 package de.mpicbg.ulman.fusion.ng;
 
+import de.mpicbg.ulman.fusion.ng.extract.MajorityOverlapBasedLabelExtractor;
+import de.mpicbg.ulman.fusion.ng.fuse.WeightedVotingLabelFuser;
 import de.mpicbg.ulman.fusion.ng.insert.LabelInsertor;
 import de.mpicbg.ulman.fusion.ng.postprocess.KeepLargestCCALabelPostprocessor;
+import de.mpicbg.ulman.fusion.util.LabelBoxGrid;
+import de.mpicbg.ulman.fusion.util.LabelBoxTable;
+import de.mpicbg.ulman.fusion.util.LabelVoxelLists;
+import de.mpicbg.ulman.fusion.util.MarkerMatches;
+import de.mpicbg.ulman.fusion.util.MarkerTable;
+import de.mpicbg.ulman.fusion.util.OverlapTable;
 import de.mpicbg.ulman.fusion.util.ReusableMemory;
+import de.mpicbg.ulman.fusion.util.VoteCountRecords;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
@@ -50,8 +59,11 @@ import java.util.HashMap;
 import java.util.Vector;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.concurrent.Callable;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public abstract
 class AbstractWeightedVotingRoisFusionAlgorithm<IT extends RealType<IT>, LT extends IntegerType<LT>, ET extends RealType<ET>>
@@ -62,26 +74,62 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 	}
 
 	//per image, per label, AABB as 2*imgDim-long-array
-	public Vector<Map<Double,long[]>> inBoxes;
-	public Map<Double,long[]> markerBoxes;
+	public Vector<LabelBoxTable> inBoxes;
+	public LabelBoxTable markerBoxes;
+
+	//per marker (indexed as in markerBoxes), its voxels as flat offsets into the marker image,
+	//if not available (null), markers are matched by sweeping over their whole boxes
+	public LabelVoxelLists markerVoxels;
+
+	//per input image, overlaps of its labels with the markers (rows indexed as in markerBoxes),
+	//if not available (null), markers are matched by visiting the input images
+	public Vector<OverlapTable> inOverlaps;
+
+	//per input image, spatial index over its boxes (in inBoxes), used to skip the matching
+	//of markers that no input label reaches into (if the inOverlaps are not available),
+	//the indices are dropped at the beginning of every fuse() and built only when first
+	//queried, see getInBoxGrid()
+	private Vector<LabelBoxGrid> inBoxGrids;
+	private Interval boxGridsDomain;
+
+	//if not null, every fuse() fills it with the votes of the fused markers (before they are thresholded),
+	//which works only with the weighted voting fusers
+	public VoteCountRecords voteCounts;
+
+	//if not null, every fuse() remembers here the labels matched to the markers, and reuses them
+	//in the next fuse() if the inputs and markers (and the boxes) are the same, see matchingSignature()
+	public MarkerMatches markerMatches;
+
+	/**
+	 * Describes the settings of the labelExtractor, on which the matched labels
+	 * depend (besides the images), or returns null if the matches must not be
+	 * reused, e.g., because the extractor has side effects.
+	 */
+	protected
+	String matchingSignature()
+	{
+		if (labelExtractor == null || labelExtractor.getClass() != MajorityOverlapBasedLabelExtractor.class) return null;
+		return "majority:"+((MajorityOverlapBasedLabelExtractor<IT,LT,ET>)labelExtractor).minFractionOfMarker;
+	}
 
 	public
 	void setupBoxes(final Vector<RandomAccessibleInterval<IT>> inImgs,
 	                final RandomAccessibleInterval<LT> markerImg)
 	{
-		setupBoxes(inImgs);
-		markerBoxes = findBoxes(markerImg,log,"marker");
+		markerVoxels = createVoxelListsFor(markerImg);
+		inOverlaps = createOverlapTables(inImgs.size());
+		final Vector<LabelBoxTable> boxes = findBoxes(inImgs,markerImg,markerVoxels,inOverlaps,log);
+		markerBoxes = boxes.remove(inImgs.size());
+		inBoxes = boxes;
+		markerVoxels.trimToSize();
+		//NB: the overlaps are not available if the images had to be scanned one by one
+		if (inOverlaps.size() != inImgs.size()) inOverlaps = null;
 	}
 
 	public
 	void setupBoxes(final Vector<RandomAccessibleInterval<IT>> inImgs)
 	{
-		inBoxes = new Vector<>(inImgs.size());
-		int cnt=0;
-		for (RandomAccessibleInterval<IT> inImg : inImgs)
-		{
-			inBoxes.add( findBoxes(inImg,log,""+(++cnt)+".") );
-		}
+		inBoxes = findBoxes(inImgs,null,log);
 	}
 
 	public
@@ -90,28 +138,91 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 	                final ExecutorService workerThreads)
 			throws InterruptedException
 	{
-		inBoxes = new Vector<>(inImgs.size());
+		markerVoxels = createVoxelListsFor(markerImg);
+		inOverlaps = createOverlapTables(inImgs.size());
+		final Vector<LabelBoxTable> boxes = findBoxes(inImgs,markerImg,markerVoxels,inOverlaps,log,workerThreads);
+		markerBoxes = boxes.remove(inImgs.size());
+		inBoxes = boxes;
+		markerVoxels.trimToSize();
+		//NB: the overlaps are not available if the images had to be scanned one by one
+		if (inOverlaps.size() != inImgs.size()) inOverlaps = null;
+	}
+
+	/** creates empty voxel lists for the geometry of the 'img' */
+	static public
+	LabelVoxelLists createVoxelListsFor(final Interval img)
+	{
+		final long[] min = new long[img.numDimensions()];
+		final long[] size = new long[img.numDimensions()];
+		img.min(min);
+		img.dimensions(size);
+		return new LabelVoxelLists(min,size);
+	}
+
+	/** creates a vector of 'noOfInputs' empty overlap tables */
+	static public
+	Vector<OverlapTable> createOverlapTables(final int noOfInputs)
+	{
+		final Vector<OverlapTable> tables = new Vector<>(noOfInputs);
+		for (int i = 0; i < noOfInputs; ++i) tables.add( new OverlapTable() );
+		return tables;
+	}
+
+	/** builds the spatial index over the 'boxes', the index spans over the 'img' */
+	static public
+	LabelBoxGrid createBoxGrid(final LabelBoxTable boxes, final Interval img)
+	{
+		final long[] min = new long[img.numDimensions()];
+		final long[] max = new long[img.numDimensions()];
+		img.min(min);
+		img.max(max);
+		return new LabelBoxGrid(boxes,min,max);
+	}
+
+	/**
+	 * Drops the spatial indices over the inBoxes, which are built
+	 * again (spanning over the 'img') only when queried next time.
+	 */
+	public
+	void resetBoxGrids(final Interval img)
+	{
+		inBoxGrids = null;
+		boxGridsDomain = img;
+	}
 
-		List<Callable<Object>> tasks = new ArrayList<>(inImgs.size()+1);
-		for (int i = 0; i < inImgs.size(); ++i) {
-			inBoxes.add(null);
-			final int idx = i;
-			tasks.add( () -> inBoxes.set( idx, findBoxes(inImgs.get(idx),log,""+idx+".") ) );
+	/** returns the spatial index over the boxes of the 'imgIdx'-th input image, builds it if needed */
+	public
+	LabelBoxGrid getInBoxGrid(final int imgIdx)
+	{
+		if (inBoxGrids == null)
+		{
+			inBoxGrids = new Vector<>(inBoxes.size());
+			inBoxGrids.setSize(inBoxes.size());
 		}
-		tasks.add( () -> markerBoxes = findBoxes(markerImg,log,"marker") );
+		if (inBoxGrids.get(imgIdx) == null)
+			inBoxGrids.set(imgIdx, createBoxGrid(inBoxes.get(imgIdx),boxGridsDomain));
+		return inBoxGrids.get(imgIdx);
+	}
 
-		workerThreads.invokeAll(tasks);
+	/**
+	 * Returns the number of labels from the 'imgIdx'-th input image whose boxes
+	 * intersect the 'box', the labels are then available via getInBoxGrid(imgIdx).hitAt().
+	 */
+	public
+	int findLabelsIntersecting(final int imgIdx, final long[] box)
+	{
+		return getInBoxGrid(imgIdx).findIntersecting(box);
 	}
 
 	static public <T extends RealType<T>>
-	Map<Double,long[]> findBoxes(final RandomAccessibleInterval<T> inImg,
+	LabelBoxTable findBoxes(final RandomAccessibleInterval<T> inImg,
 			final Logger log, final String imgNickName)
 	{
 		//aux variables for re-using
 		final int numDimensions = inImg.numDimensions();
 		final long[] pos = new long[numDimensions];
 
-		final Map<Double,long[]> boxes = new HashMap<>(3000);
+		final LabelBoxTable boxes = new LabelBoxTable(numDimensions);
 		log.info("pre-calculating ROIs (boxes) for "+imgNickName+" image");
 
 		final Cursor<T> mCursor = Views.flatIterable(inImg).localizingCursor();
@@ -121,30 +232,337 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 			if (label > 0)
 			{
 				mCursor.localize(pos);
+				boxes.extendBox((int)label,pos);
+			}
+		}
 
-				long[] box = boxes.getOrDefault(label,null);
-				if (box == null)
-				{
-					box = new long[2*numDimensions];
-					boxes.put(label,box);
+		log.trace("done pre-calculating ROIs (boxes) for "+imgNickName+" image");
+		return boxes;
+	}
+
+	/**
+	 * Pre-calculates the per-label AABBs of all given images in one synchronized
+	 * sweep, that is, every voxel position is visited only once and all images
+	 * are read "in parallel" at that position. All images shall span over the same
+	 * interval, if some does not, the images are scanned one by one instead, see
+	 * findBoxesOneByOne(). The returned vector lists boxes of the input images in the order
+	 * of the 'inImgs', the boxes of the 'markerImg' are appended at the end of the
+	 * vector unless the 'markerImg' is null.
+	 */
+	static public <T extends RealType<T>, M extends RealType<M>>
+	Vector<LabelBoxTable> findBoxes(final List<RandomAccessibleInterval<T>> inImgs,
+			final RandomAccessibleInterval<M> markerImg,
+			final Logger log)
+	{
+		return findBoxes(inImgs,markerImg,null,null,log);
+	}
+
+	/**
+	 * The same as findBoxes(List,RandomAccessibleInterval,Logger) but also fills the
+	 * 'markerVoxels' (if not null) with the voxels of every marker, and the 'inOverlaps'
+	 * (if not null) with the overlaps of every marker with the labels of every input image;
+	 * the lists and the table rows are indexed the same as the markers in the returned
+	 * marker boxes. The 'markerVoxels' shall be empty and created for the geometry of the
+	 * 'markerImg', the 'inOverlaps' shall hold an empty table for every input image.
+	 */
+	static public <T extends RealType<T>, M extends RealType<M>>
+	Vector<LabelBoxTable> findBoxes(final List<RandomAccessibleInterval<T>> inImgs,
+			final RandomAccessibleInterval<M> markerImg,
+			final LabelVoxelLists markerVoxels,
+			final List<OverlapTable> inOverlaps,
+			final Logger log)
+	{
+		final int noOfInputs = inImgs.size();
+		if (noOfInputs == 0 && markerImg == null) return new Vector<>(1);
+
+		if (!isJointSweepPossible(inImgs,markerImg,log))
+			return findBoxesOneByOne(inImgs,markerImg,markerVoxels,inOverlaps,log);
+
+		log.info("pre-calculating ROIs (boxes) for "+noOfInputs+" input"
+				+ (markerImg != null ? " and marker" : "") +" images in one sweep");
+		final Vector<LabelBoxTable> boxes = scanBoxes(inImgs,markerImg,markerVoxels,inOverlaps);
+		log.trace("done pre-calculating ROIs (boxes) in one sweep");
+		return boxes;
+	}
+
+	/**
+	 * The same as findBoxes(List,RandomAccessibleInterval,Logger) except that the images
+	 * are split along their last dimension (z-planes in 3D, rows in 2D) into slabs, the
+	 * slabs are scanned concurrently on the 'workers', and the partial boxes are merged
+	 * as soon as they are available. Since the slabs are merged in the order of the slabs, the result,
+	 * including the order of the labels, is identical to the one of the serial sweep.
+	 */
+	static public <T extends RealType<T>, M extends RealType<M>>
+	Vector<LabelBoxTable> findBoxes(final List<RandomAccessibleInterval<T>> inImgs,
+			final RandomAccessibleInterval<M> markerImg,
+			final Logger log,
+			final ExecutorService workers)
+			throws InterruptedException
+	{
+		return findBoxes(inImgs,markerImg,null,null,log,workers);
+	}
 
-					for (int n = 0; n < numDimensions; ++n) {
-						box[n] = pos[n];
-						box[n+numDimensions] = pos[n];
+	/**
+	 * The same as findBoxes(List,RandomAccessibleInterval,Logger,ExecutorService) but also
+	 * fills the 'markerVoxels' and 'inOverlaps', see findBoxes(List,RandomAccessibleInterval,
+	 * LabelVoxelLists,List,Logger).
+	 */
+	static public <T extends RealType<T>, M extends RealType<M>>
+	Vector<LabelBoxTable> findBoxes(final List<RandomAccessibleInterval<T>> inImgs,
+			final RandomAccessibleInterval<M> markerImg,
+			final LabelVoxelLists markerVoxels,
+			final List<OverlapTable> inOverlaps,
+			final Logger log,
+			final ExecutorService workers)
+			throws InterruptedException
+	{
+		final int noOfInputs = inImgs.size();
+		if (noOfInputs == 0 && markerImg == null) return new Vector<>(1);
+
+		if (!isJointSweepPossible(inImgs,markerImg,log))
+			return findBoxesOneByOne(inImgs,markerImg,markerVoxels,inOverlaps,log);
+
+		final RandomAccessibleInterval<?> refImg = noOfInputs > 0 ? inImgs.get(0) : markerImg;
+
+		//NB: about one slab per core, more slabs would only multiply the partial results
+		final int slabDim = refImg.numDimensions()-1;
+		final long slabDimSize = refImg.dimension(slabDim);
+		final int noOfSlabs = (int)Math.min(slabDimSize, Runtime.getRuntime().availableProcessors());
+		if (noOfSlabs < 2) return findBoxes(inImgs,markerImg,markerVoxels,inOverlaps,log);
+
+		log.info("pre-calculating ROIs (boxes) for "+noOfInputs+" input"
+				+ (markerImg != null ? " and marker" : "") +" images in "+noOfSlabs+" slabs");
+
+		final List<Future<SlabBoxes>> slabs = new ArrayList<>(noOfSlabs);
+		final long[] min = new long[slabDim+1];
+		final long[] max = new long[slabDim+1];
+		refImg.min(min);
+		refImg.max(max);
+		for (int s = 0; s < noOfSlabs; ++s)
+		{
+			min[slabDim] = refImg.min(slabDim) + s*slabDimSize/noOfSlabs;
+			max[slabDim] = refImg.min(slabDim) + (s+1)*slabDimSize/noOfSlabs -1;
+			final Interval slab = new FinalInterval(min,max);
+
+			final List<RandomAccessibleInterval<T>> slabInImgs = new ArrayList<>(noOfInputs);
+			for (RandomAccessibleInterval<T> inImg : inImgs) slabInImgs.add( Views.interval(inImg,slab) );
+			final RandomAccessibleInterval<M> slabMarkerImg
+					= markerImg != null ? Views.interval(markerImg,slab) : null;
+
+			//NB: the partial results are created only when the slab is being scanned
+			slabs.add( workers.submit( () -> {
+				final SlabBoxes sb = new SlabBoxes();
+				sb.voxels = markerVoxels != null ? createVoxelListsFor(refImg) : null;
+				sb.overlaps = inOverlaps != null ? createOverlapTables(noOfInputs) : null;
+				sb.boxes = scanBoxes(slabInImgs,slabMarkerImg,sb.voxels,sb.overlaps,SLAB_TABLE_CAPACITY);
+				return sb;
+			} ) );
+		}
+
+		//merge in the order of the slabs, every slab as soon as it is available,
+		//and forget its partial results right after
+		Vector<LabelBoxTable> boxes = null;
+		try {
+			for (int s = 0; s < noOfSlabs; ++s)
+			{
+				final SlabBoxes sb = slabs.get(s).get();
+				slabs.set(s, null);
+
+				if (boxes == null) boxes = sb.boxes;
+				else
+					for (int i = 0; i < boxes.size(); ++i) boxes.get(i).unionWith( sb.boxes.get(i) );
+
+				if (markerVoxels != null || inOverlaps != null)
+				{
+					final LabelBoxTable slabMarkerBoxes = sb.boxes.get(noOfInputs);
+					for (int i = 0; i < slabMarkerBoxes.size(); ++i)
+					{
+						final int markerIdx = boxes.get(noOfInputs).indexOf(slabMarkerBoxes.labelAt(i));
+						if (markerVoxels != null)
+							markerVoxels.appendAll(sb.voxels, i, markerIdx);
+						if (inOverlaps != null)
+							for (int in = 0; in < noOfInputs; ++in)
+								inOverlaps.get(in).addRow(sb.overlaps.get(in), i, markerIdx);
 					}
 				}
+			}
+		}
+		catch (ExecutionException e) {
+			for (Future<SlabBoxes> f : slabs) if (f != null) f.cancel(true);
+			throw new RuntimeException("Failed pre-calculating ROIs (boxes): "+e.getMessage(), e);
+		}
+		catch (InterruptedException e) {
+			for (Future<SlabBoxes> f : slabs) if (f != null) f.cancel(true);
+			throw e;
+		}
+
+		log.trace("done pre-calculating ROIs (boxes) in "+noOfSlabs+" slabs");
+		return boxes;
+	}
+
+	/**
+	 * Pre-calculates the per-label AABBs of the 'inImg' with the slab-parallel sweep
+	 * on the common fork-join pool, the result is identical to the one of
+	 * findBoxes(RandomAccessibleInterval,Logger,String).
+	 */
+	static public <T extends RealType<T>>
+	LabelBoxTable findBoxesInParallel(final RandomAccessibleInterval<T> inImg,
+			final Logger log, final String imgNickName)
+	{
+		log.info("pre-calculating ROIs (boxes) for "+imgNickName+" image");
+		try {
+			return findBoxes(Collections.singletonList(inImg),null,null,null,log,ForkJoinPool.commonPool()).get(0);
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while pre-calculating ROIs (boxes) for "+imgNickName+" image", e);
+		}
+	}
+
+	/** the partial results of one slab of findBoxes(List,RandomAccessibleInterval,LabelVoxelLists,List,Logger,ExecutorService) */
+	static class SlabBoxes
+	{
+		Vector<LabelBoxTable> boxes;
+		LabelVoxelLists voxels;
+		List<OverlapTable> overlaps;
+	}
+
+	/** initial capacity of the boxes tables of one slab, the tables grow as needed */
+	static final int SLAB_TABLE_CAPACITY = 64;
+
+	/** the sweep itself of findBoxes(List,RandomAccessibleInterval,LabelVoxelLists,List,Logger) */
+	static <T extends RealType<T>, M extends RealType<M>>
+	Vector<LabelBoxTable> scanBoxes(final List<RandomAccessibleInterval<T>> inImgs,
+			final RandomAccessibleInterval<M> markerImg,
+			final LabelVoxelLists markerVoxels,
+			final List<OverlapTable> inOverlaps)
+	{
+		return scanBoxes(inImgs,markerImg,markerVoxels,inOverlaps,LabelBoxTable.DEFAULT_CAPACITY);
+	}
+
+	/** the same as scanBoxes(List,RandomAccessibleInterval,LabelVoxelLists,List), the
+	    tables of the boxes are created for the 'expectedNoOfLabels' labels initially */
+	static <T extends RealType<T>, M extends RealType<M>>
+	Vector<LabelBoxTable> scanBoxes(final List<RandomAccessibleInterval<T>> inImgs,
+			final RandomAccessibleInterval<M> markerImg,
+			final LabelVoxelLists markerVoxels,
+			final List<OverlapTable> inOverlaps,
+			final int expectedNoOfLabels)
+	{
+		final int noOfInputs = inImgs.size();
+		final RandomAccessibleInterval<?> refImg = noOfInputs > 0 ? inImgs.get(0) : markerImg;
+
+		final Vector<LabelBoxTable> boxes = new Vector<>(noOfInputs+1);
+		for (int i = 0; i < noOfInputs; ++i) boxes.add( new LabelBoxTable(refImg.numDimensions(),expectedNoOfLabels) );
+		if (markerImg != null) boxes.add( new LabelBoxTable(refImg.numDimensions(),expectedNoOfLabels) );
+
+		//aux variables for re-using
+		final long[] pos = new long[refImg.numDimensions()];
+		final int[] inLabels = new int[noOfInputs];
+
+		//NB: flatIterable() guarantees the same iteration order over the same interval
+		final List<Cursor<T>> inCursors = new ArrayList<>(noOfInputs);
+		for (RandomAccessibleInterval<T> inImg : inImgs)
+			inCursors.add( Views.flatIterable(inImg).cursor() );
+		final Cursor<M> mCursor = markerImg != null ? Views.flatIterable(markerImg).cursor() : null;
+
+		//the (only) cursor that reports the position
+		final Cursor<?> posCursor = Views.flatIterable(refImg).localizingCursor();
+
+		while (posCursor.hasNext())
+		{
+			posCursor.fwd();
+			boolean localized = false;
+
+			for (int i = 0; i < noOfInputs; ++i)
+			{
+				final double label = inCursors.get(i).next().getRealDouble();
+				inLabels[i] = (int)label;
+				if (label > 0)
+				{
+					if (!localized) { posCursor.localize(pos); localized = true; }
+					boxes.get(i).extendBox((int)label,pos);
+				}
+			}
 
-				for (int n = 0; n < numDimensions; ++n) {
-					if (pos[n] < box[n]) box[n] = pos[n];
-					if (pos[n] > box[n+numDimensions]) box[n+numDimensions] = pos[n];
+			if (mCursor != null)
+			{
+				final double label = mCursor.next().getRealDouble();
+				if (label > 0)
+				{
+					if (!localized) posCursor.localize(pos);
+					final int markerIdx = boxes.get(noOfInputs).extendBox((int)label,pos);
+					if (markerVoxels != null) markerVoxels.add(markerIdx,pos);
+					if (inOverlaps != null)
+						for (int i = 0; i < noOfInputs; ++i) inOverlaps.get(i).add(markerIdx,inLabels[i]);
 				}
 			}
 		}
 
-		log.trace("done pre-calculating ROIs (boxes) for "+imgNickName+" image");
 		return boxes;
 	}
 
+	/**
+	 * The fallback of the joint sweeps for images that do not span over the same interval:
+	 * every image is scanned on its own interval, and the 'markerVoxels' (if not null) are
+	 * collected during the scan of the 'markerImg'. The 'inOverlaps' cannot be filled this
+	 * way, the list is therefore emptied to signal that the overlaps are not available.
+	 */
+	static <T extends RealType<T>, M extends RealType<M>>
+	Vector<LabelBoxTable> findBoxesOneByOne(final List<RandomAccessibleInterval<T>> inImgs,
+			final RandomAccessibleInterval<M> markerImg,
+			final LabelVoxelLists markerVoxels,
+			final List<OverlapTable> inOverlaps,
+			final Logger log)
+	{
+		final Vector<LabelBoxTable> boxes = new Vector<>(inImgs.size()+1);
+		for (int i = 0; i < inImgs.size(); ++i)
+			boxes.add( findBoxes(inImgs.get(i),log,"input #"+(i+1)) );
+
+		if (markerImg != null)
+		{
+			log.info("pre-calculating ROIs (boxes) for marker image");
+			final List<RandomAccessibleInterval<T>> noInImgs = Collections.emptyList();
+			boxes.add( scanBoxes(noInImgs,markerImg,markerVoxels,null).get(0) );
+		}
+
+		if (inOverlaps != null) inOverlaps.clear();
+		return boxes;
+	}
+
+	/**
+	 * Returns true if all 'inImgs' and the 'markerImg' (if not null) span over the same
+	 * interval, otherwise reports every image that differs from the reference one (the
+	 * 'markerImg' if given, or the first of the 'inImgs') and returns false.
+	 */
+	static <T extends RealType<T>, M extends RealType<M>>
+	boolean isJointSweepPossible(final List<RandomAccessibleInterval<T>> inImgs,
+			final RandomAccessibleInterval<M> markerImg,
+			final Logger log)
+	{
+		final Interval refImg = markerImg != null ? markerImg : inImgs.get(0);
+		final String refName = markerImg != null ? "marker" : "input #1";
+
+		boolean allSame = true;
+		for (int i = 0; i < inImgs.size(); ++i)
+			if (!isSameInterval(refImg,inImgs.get(i)))
+			{
+				log.warn("input #"+(i+1)+" image is not of the same size as the "+refName
+						+" image, cannot pre-calculate the boxes of all images in one sweep");
+				allSame = false;
+			}
+		return allSame;
+	}
+
+	/** returns true if the 'img' spans over the same interval as the 'refImg' */
+	static public
+	boolean isSameInterval(final Interval refImg, final Interval img)
+	{
+		boolean same = refImg.numDimensions() == img.numDimensions();
+		for (int n = 0; same && n < refImg.numDimensions(); ++n)
+			same = refImg.min(n) == img.min(n) && refImg.max(n) == img.max(n);
+		return same;
+	}
+
 	static public
 	void unionBoxes(final long[] box, final long[] targetBox)
 	{
@@ -176,18 +594,18 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 	{
 		for (int i = 0; i < inBoxes.size(); ++i)
 		{
-			final Map<Double,long[]> boxes = inBoxes.get(i);
+			final LabelBoxTable boxes = inBoxes.get(i);
 			log.info("Image "+i+":");
 
-			for (Map.Entry<Double,long[]> box : boxes.entrySet())
-				log.info(printBox(box.getKey(),box.getValue()));
+			for (int b = 0; b < boxes.size(); ++b)
+				log.info(printBox(boxes.labelAt(b),boxes.boxAt(b)));
 
 			log.info("==========================");
 		}
 
 		log.info("Marker image");
-		for (Map.Entry<Double,long[]> box : markerBoxes.entrySet())
-			log.info(printBox(box.getKey(),box.getValue()));
+		for (int b = 0; b < markerBoxes.size(); ++b)
+			log.info(printBox(markerBoxes.labelAt(b),markerBoxes.boxAt(b)));
 		log.info("==========================");
 	}
 
@@ -258,11 +676,35 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 		labelInsertor.initialize(outImg);
 		log.trace("init D");
 
+		//spatial indices to look up quickly labels near the processed marker,
+		//they are built only if queried
+		resetBoxGrids(markerImg);
+		final long[] markerBox = new long[2*markerImg.numDimensions()];
+		log.trace("init E");
+
+		//optional recording of the votes
+		boolean isRecordingVotes = false;
+		if (labelFuser instanceof WeightedVotingLabelFuser)
+		{
+			final WeightedVotingLabelFuser<IT,ET> f = (WeightedVotingLabelFuser<IT,ET>)labelFuser;
+			f.voteCounts = voteCounts;
+			if (voteCounts != null) voteCounts.reset(markerImg, f.weightsScale);
+			isRecordingVotes = voteCounts != null;
+		}
+		else if (voteCounts != null)
+			log.warn("The votes are not recorded because the fuser does not do weighted voting.");
+
+		//possibly reuse the labels matched in the previous fuse()
+		final String matchingSignature = markerMatches != null ? matchingSignature() : null;
+		final MarkerMatches matches = matchingSignature != null ? markerMatches : null;
+		if (matches != null && matches.prepareFor(markerBoxes.size(), inImgs.size(), matchingSignature))
+			log.info("reusing labels matched in the previous run");
+
 		//sweep over the marker image
 		log.trace("starting the main sweep");
-		for (Map.Entry<Double,long[]> marker : markerBoxes.entrySet())
+		for (int markerIdx = 0; markerIdx < markerBoxes.size(); ++markerIdx)
 		{
-			final int curMarker = marker.getKey().intValue();
+			final int curMarker = markerBoxes.labelAt(markerIdx);
 
 			//scan for not yet observed markers (and ignore background values...)
 			if ( curMarker > 0
@@ -273,7 +715,8 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 				log.trace("processing next marker: "+curMarker);
 				//
 				//found next marker, copy out the AABB it spans over
-				final long[] fuseBox = marker.getValue().clone();
+				final long[] fuseBox = markerBoxes.boxAt(markerIdx);
+				markerBoxes.copyBoxAt(markerIdx,markerBox); //NB: the fuseBox grows below
 				log.trace("found its AABB: "+printBox(curMarker,fuseBox));
 
 				//sweep over all input images
@@ -281,23 +724,33 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 				selectedInImgs.clear();
 				selectedInLabels.clear();
 				int noOfMatchingImages = 0;
+				final boolean isMatchKnown = matches != null && matches.isKnown(markerIdx);
 				for (int i = 0; i < inImgs.size(); ++i)
 				{
 					log.trace("searching input image "+i+" for candidate");
 					//find the corresponding label in the input image (in the restricted interval)
-					final float matchingLabel = labelExtractor.findMatchingLabel(
+					final float matchingLabel = isMatchKnown
+						? matches.labelAt(markerIdx,i)
+						: inOverlaps != null
+						? labelExtractor.findMatchingLabel(inOverlaps.get(i), markerIdx, curMarker)
+						: findLabelsIntersecting(i,markerBox) == 0
+						? -1 //NB: no input label reaches into the marker's box, nothing to search for
+						: markerVoxels != null
+						? labelExtractor.findMatchingLabel(inImgs.get(i), markerVoxels, markerIdx, curMarker)
+						: labelExtractor.findMatchingLabel(
 							Views.interval(inImgs.get(i), mInterval),
 							Views.interval(markerImg,     mInterval),
-							curMarker);
+							curMarker, markerBoxes.countAt(markerIdx));
 					log.trace("finished the searching, found "+matchingLabel);
+					if (matches != null && !isMatchKnown) matches.setLabelAt(markerIdx,i, matchingLabel);
 
 					if (matchingLabel > 0)
 					{
 						selectedInImgs.add(inImgs.get(i));
 						selectedInLabels.add(matchingLabel);
 						++noOfMatchingImages;
-						unionBoxes(inBoxes.get(i).get((double)matchingLabel),fuseBox);
-						log.trace("AABB of candidate: "+printBox(matchingLabel,inBoxes.get(i).get((double)matchingLabel)));
+						inBoxes.get(i).unionBox((int)matchingLabel,fuseBox);
+						log.trace("AABB of candidate: "+printBox(matchingLabel,inBoxes.get(i).getBox((int)matchingLabel)));
 						log.trace("fuse AABB updated: "+printBox(curMarker,fuseBox));
 					}
 					else
@@ -307,6 +760,8 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 					}
 				}
 
+				if (matches != null) matches.setKnown(markerIdx);
+
 				if (noOfMatchingImages > 0)
 				{
 					//process within the union'ed interval (of candidates' boxes)
@@ -317,6 +772,8 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 					LoopBuilder.setImages(Views.interval(tmpImg,fuseInterval)).forEachPixel(SetZero::setZero);
 					log.trace("zeroed tmpImg");
 
+					if (isRecordingVotes) voteCounts.startMarker(curMarker, fuseInterval);
+
 					//fuse the selected labels into it
 					labelFuser.fuseMatchingLabels(selectedInImgs,selectedInLabels,
 					                              labelExtractor,inWeights, tmpImg, fuseInterval);
@@ -335,8 +792,7 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 				else
 				{
 					insStatus.clear();
-					labelInsertor.mCollidingVolume.put(curMarker,0L);
-					labelInsertor.mNoCollidingVolume.put(curMarker,0L);
+					labelInsertor.markers.setVolumes(curMarker,0L,0L);
 				}
 
 				//some per marker report:
@@ -351,18 +807,18 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 				//found, not found, in collision, at border
 				if (!insStatus.foundAtAll)
 				{
-					labelInsertor.mNoMatches.add(curMarker);
+					labelInsertor.markers.setFlag(curMarker,MarkerTable.NO_MATCHES);
 					log.info(markerReport+" , not included because not matched in results");
 				}
 				else
 				{
 					if (removeMarkersAtBoundary & insStatus.atBorder)
 					{
-						labelInsertor.mBordering.add(curMarker);
+						labelInsertor.markers.setFlag(curMarker,MarkerTable.BORDERING);
 						log.info(markerReport+" , detected to be at boundary");
 					}
 					else if (insStatus.inCollision)
-						//NB: labelInsertor.mColliding.add() must be done after all markers are processed
+						//NB: flagging with MarkerTable.COLLIDING must be done after all markers are processed
 						log.info(markerReport+" , detected to be in collision");
 					else
 						log.info(markerReport+" , secured for now");
@@ -429,13 +885,15 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 
 		//report details of colliding markers:
 		log.info("reporting colliding markers:");
-		for (final int marker : labelInsertor.mCollidingVolume.keySet())
+		final MarkerTable markers = labelInsertor.markers;
+		for (int idx = 0; idx < markers.size(); ++idx)
 		{
-			float collRatio = (float) labelInsertor.mCollidingVolume.get(marker);
-			collRatio /= (float) (labelInsertor.mNoCollidingVolume.get(marker) + labelInsertor.mCollidingVolume.get(marker));
+			if (!markers.hasVolumesAt(idx)) continue;
+			float collRatio = (float) markers.collidingVolumeAt(idx);
+			collRatio /= (float) (markers.noCollidingVolumeAt(idx) + markers.collidingVolumeAt(idx));
 			if (collRatio > 0.f)
-				log.info("marker: " + marker + ": colliding " + labelInsertor.mCollidingVolume.get(marker)
-						+ " and non-colliding " + labelInsertor.mNoCollidingVolume.get(marker)
+				log.info("marker: " + markers.labelAt(idx) + ": colliding " + markers.collidingVolumeAt(idx)
+						+ " and non-colliding " + markers.noCollidingVolumeAt(idx)
 						+ " voxels ( " + collRatio + " ) "
 						+ (collRatio > removeMarkersCollisionThreshold ? "too much" : "acceptable"));
 		}
@@ -448,17 +906,17 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 		                  +collHistogram[10]+" times");
 
 		//also some per image report:
-		final int okMarkers = allMarkers - labelInsertor.mNoMatches.size() - labelInsertor.mBordering.size() - labelInsertor.mColliding.size();
-		log.info("not found markers    = "+labelInsertor.mNoMatches.size()
-			+" = "+ 100.0f*(float)labelInsertor.mNoMatches.size()/(float)allMarkers +" %");
-		log.info("markers at boundary  = "+labelInsertor.mBordering.size()
-			+" = "+ 100.0f*(float)labelInsertor.mBordering.size()/(float)allMarkers +" %");
-		log.info("markers in collision = "+labelInsertor.mColliding.size()
-			+" = "+ 100.0f*(float)labelInsertor.mColliding.size()/(float)allMarkers +" %");
+		final int okMarkers = allMarkers - markers.countOf(MarkerTable.NO_MATCHES) - markers.countOf(MarkerTable.BORDERING) - markers.countOf(MarkerTable.COLLIDING);
+		log.info("not found markers    = "+markers.countOf(MarkerTable.NO_MATCHES)
+			+" = "+ 100.0f*(float)markers.countOf(MarkerTable.NO_MATCHES)/(float)allMarkers +" %");
+		log.info("markers at boundary  = "+markers.countOf(MarkerTable.BORDERING)
+			+" = "+ 100.0f*(float)markers.countOf(MarkerTable.BORDERING)/(float)allMarkers +" %");
+		log.info("markers in collision = "+markers.countOf(MarkerTable.COLLIDING)
+			+" = "+ 100.0f*(float)markers.countOf(MarkerTable.COLLIDING)/(float)allMarkers +" %");
 		log.info("secured markers      = "+okMarkers
 			+" = "+ 100.0f*(float)okMarkers/(float)allMarkers +" %");
 
-		if (insertTRAforCollidingOrMissingMarkers && (labelInsertor.mColliding.size() > 0 || labelInsertor.mNoMatches.size() > 0))
+		if (insertTRAforCollidingOrMissingMarkers && (markers.countOf(MarkerTable.COLLIDING) > 0 || markers.countOf(MarkerTable.NO_MATCHES) > 0))
 		{
 			//sweep the output image and add missing TRA markers
 			//
@@ -468,7 +926,7 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
 				(o,m) -> {
 					final int outLabel = o.getInteger();
 					final int traLabel = m.getInteger();
-					if (outLabel == 0 && (labelInsertor.mColliding.contains(traLabel) || labelInsertor.mNoMatches.contains(traLabel)))
+					if (outLabel == 0 && (markers.hasAnyFlag(traLabel,MarkerTable.COLLIDING|MarkerTable.NO_MATCHES)))
 						o.setInteger(traLabel);
 				} );
 		}
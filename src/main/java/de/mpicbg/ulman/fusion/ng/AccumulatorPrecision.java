@@ -0,0 +1,136 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.fusion.ng;
+
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.IntegerType;
+import org.scijava.log.Logger;
+
+import java.util.Vector;
+
+/**
+ * Voxel type into which the (weighted) votes are accumulated, a smaller type
+ * means less memory traffic for the per-marker temporary images. The DEFAULT
+ * keeps the type the particular fusion algorithm has been designed with.
+ *
+ * The FIXED16 (signed 16 bits) and UINT8 (unsigned 8 bits) are integer types,
+ * and the weights are therefore accumulated in a fixed-point representation:
+ * they are multiplied by a power of two such that their sum fits the type.
+ * The fusion result is the same as with the floating point types whenever the
+ * weights can be represented exactly this way (e.g., flat weights, or weights
+ * like 0.25 or 0.5), otherwise the weights get rounded.
+ */
+public enum AccumulatorPrecision
+{
+	DEFAULT(Choices.DEFAULT),
+	DOUBLE(Choices.DOUBLE),
+	FLOAT(Choices.FLOAT),
+	FIXED16(Choices.FIXED16),
+	UINT8(Choices.UINT8);
+
+	/** the toString() of the values as compile-time constants, e.g., for the choices
+	    of the GUI @Parameter annotations, which cannot call choices() */
+	public interface Choices
+	{
+		String DEFAULT = "DEFAULT - default of the merging model";
+		String DOUBLE  = "DOUBLE - 64-bit floating point";
+		String FLOAT   = "FLOAT - 32-bit floating point";
+		String FIXED16 = "FIXED16 - 16-bit fixed point, quantised weights";
+		String UINT8   = "UINT8 - 8-bit unsigned, flat voting with up to 255 inputs";
+	}
+
+	AccumulatorPrecision(final String choice)
+	{
+		this.choice = choice;
+		this.description = choice.substring(choice.indexOf(" - ")+3);
+	}
+
+	private final String choice;
+	public final String description;
+
+	/** returns, e.g., "FLOAT - 32-bit floating point" */
+	@Override
+	public String toString()
+	{ return choice; }
+
+	/** returns the toString() of all values, e.g., for the GUI choices */
+	public static
+	String[] choices()
+	{
+		final AccumulatorPrecision[] vals = values();
+		final String[] choices = new String[vals.length];
+		for (int i = 0; i < vals.length; ++i) choices[i] = vals[i].toString();
+		return choices;
+	}
+
+	/** parses either the name() or the toString() of some value, case insensitive */
+	public static
+	AccumulatorPrecision parse(final String str)
+	{
+		final String name = str.trim().split("[ \t]", 2)[0];
+		for (AccumulatorPrecision p : values())
+			if (p.name().equalsIgnoreCase(name)) return p;
+		final StringBuilder names = new StringBuilder();
+		for (AccumulatorPrecision p : values())
+			names.append(names.length() > 0 ? ", " : "").append(p.name());
+		throw new RuntimeException("Unknown accumulator precision: "+str
+				+", choose from "+names+".");
+	}
+
+
+	/**
+	 * Returns the multiplier of the weights such that their sum fits into the
+	 * 'accType' -- the fixed-point scale. It is 1.0 for non-integer types.
+	 * The scale is a power of two, so the scaling itself is exact, and it is
+	 * chosen as large as possible. If some weight is not representable with
+	 * this scale, it is reported (as a warning) into the 'log'.
+	 */
+	public static <ET extends RealType<ET>>
+	double fixedPointScale(final ET accType, final Vector<Double> weights, final Logger log)
+	{
+		if (!(accType instanceof IntegerType) || weights == null) return 1.0;
+
+		double sum = 0;
+		for (double w : weights) sum += Math.abs(w);
+		if (sum == 0) return 1.0;
+
+		final double maxValue = accType.getMaxValue();
+		double scale = 1.0;
+		while (sum*scale*2 <= maxValue && scale < (1 << 20)) scale *= 2;
+		while (sum*scale > maxValue && scale > 1.0/(1 << 20)) scale /= 2;
+
+		for (double w : weights)
+			if (w*scale != Math.rint(w*scale))
+			{
+				log.warn("Weight "+w+" cannot be represented exactly with the fixed-point scale "
+						+scale+", the weights are rounded now.");
+				break;
+			}
+		return scale;
+	}
+}
@@ -32,14 +32,13 @@ import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.real.DoubleType;
 import org.scijava.log.Logger;
 
-import de.mpicbg.ulman.fusion.ng.extract.MajorityOverlapBasedLabelExtractor;
-import de.mpicbg.ulman.fusion.ng.fuse.WeightedVotingLabelFuser;
-import de.mpicbg.ulman.fusion.ng.postprocess.KeepLargestCCALabelPostprocessor;
-import de.mpicbg.ulman.fusion.ng.insert.CollisionsAwareLabelInsertor;
-
+/**
+ * The BIC that accumulates the votes in DoubleType,
+ * see {@link BICwithAccumulator} for other precisions.
+ */
 public
 class BIC<IT extends RealType<IT>, LT extends IntegerType<LT>>
-extends AbstractWeightedVotingFusionAlgorithm<IT,LT,DoubleType>
+extends BICwithAccumulator<IT,LT,DoubleType>
 {
 	public
 	BIC(final Logger _log)
@@ -50,42 +49,6 @@ extends AbstractWeightedVotingFusionAlgorithm<IT,LT,DoubleType>
 	public
 	BIC(final Logger _log, final String dbgImgSuffix)
 	{
-		super(_log, new DoubleType());
-
-		//enable debug output
-		this.dbgImgFileName = dbgImgSuffix;
-	}
-
-	@Override
-	protected
-	void setFusionComponents()
-	{
-		//setup the individual stages
-		final MajorityOverlapBasedLabelExtractor<IT,LT,DoubleType> e = new MajorityOverlapBasedLabelExtractor<>();
-		e.minFractionOfMarker = 0.5f;
-
-		final WeightedVotingLabelFuser<IT,DoubleType> f = new WeightedVotingLabelFuser<>();
-		f.minAcceptableWeight = this.threshold;
-
-		final CollisionsAwareLabelInsertor<LT, DoubleType> i = new CollisionsAwareLabelInsertor<>();
-
-		final KeepLargestCCALabelPostprocessor<LT> p = new KeepLargestCCALabelPostprocessor<>();
-
-		this.labelExtractor = e;
-		this.labelFuser     = f;
-		this.labelInsertor  = i;
-		this.labelCleaner   = p;
-	}
-
-	/**
-	 * This method was added here to make sure that any change in the
-	 * voting threshold will be propagated inside this.labelFuser.
-	 */
-	@Override
-	public
-	void setThreshold(final double minSumOfWeights)
-	{
-		super.setThreshold(minSumOfWeights);
-		((WeightedVotingLabelFuser)labelFuser).minAcceptableWeight = this.threshold;
+		super(_log, new DoubleType(), dbgImgSuffix);
 	}
 }
@@ -0,0 +1,111 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.fusion.ng;
+
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.scijava.log.Logger;
+
+import java.util.Vector;
+
+import de.mpicbg.ulman.fusion.ng.backbones.WeightedVotingFusionAlgorithm;
+import de.mpicbg.ulman.fusion.ng.fuse.ForcedFlatVotingLabelFuserWithFailSafe;
+import de.mpicbg.ulman.fusion.ng.postprocess.KeepLargestCCALabelPostprocessor;
+import de.mpicbg.ulman.fusion.ng.insert.CollisionsManagingLabelInsertor;
+
+/**
+ * The {@link BICenhancedFlat} that accumulates the votes in the given ET voxel type.
+ */
+public
+class BICenhancedFlatWithAccumulator<IT extends RealType<IT>, LT extends IntegerType<LT>, ET extends RealType<ET>>
+extends AbstractWeightedVotingRoisFusionAlgorithm<IT,LT,ET>
+{
+	public
+	BICenhancedFlatWithAccumulator(final Logger _log, final ET accumulatorType)
+	{
+		super(_log, accumulatorType);
+	}
+
+	public
+	BICenhancedFlatWithAccumulator(final Logger _log, final ET accumulatorType, final String dbgImgSuffix)
+	{
+		super(_log, accumulatorType);
+
+		//enable debug output
+		this.dbgImgFileName = dbgImgSuffix;
+	}
+
+	/** creates the BICenhancedFlat that accumulates with the given 'precision' */
+	public static <IT extends RealType<IT>, LT extends IntegerType<LT>>
+	WeightedVotingFusionAlgorithm<IT,LT> create(final Logger log, final AccumulatorPrecision precision)
+	{
+		switch (precision) {
+		case DOUBLE:  return new BICenhancedFlatWithAccumulator<>(log, new DoubleType());
+		case FLOAT:   return new BICenhancedFlatWithAccumulator<>(log, new FloatType());
+		case FIXED16: return new BICenhancedFlatWithAccumulator<>(log, new ShortType());
+		case UINT8:   return new BICenhancedFlatWithAccumulator<>(log, new UnsignedByteType());
+		default:      return new BICenhancedFlat<>(log);
+		}
+	}
+
+	@Override
+	protected
+	void setFusionComponents()
+	{
+		this.removeMarkersCollisionThreshold = 0.2f;
+		setVotingFusionComponents(new ForcedFlatVotingLabelFuserWithFailSafe<>(),
+				new CollisionsManagingLabelInsertor<>(),
+				new KeepLargestCCALabelPostprocessor<>());
+	}
+
+	/**
+	 * This method was added here to make sure that the (flat) votes
+	 * of all inputs fit into the accumulator.
+	 */
+	@Override
+	public
+	void setWeights(final Vector<Double> weights)
+	{
+		if (weights.size() > referenceType.getMaxValue())
+			throw new RuntimeException("Cannot flat-vote "+weights.size()+" inputs with the accumulator of max value "
+					+referenceType.getMaxValue()+", choose higher accumulator precision.");
+		super.setWeights(weights);
+	}
+
+	/** the flat votes are counted as they are, the weights are not scaled */
+	@Override
+	protected
+	double weightsScaleFor(final Vector<Double> weights)
+	{
+		return 1.0;
+	}
+}
@@ -32,15 +32,13 @@ import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.real.FloatType;
 import org.scijava.log.Logger;
 
-import de.mpicbg.ulman.fusion.ng.extract.MajorityOverlapBasedLabelExtractor;
-import de.mpicbg.ulman.fusion.ng.fuse.WeightedVotingLabelFuser;
-import de.mpicbg.ulman.fusion.ng.fuse.WeightedVotingLabelFuserWithFailSafe;
-import de.mpicbg.ulman.fusion.ng.postprocess.KeepLargestCCALabelPostprocessor;
-import de.mpicbg.ulman.fusion.ng.insert.CollisionsManagingLabelInsertor;
-
+/**
+ * The BICenhancedWeighted that accumulates the votes in FloatType,
+ * see {@link BICenhancedWeightedWithAccumulator} for other precisions.
+ */
 public
 class BICenhancedWeighted<IT extends RealType<IT>, LT extends IntegerType<LT>>
-extends AbstractWeightedVotingRoisFusionAlgorithm<IT,LT, FloatType>
+extends BICenhancedWeightedWithAccumulator<IT,LT,FloatType>
 {
 	public
 	BICenhancedWeighted(final Logger _log)
@@ -51,43 +49,6 @@ extends AbstractWeightedVotingRoisFusionAlgorithm<IT,LT, FloatType>
 	public
 	BICenhancedWeighted(final Logger _log, final String dbgImgSuffix)
 	{
-		super(_log, new FloatType());
-
-		//enable debug output
-		this.dbgImgFileName = dbgImgSuffix;
-	}
-
-	@Override
-	protected
-	void setFusionComponents()
-	{
-		//setup the individual stages
-		final MajorityOverlapBasedLabelExtractor<IT,LT,FloatType> e = new MajorityOverlapBasedLabelExtractor<>();
-		e.minFractionOfMarker = 0.5f;
-
-		final WeightedVotingLabelFuser<IT,FloatType> f = new WeightedVotingLabelFuserWithFailSafe<>();
-		f.minAcceptableWeight = this.threshold;
-
-		final CollisionsManagingLabelInsertor<LT, FloatType> i = new CollisionsManagingLabelInsertor<>();
-		this.removeMarkersCollisionThreshold = 0.2f;
-
-		final KeepLargestCCALabelPostprocessor<LT> p = new KeepLargestCCALabelPostprocessor<>();
-
-		this.labelExtractor = e;
-		this.labelFuser     = f;
-		this.labelInsertor  = i;
-		this.labelCleaner   = p;
-	}
-
-	/**
-	 * This method was added here to make sure that any change in the
-	 * voting threshold will be propagated inside this.labelFuser.
-	 */
-	@Override
-	public
-	void setThreshold(final double minSumOfWeights)
-	{
-		super.setThreshold(minSumOfWeights);
-		((WeightedVotingLabelFuser)labelFuser).minAcceptableWeight = this.threshold;
+		super(_log, new FloatType(), dbgImgSuffix);
 	}
 }
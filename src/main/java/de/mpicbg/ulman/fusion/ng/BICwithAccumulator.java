@@ -0,0 +1,86 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2023, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.fusion.ng;
+
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.scijava.log.Logger;
+
+import de.mpicbg.ulman.fusion.ng.backbones.WeightedVotingFusionAlgorithm;
+import de.mpicbg.ulman.fusion.ng.fuse.WeightedVotingLabelFuser;
+import de.mpicbg.ulman.fusion.ng.postprocess.KeepLargestCCALabelPostprocessor;
+import de.mpicbg.ulman.fusion.ng.insert.CollisionsAwareLabelInsertor;
+
+/**
+ * The {@link BIC} that accumulates the votes in the given ET voxel type.
+ */
+public
+class BICwithAccumulator<IT extends RealType<IT>, LT extends IntegerType<LT>, ET extends RealType<ET>>
+extends AbstractWeightedVotingFusionAlgorithm<IT,LT,ET>
+{
+	public
+	BICwithAccumulator(final Logger _log, final ET accumulatorType)
+	{
+		super(_log, accumulatorType);
+	}
+
+	public
+	BICwithAccumulator(final Logger _log, final ET accumulatorType, final String dbgImgSuffix)
+	{
+		super(_log, accumulatorType);
+
+		//enable debug output
+		this.dbgImgFileName = dbgImgSuffix;
+	}
+
+	/** creates the BIC that accumulates with the given 'precision' */
+	public static <IT extends RealType<IT>, LT extends IntegerType<LT>>
+	WeightedVotingFusionAlgorithm<IT,LT> create(final Logger log, final AccumulatorPrecision precision)
+	{
+		switch (precision) {
+		case DOUBLE:  return new BICwithAccumulator<>(log, new DoubleType());
+		case FLOAT:   return new BICwithAccumulator<>(log, new FloatType());
+		case FIXED16: return new BICwithAccumulator<>(log, new ShortType());
+		case UINT8:   return new BICwithAccumulator<>(log, new UnsignedByteType());
+		default:      return new BIC<>(log);
+		}
+	}
+
+	@Override
+	protected
+	void setFusionComponents()
+	{
+		setVotingFusionComponents(new WeightedVotingLabelFuser<>(),
+				new CollisionsAwareLabelInsertor<>(),
+				new KeepLargestCCALabelPostprocessor<>());
+	}
+}
@@ -69,6 +69,17 @@ class CherryPicker<IT extends RealType<IT>, LT extends IntegerType<LT>>
 	final long[] maxBBox = new long[2];
 	//
 	LabelExtractorForCherryPicker<IT,LT,ByteType> extractorForCherryPicker;
+	LabelPicker<IT,ByteType> labelPicker;
+
+	/** sets how many inputs are scored concurrently when picking the best one,
+	    and how many threads resolve the collisions */
+	public
+	CherryPicker<IT,LT> setThreadsCount(final int threadsCount)
+	{
+		labelPicker.setThreadsCount(threadsCount);
+		setCollisionsThreadsCount(threadsCount);
+		return this;
+	}
 
 	@Override
 	protected void setFusionComponents() {
@@ -77,13 +88,13 @@ class CherryPicker<IT extends RealType<IT>, LT extends IntegerType<LT>>
 		extractorForCherryPicker = new LabelExtractorForCherryPicker<>();
 		extractorForCherryPicker.minFractionOfMarker = 0.5f;
 
-		final LabelPicker<IT,ByteType> f = new LabelPicker<>();
+		labelPicker = new LabelPicker<>();
 
 		final CollisionsManagingLabelInsertor<LT, ByteType> i = new CollisionsManagingLabelInsertor<>();
 		final KeepLargestCCALabelPostprocessor<LT> p = new KeepLargestCCALabelPostprocessor<>();
 
 		this.labelExtractor = extractorForCherryPicker;
-		this.labelFuser     = f;
+		this.labelFuser     = labelPicker;
 		this.labelInsertor  = i;
 		this.labelCleaner   = p;
 	}
@@ -95,7 +106,7 @@ class CherryPicker<IT extends RealType<IT>, LT extends IntegerType<LT>>
 		log.info("CherryPicker's outer fuse() is narrowing TRA markers to SEG segments only");
 
 		//first, add all markers on the ignore list....
-		for (double marker : markerBoxes.keySet()) ignoredMarkersTemporarily.add((int)marker);
+		for (int m = 0; m < markerBoxes.size(); ++m) ignoredMarkersTemporarily.add(markerBoxes.labelAt(m));
 		extractorForCherryPicker.traToSegLabelValues.clear();
 
 		final int idxOFmaxXcoord = markerImg.numDimensions();
@@ -105,10 +116,10 @@ class CherryPicker<IT extends RealType<IT>, LT extends IntegerType<LT>>
 			//....against the all markers....
 			final Map<Integer,Long> bestSegToTraDistances = new HashMap<>(100);
 			final Map<Integer,Integer> bestSegToTraMarkers = new HashMap<>(100);
-			for (Map.Entry<Double,long[]> marker : markerBoxes.entrySet()) {
+			for (int m = 0; m < markerBoxes.size(); ++m) {
 				//.... by comparing overlap of the marker (at its middle 2D slice) with the SEG
-				final int curMarker = marker.getKey().intValue();
-				final long[] markerBox = marker.getValue();
+				final int curMarker = markerBoxes.labelAt(m);
+				final long[] markerBox = markerBoxes.boxAt(m);
 
 				final long markerZslice = idxOFmaxXcoord == 2 ? 0 : (markerBox[2]+markerBox[5])/2;
 				final RandomAccessibleInterval<LT> markerSliceImg =
@@ -30,9 +30,13 @@ package de.mpicbg.ulman.fusion.ng;
 import de.mpicbg.ulman.fusion.JobSpecification;
 import de.mpicbg.ulman.fusion.ng.backbones.FusionAlgorithm;
 import de.mpicbg.ulman.fusion.ng.backbones.JobIO;
+import de.mpicbg.ulman.fusion.util.BitslicedVoteCounter;
+import de.mpicbg.ulman.fusion.util.PrimitiveImgAccess;
 import de.mpicbg.ulman.fusion.util.ReusableMemory;
 import de.mpicbg.ulman.fusion.util.loggers.TimeStampedConsoleLogger;
 import net.celltrackingchallenge.measures.util.NumberSequenceHandler;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.morphology.Dilation;
 import net.imglib2.algorithm.neighborhood.HyperSphereShape;
@@ -43,6 +47,7 @@ import net.imglib2.parallel.DefaultTaskExecutor;
 import net.imglib2.parallel.TaskExecutor;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
 import org.scijava.log.Logger;
 import sc.fiji.simplifiedio.SimplifiedIO;
 
@@ -90,13 +95,32 @@ implements FusionAlgorithm<IT,UnsignedShortType>
 		log.info("Going to fuse from "+validIndices.size()+" inputs: "+validIndices);
 
 		Img<UnsignedShortType> outImg = new PlanarImgFactory<>(new UnsignedShortType()).create(inImgs.get(validIndices.get(0)));
-		LoopBuilder.setImages(outImg)
-				.multiThreaded(threadsPool)
-				.forEachPixel(UnsignedShortType::setZero);
 
 		//crank up the shared mem facility (because of CCA down below that cannot instantiate it for itself)
 		ReusableMemory.getInstanceFor(outImg, new UnsignedShortType(), new UnsignedShortType());
 
+		if (fuseWithBitMasks(inImgs,validIndices,outImg))
+			log.info(".. extracted and thresholded with bit masks");
+		else
+			fuseByAdding(inImgs,validIndices,outImg);
+
+		if (dilationRadius > 0) {
+			log.info(".. dilation of R="+dilationRadius+" (using "+ threadsCount +" threads)");
+			final HyperSphereShape sphereShape = new HyperSphereShape(dilationRadius);
+			outImg = Dilation.dilate(outImg, sphereShape, threadsCount);
+		}
+
+		return outImg;
+	}
+
+	void fuseByAdding(final Vector<RandomAccessibleInterval<IT>> inImgs,
+	                  final List<Integer> validIndices,
+	                  final Img<UnsignedShortType> outImg)
+	{
+		LoopBuilder.setImages(outImg)
+				.multiThreaded(threadsPool)
+				.forEachPixel(UnsignedShortType::setZero);
+
 		int processedImgs = 0;
 		final int allImgs = validIndices.size();
 		int[] imgsInAction = new int[4];
@@ -135,14 +159,69 @@ implements FusionAlgorithm<IT,UnsignedShortType>
 		LoopBuilder.setImages(outImg)
 				.multiThreaded(threadsPool)
 				.forEachPixel( o -> { if (o.getInteger() >= countThreshold) o.setOne(); else o.setZero(); } );
+	}
 
-		if (dilationRadius > 0) {
-			log.info(".. dilation of R="+dilationRadius+" (using "+ threadsCount +" threads)");
-			final HyperSphereShape sphereShape = new HyperSphereShape(dilationRadius);
-			outImg = Dilation.dilate(outImg, sphereShape, threadsCount);
+	/**
+	 * Does the same as fuseByAdding() but every line of voxels is first turned
+	 * into one bit mask per input, and the masks are counted and thresholded
+	 * with the bitsliced counter. The image is split along its last dimension
+	 * into slabs that are processed in parallel. Returns false (and does
+	 * nothing) if some of the images is not accessible directly.
+	 */
+	boolean fuseWithBitMasks(final Vector<RandomAccessibleInterval<IT>> inImgs,
+	                         final List<Integer> validIndices,
+	                         final Img<UnsignedShortType> outImg)
+	{
+		final PrimitiveImgAccess outA = PrimitiveImgAccess.of(outImg);
+		if (outA == null) return false;
+		for (int idx : validIndices)
+		{
+			final PrimitiveImgAccess inA = PrimitiveImgAccess.of(inImgs.get(idx));
+			if (inA == null || !inA.isOfSameSize(outA)) return false;
 		}
 
-		return outImg;
+		final int lastDim = outImg.numDimensions()-1;
+		final long extent = outImg.dimension(lastDim);
+		final long noOfSlabs = Math.min(extent, 4L*threadsCount);
+		final List<Interval> slabs = new ArrayList<>((int)noOfSlabs);
+		final long[] min = new long[lastDim+1];
+		final long[] max = new long[lastDim+1];
+		for (int d = 0; d < lastDim; ++d) { min[d] = outImg.min(d); max[d] = outImg.max(d); }
+		for (long s = 0; s < noOfSlabs; ++s)
+		{
+			min[lastDim] = outImg.min(lastDim) + s*extent/noOfSlabs;
+			max[lastDim] = outImg.min(lastDim) + (s+1)*extent/noOfSlabs -1;
+			slabs.add(new FinalInterval(min,max));
+		}
+
+		log.info(".. extracting from "+validIndices+" with bit masks");
+		threadsPool.forEach(slabs, slab -> {
+			final PrimitiveImgAccess oA = PrimitiveImgAccess.of(Views.interval(outImg,slab));
+			final PrimitiveImgAccess[] inA = new PrimitiveImgAccess[validIndices.size()];
+			for (int k = 0; k < inA.length; ++k)
+				inA[k] = PrimitiveImgAccess.of(Views.interval(inImgs.get(validIndices.get(k)),slab));
+
+			final BitslicedVoteCounter counter = new BitslicedVoteCounter();
+			final int len = oA.lineLength();
+			while (oA.nextLine())
+			{
+				counter.reset(len, inA.length);
+				final long[] mask = counter.mask();
+				for (PrimitiveImgAccess a : inA)
+				{
+					a.nextLine();
+					counter.clearMask();
+					for (int x = 0; x < len; ++x)
+						if (a.getFloat(x) > 0) mask[x >>> 6] |= 1L << x;
+					counter.addMask();
+				}
+
+				counter.threshold(countThreshold, mask);
+				for (int x = 0; x < len; ++x)
+					oA.setInt(x, (int)(mask[x >>> 6] >>> x) & 1);
+			}
+		});
+		return true;
 	}
 
 	void extractTwoLabelsInParallel(int[] indices,
@@ -103,6 +103,29 @@ class JobIO<IT extends RealType<IT>, LT extends IntegerType<LT>>
 	/** output attribute: threshold value */
 	public float threshold;
 
+	/** output attribute: files from which the input images were loaded, in the order of inImgs */
+	public String[] inFiles;
+
+	/** output attribute: file from which the marker image was loaded */
+	public String markerFile;
+
+	/** if set, the images are first looked for in this cache, and the loaded ones are put into it */
+	public JobSessionCache sessionCache = null;
+
+	Img<IT> openImage(final String file)
+	{
+		Img<IT> img = sessionCache != null ? (Img<IT>)sessionCache.getImage(file) : null;
+		if (img != null)
+		{
+			log.trace("Reusing image from the session cache: " + file);
+			return img;
+		}
+
+		img = SimplifiedIO.openImage(file);
+		if (sessionCache != null && img != null) sessionCache.putImage(file, img);
+		return img;
+	}
+
 
 	// ----------- input job spec to output attributes -----------
 	/** converts time-instantiated, String[]-based job specification
@@ -194,12 +217,12 @@ class JobIO<IT extends RealType<IT>, LT extends IntegerType<LT>>
 				if (input_idx < jsi.inputFiles.length) {
 					reportFileName = jsi.inputFiles[input_idx];
 					log.info("Reading pair started: " + reportFileName + " " + jsi.inputWeights[input_idx]);
-					img = SimplifiedIO.openImage(jsi.inputFiles[input_idx]);
+					img = openImage(jsi.inputFiles[input_idx]);
 					log.trace("Reading pair done: " + reportFileName + " " + jsi.inputWeights[input_idx]);
 				} else if (input_idx == jsi.inputFiles.length) {
 					reportFileName = jsi.markerFile;
 					log.info("Reading marker started: " + reportFileName);
-					img = SimplifiedIO.openImage(jsi.markerFile);
+					img = openImage(jsi.markerFile);
 					log.trace("Reading marker done: " + reportFileName);
 				} else {
 					//sanity check from "over-parallellism"
@@ -282,6 +305,10 @@ class JobIO<IT extends RealType<IT>, LT extends IntegerType<LT>>
 		//marker image
 		markerImg = null;
 
+		//origins of the images are known only after they all got loaded
+		inFiles = null;
+		markerFile = null;
+
 		//init the shared objects
 		firstImgVoxelType = null;
 		firstImgVoxelTypeString = null;
@@ -330,6 +357,10 @@ class JobIO<IT extends RealType<IT>, LT extends IntegerType<LT>>
 		//parse threshold value
 		threshold = (float)jsi.threshold;
 
+		//remember where the images came from
+		inFiles = jsi.inputFiles.clone();
+		markerFile = jsi.markerFile;
+
 		//since the simplifiedIO() returns actually always ImgPlus,
 		//we better strip away the "plus" extras to make it pure Img<>
 		if (markerImg instanceof ImgPlus)
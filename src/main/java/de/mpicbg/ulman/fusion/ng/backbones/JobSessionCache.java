@@ -0,0 +1,297 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2020,2022, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.fusion.ng.backbones;
+
+import de.mpicbg.ulman.fusion.util.LabelBoxTable;
+import de.mpicbg.ulman.fusion.util.LabelVoxelLists;
+import de.mpicbg.ulman.fusion.util.MarkerMatches;
+import de.mpicbg.ulman.fusion.util.OverlapTable;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Keeps, across several runs of the same job (e.g., while re-tuning the threshold
+ * in Fiji), the loaded images, and per timepoint the label index (the boxes,
+ * marker voxels and overlaps) together with the labels matched to the markers.
+ * A re-run can then skip the loading of the images and the matching of labels.
+ *
+ * Everything is remembered per filename and is valid only as long as the
+ * file is not changed (its modification time and size are checked). The images
+ * and the label indices are held together within the memory budget, the least
+ * recently used ones (whether images or label indices) are forgotten first.
+ *
+ * The cache is thread-safe.
+ */
+public class JobSessionCache
+{
+	public JobSessionCache(final long memoryBudgetInBytes)
+	{
+		this.memoryBudget = memoryBudgetInBytes;
+	}
+
+	private long memoryBudget;
+	private long memoryUsed = 0;
+
+	/** stamps the entries when used, to find the least recently used one among all of them */
+	private long useCounter = 0;
+
+	public synchronized
+	long getMemoryBudget()
+	{ return memoryBudget; }
+
+	public synchronized
+	void setMemoryBudget(final long memoryBudgetInBytes)
+	{
+		memoryBudget = memoryBudgetInBytes;
+		shrinkTo(memoryBudget);
+	}
+
+	/** forgets everything */
+	public synchronized
+	void clear()
+	{
+		images.clear();
+		memoryUsed = 0;
+		labelIndices.clear();
+	}
+
+	/** file modification time and size as observed when the file was read */
+	static class FileStamp
+	{
+		FileStamp(final String file)
+		{
+			final File f = new File(file);
+			lastModified = f.lastModified();
+			length = f.length();
+		}
+
+		final long lastModified, length;
+
+		boolean isValidFor(final String file)
+		{
+			final File f = new File(file);
+			return f.lastModified() == lastModified && f.length() == length;
+		}
+	}
+
+
+	// ----------- images -----------
+	static class ImageEntry
+	{
+		ImageEntry(final String file, final Img<?> img, final long bytes)
+		{
+			stamp = new FileStamp(file);
+			this.img = img;
+			this.bytes = bytes;
+		}
+
+		final FileStamp stamp;
+		final Img<?> img;
+		final long bytes;
+		long lastUse;
+	}
+
+	/** in the access order, the least recently used first */
+	private final Map<String,ImageEntry> images = new LinkedHashMap<>(64, 0.75f, true);
+
+	/** returns the image previously loaded from the 'file', or null if it is
+	    not available (or the file has changed since) */
+	public synchronized
+	Img<?> getImage(final String file)
+	{
+		final ImageEntry e = images.get(file);
+		if (e == null) return null;
+		if (e.stamp.isValidFor(file))
+		{
+			e.lastUse = ++useCounter;
+			return e.img;
+		}
+
+		images.remove(file);
+		memoryUsed -= e.bytes;
+		return null;
+	}
+
+	/** remembers the 'img' loaded from the 'file', unless it alone exceeds the memory budget */
+	public synchronized
+	void putImage(final String file, final Img<?> img)
+	{
+		final long bytes = estimateBytes(img);
+		final ImageEntry prev = images.remove(file);
+		if (prev != null) memoryUsed -= prev.bytes;
+		if (bytes > memoryBudget) return;
+
+		shrinkTo(memoryBudget - bytes);
+		final ImageEntry e = new ImageEntry(file,img,bytes);
+		e.lastUse = ++useCounter;
+		images.put(file, e);
+		memoryUsed += bytes;
+	}
+
+	/** forgets the least recently used images and label indices until the memory used is within the 'maxMemory' */
+	private
+	void shrinkTo(final long maxMemory)
+	{
+		while (memoryUsed > maxMemory && (!images.isEmpty() || !labelIndices.isEmpty()))
+		{
+			//NB: both maps are in the access order, their first entries are the least recently used ones
+			final Iterator<ImageEntry> imgIt = images.values().iterator();
+			final Iterator<LabelIndex> liIt = labelIndices.values().iterator();
+			final ImageEntry img = imgIt.hasNext() ? imgIt.next() : null;
+			final LabelIndex li = liIt.hasNext() ? liIt.next() : null;
+
+			if (li == null || (img != null && img.lastUse < li.lastUse))
+			{
+				memoryUsed -= img.bytes;
+				imgIt.remove();
+			}
+			else
+			{
+				memoryUsed -= li.bytes;
+				liIt.remove();
+			}
+		}
+	}
+
+	static
+	long estimateBytes(final Img<?> img)
+	{
+		long voxels = 1;
+		for (int d = 0; d < img.numDimensions(); ++d) voxels *= img.dimension(d);
+		final Object type = img.firstElement();
+		final int bits = type instanceof RealType ? ((RealType<?>)type).getBitsPerPixel() : 64;
+		return voxels * Math.max(bits,8) / 8;
+	}
+
+
+	// ----------- label indices -----------
+	/** the label index and matches of one timepoint, the 'matches'
+	    are filled in (and reused) by the fusion algorithm itself */
+	public static class LabelIndex
+	{
+		public Vector<LabelBoxTable> inBoxes;
+		public LabelBoxTable markerBoxes;
+		public LabelVoxelLists markerVoxels;
+		public Vector<OverlapTable> inOverlaps;
+		public final MarkerMatches matches = new MarkerMatches();
+
+		FileStamp[] stamps;
+		String[] files;
+		long bytes;
+		long lastUse;
+	}
+
+	/** in the access order, the least recently used first */
+	private final Map<String,LabelIndex> labelIndices = new LinkedHashMap<>(64, 0.75f, true);
+
+	/** estimates the memory occupied by the label index 'li' (including
+	    its matches, which are filled in only later), for inputs 'noOfInputs' */
+	static
+	long estimateBytes(final LabelIndex li, final int noOfInputs)
+	{
+		long bytes = 0;
+		if (li.inBoxes != null)
+			for (LabelBoxTable t : li.inBoxes) bytes += t.estimateBytes();
+		if (li.markerBoxes != null)
+		{
+			bytes += li.markerBoxes.estimateBytes();
+			bytes += 5L * li.markerBoxes.size() * noOfInputs; //the matches
+		}
+		if (li.markerVoxels != null) bytes += li.markerVoxels.estimateBytes();
+		if (li.inOverlaps != null)
+			for (OverlapTable t : li.inOverlaps) bytes += t.estimateBytes();
+		return bytes;
+	}
+
+	static
+	String keyOf(final String[] inFiles, final String markerFile)
+	{
+		return markerFile + "|" + String.join("|", inFiles);
+	}
+
+	/** returns the label index of the given inputs and marker, or null if it is
+	    not available (or some of the files has changed since) */
+	public synchronized
+	LabelIndex getLabelIndex(final String[] inFiles, final String markerFile)
+	{
+		final String key = keyOf(inFiles,markerFile);
+		final LabelIndex li = labelIndices.get(key);
+		if (li == null) return null;
+
+		for (int i = 0; i < li.files.length; ++i)
+			if (!li.stamps[i].isValidFor(li.files[i]))
+			{
+				labelIndices.remove(key);
+				memoryUsed -= li.bytes;
+				return null;
+			}
+		li.lastUse = ++useCounter;
+		return li;
+	}
+
+	/** remembers the label index of the given inputs and marker (unless it alone exceeds
+	    the memory budget), returns the object to which the matches shall be filled in */
+	public synchronized
+	LabelIndex putLabelIndex(final String[] inFiles, final String markerFile,
+	                         final Vector<LabelBoxTable> inBoxes,
+	                         final LabelBoxTable markerBoxes,
+	                         final LabelVoxelLists markerVoxels,
+	                         final Vector<OverlapTable> inOverlaps)
+	{
+		final LabelIndex li = new LabelIndex();
+		li.inBoxes = inBoxes;
+		li.markerBoxes = markerBoxes;
+		li.markerVoxels = markerVoxels;
+		li.inOverlaps = inOverlaps;
+
+		li.files = Arrays.copyOf(inFiles, inFiles.length+1);
+		li.files[inFiles.length] = markerFile;
+		li.stamps = new FileStamp[li.files.length];
+		for (int i = 0; i < li.files.length; ++i) li.stamps[i] = new FileStamp(li.files[i]);
+
+		final String key = keyOf(inFiles,markerFile);
+		final LabelIndex prev = labelIndices.remove(key);
+		if (prev != null) memoryUsed -= prev.bytes;
+
+		li.bytes = estimateBytes(li, inFiles.length);
+		if (li.bytes > memoryBudget) return li;
+
+		shrinkTo(memoryBudget - li.bytes);
+		li.lastUse = ++useCounter;
+		labelIndices.put(key, li);
+		memoryUsed += li.bytes;
+		return li;
+	}
+}
@@ -27,12 +27,18 @@
  */
 package de.mpicbg.ulman.fusion.ng.backbones;
 
+import de.mpicbg.ulman.fusion.ng.AbstractWeightedVotingFusionAlgorithm;
 import de.mpicbg.ulman.fusion.ng.AbstractWeightedVotingRoisFusionAlgorithm;
 import de.mpicbg.ulman.fusion.ng.extract.MajorityOverlapBasedLabelExtractor;
 import de.mpicbg.ulman.fusion.util.ReusableMemory;
 import de.mpicbg.ulman.fusion.util.DetSegCumulativeScores;
+import de.mpicbg.ulman.fusion.util.JaccardBatch;
+import de.mpicbg.ulman.fusion.util.LabelBoxTable;
+import de.mpicbg.ulman.fusion.util.LabelIndexCache;
+import de.mpicbg.ulman.fusion.util.LabelVoxelLists;
+import de.mpicbg.ulman.fusion.util.OverlapTable;
 import de.mpicbg.ulman.fusion.util.SegGtImageLoader;
-import net.celltrackingchallenge.measures.util.Jaccard;
+import de.mpicbg.ulman.fusion.util.VoteCountRecords;
 
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
@@ -45,8 +51,8 @@ import de.mpicbg.ulman.fusion.JobSpecification;
 import org.scijava.log.Logger;
 import sc.fiji.simplifiedio.SimplifiedIO;
 
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -155,17 +161,150 @@ extends JobIO<IT,LT>
 		{
 			AbstractWeightedVotingRoisFusionAlgorithm<IT,LT,?> algRoi
 					= (AbstractWeightedVotingRoisFusionAlgorithm<IT,LT,?>)algorithm;
-			if (threadWorkers != null)
-				algRoi.setupBoxes(inImgs,markerImg,threadWorkers);
+			algRoi.markerMatches = null;
+			if (loadBoxesFromSession(algRoi))
+			{
+				log.info("ROIs (boxes) and matched labels are reused from the session cache");
+				return;
+			}
+
+			if (useLabelIndexCache && loadBoxesFromCache(algRoi))
+				log.trace("ROIs (boxes) are loaded from the sidecar cache");
 			else
-				algRoi.setupBoxes(inImgs,markerImg);
-			//DEBUG// algRoi.printBoxes();
-			log.trace("ROIs (boxes) are ready");
+			{
+				//NB: the boxes of such images are found one by one (and slower), tell which files they are
+				if (inFiles != null && inFiles.length == inImgs.size())
+					for (int i = 0; i < inFiles.length; ++i)
+						if (!AbstractWeightedVotingRoisFusionAlgorithm.isSameInterval(markerImg,inImgs.get(i)))
+							log.warn("Input image "+inFiles[i]+" is not of the same size as the marker image.");
+
+				if (threadWorkers != null)
+					algRoi.setupBoxes(inImgs,markerImg,threadWorkers);
+				else
+					algRoi.setupBoxes(inImgs,markerImg);
+				//DEBUG// algRoi.printBoxes();
+				log.trace("ROIs (boxes) are ready");
+
+				if (useLabelIndexCache) saveBoxesToCache(algRoi);
+			}
+
+			saveBoxesToSession(algRoi);
+		}
+	}
+
+	/** if set, calcBoxes() first tries to read the boxes (and related data)
+	    from the sidecar files next to the input images, and (re)creates the
+	    sidecars whenever it had to scan the images */
+	public boolean useLabelIndexCache = false;
+
+	public
+	WeightedVotingFusionFeeder<IT,LT> setUseLabelIndexCache(final boolean useIt)
+	{
+		useLabelIndexCache = useIt;
+		return this;
+	}
+
+	/** returns true only if the boxes were found in the sessionCache, in which case
+	    they are already placed into the 'algRoi', together with the matched labels */
+	private
+	boolean loadBoxesFromSession(final AbstractWeightedVotingRoisFusionAlgorithm<IT,LT,?> algRoi)
+	{
+		if (sessionCache == null || inFiles == null || markerFile == null || inFiles.length != inImgs.size()) return false;
+
+		final JobSessionCache.LabelIndex li = sessionCache.getLabelIndex(inFiles, markerFile);
+		if (li == null) return false;
+
+		algRoi.inBoxes = li.inBoxes;
+		algRoi.markerBoxes = li.markerBoxes;
+		algRoi.markerVoxels = li.markerVoxels;
+		algRoi.inOverlaps = li.inOverlaps;
+		algRoi.markerMatches = li.matches;
+		return true;
+	}
+
+	private
+	void saveBoxesToSession(final AbstractWeightedVotingRoisFusionAlgorithm<IT,LT,?> algRoi)
+	{
+		if (sessionCache == null || inFiles == null || markerFile == null || inFiles.length != inImgs.size()) return;
+
+		final JobSessionCache.LabelIndex li = sessionCache.putLabelIndex(inFiles, markerFile,
+				algRoi.inBoxes, algRoi.markerBoxes, algRoi.markerVoxels, algRoi.inOverlaps);
+		//NB: the fusion fills the matches in, for the next runs
+		algRoi.markerMatches = li.matches;
+	}
+
+	public
+	WeightedVotingFusionFeeder<IT,LT> setSessionCache(final JobSessionCache cache)
+	{
+		sessionCache = cache;
+		return this;
+	}
+
+	/** returns true only if all boxes were loaded, in which case they are
+	    already placed into the 'algRoi', otherwise 'algRoi' is not touched */
+	private
+	boolean loadBoxesFromCache(final AbstractWeightedVotingRoisFusionAlgorithm<IT,LT,?> algRoi)
+	{
+		//don't know where the images came from?
+		if (inFiles == null || markerFile == null || inFiles.length != inImgs.size()) return false;
+
+		try {
+			final LabelIndexCache.Entry m = LabelIndexCache.loadMarker(markerFile);
+			if (m == null || m.voxels == null || m.boxes.numDimensions() != markerImg.numDimensions())
+			{
+				log.info("Label index cache is missing or stale for: "+markerFile);
+				return false;
+			}
+
+			final Vector<LabelBoxTable> boxes = new Vector<>(inFiles.length);
+			final Vector<OverlapTable> overlaps = new Vector<>(inFiles.length);
+			boolean allOverlapsAvailable = true;
+			for (String inFile : inFiles)
+			{
+				final LabelIndexCache.Entry e = LabelIndexCache.loadInput(inFile, markerFile);
+				if (e == null || e.boxes.numDimensions() != markerImg.numDimensions())
+				{
+					log.info("Label index cache is missing or stale for: "+inFile);
+					return false;
+				}
+				boxes.add(e.boxes);
+				overlaps.add(e.overlaps);
+				allOverlapsAvailable &= e.overlaps != null;
+			}
+
+			algRoi.inBoxes = boxes;
+			algRoi.markerBoxes = m.boxes;
+			algRoi.markerVoxels = m.voxels;
+			//NB: without overlaps, the matching falls back to visiting the marker voxels
+			algRoi.inOverlaps = allOverlapsAvailable ? overlaps : null;
+			return true;
+		}
+		catch (IOException e) {
+			log.warn("Failed reading the label index cache, will scan the images: "+e.getMessage());
+			return false;
+		}
+	}
+
+	private
+	void saveBoxesToCache(final AbstractWeightedVotingRoisFusionAlgorithm<IT,LT,?> algRoi)
+	{
+		if (inFiles == null || markerFile == null || inFiles.length != inImgs.size()) return;
+
+		try {
+			LabelIndexCache.saveMarker(markerFile, algRoi.markerBoxes, algRoi.markerVoxels);
+			for (int i = 0; i < inFiles.length; ++i)
+				LabelIndexCache.saveInput(inFiles[i], algRoi.inBoxes.get(i),
+						algRoi.inOverlaps != null ? algRoi.inOverlaps.get(i) : null, markerFile);
+			log.trace("ROIs (boxes) are stored into the sidecar cache");
+		}
+		catch (IOException e) {
+			//NB: the cache is only an optimization, not being able to store it is not fatal
+			log.warn("Failed storing the label index cache: "+e.getMessage());
 		}
 	}
 
 	public //NB: because of CMV
-	Map<Double,long[]> getMarkerBoxes()
+	LabelBoxTable getMarkerBoxes()
 	{
 		if (algorithm instanceof AbstractWeightedVotingRoisFusionAlgorithm)
 		{
@@ -177,7 +316,7 @@ extends JobIO<IT,LT>
 	}
 
 	public //NB: because of CMV
-	void setMarkerBoxes(final Map<Double,long[]> mBoxes)
+	void setMarkerBoxes(final LabelBoxTable mBoxes)
 	{
 		if (algorithm instanceof AbstractWeightedVotingRoisFusionAlgorithm)
 		{
@@ -188,7 +327,53 @@ extends JobIO<IT,LT>
 	}
 
 	public //NB: because of CMV
-	Vector<Map<Double,long[]>> getInBoxes()
+	LabelVoxelLists getMarkerVoxels()
+	{
+		if (algorithm instanceof AbstractWeightedVotingRoisFusionAlgorithm)
+		{
+			AbstractWeightedVotingRoisFusionAlgorithm<IT, LT, ?> algRoi
+					= (AbstractWeightedVotingRoisFusionAlgorithm<IT, LT, ?>) algorithm;
+			return algRoi.markerVoxels;
+		}
+		else return null;
+	}
+
+	public //NB: because of CMV
+	void setMarkerVoxels(final LabelVoxelLists mVoxels)
+	{
+		if (algorithm instanceof AbstractWeightedVotingRoisFusionAlgorithm)
+		{
+			AbstractWeightedVotingRoisFusionAlgorithm<IT, LT, ?> algRoi
+					= (AbstractWeightedVotingRoisFusionAlgorithm<IT, LT, ?>) algorithm;
+			algRoi.markerVoxels = mVoxels;
+		}
+	}
+
+	public //NB: because of CMV
+	Vector<OverlapTable> getInOverlaps()
+	{
+		if (algorithm instanceof AbstractWeightedVotingRoisFusionAlgorithm)
+		{
+			AbstractWeightedVotingRoisFusionAlgorithm<IT, LT, ?> algRoi
+					= (AbstractWeightedVotingRoisFusionAlgorithm<IT, LT, ?>) algorithm;
+			return algRoi.inOverlaps;
+		}
+		else return null;
+	}
+
+	public //NB: because of CMV
+	void setInOverlaps(final Vector<OverlapTable> inOverlaps)
+	{
+		if (algorithm instanceof AbstractWeightedVotingRoisFusionAlgorithm)
+		{
+			AbstractWeightedVotingRoisFusionAlgorithm<IT, LT, ?> algRoi
+					= (AbstractWeightedVotingRoisFusionAlgorithm<IT, LT, ?>) algorithm;
+			algRoi.inOverlaps = inOverlaps;
+		}
+	}
+
+	public //NB: because of CMV
+	Vector<LabelBoxTable> getInBoxes()
 	{
 		if (algorithm instanceof AbstractWeightedVotingRoisFusionAlgorithm)
 		{
@@ -200,7 +385,7 @@ extends JobIO<IT,LT>
 	}
 
 	public //NB: because of CMV
-	void setInBoxes(final Vector<Map<Double,long[]>> inBoxes)
+	void setInBoxes(final Vector<LabelBoxTable> inBoxes)
 	{
 		if (algorithm instanceof AbstractWeightedVotingRoisFusionAlgorithm)
 		{
@@ -281,6 +466,53 @@ extends JobIO<IT,LT>
 		SimplifiedIO.saveImage(outFusedImg, outFile);
 	}
 
+
+	/** makes the algorithm record the votes of every fused marker,
+	    which can be then saved with saveVoteCounts() after every processJob() */
+	public
+	WeightedVotingFusionFeeder<IT,LT> setRecordVoteCounts(final boolean doRecord)
+	{
+		if (!(algorithm instanceof AbstractWeightedVotingRoisFusionAlgorithm))
+			throw new RuntimeException("Recording of votes is supported only with the ROIs-based algorithms.");
+
+		((AbstractWeightedVotingRoisFusionAlgorithm<IT,LT,?>)algorithm).voteCounts
+				= doRecord ? new VoteCountRecords() : null;
+		return this;
+	}
+
+	/** sets how many threads resolve the collisions of the fused labels, if the algorithm does it */
+	public
+	WeightedVotingFusionFeeder<IT,LT> setCollisionsThreadsCount(final int threadsCount)
+	{
+		if (algorithm instanceof AbstractWeightedVotingFusionAlgorithm)
+			((AbstractWeightedVotingFusionAlgorithm<IT,LT,?>)algorithm).setCollisionsThreadsCount(threadsCount);
+		return this;
+	}
+
+	/** saves the votes next to the output image of this 'time', see VoteCountRecords.filenameFor() */
+	public
+	void saveVoteCounts(final JobSpecification job, final int time)
+	{
+		final String outFile = JobSpecification.expandFilenamePattern(job.outputPattern,time);
+		saveVoteCounts( VoteCountRecords.filenameFor(outFile) );
+	}
+
+	public
+	void saveVoteCounts(final String outFile)
+	{
+		final VoteCountRecords votes = algorithm instanceof AbstractWeightedVotingRoisFusionAlgorithm
+				? ((AbstractWeightedVotingRoisFusionAlgorithm<IT,LT,?>)algorithm).voteCounts : null;
+		if (votes == null)
+			throw new RuntimeException("No votes were recorded, enable it first with setRecordVoteCounts().");
+
+		log.info("Saving votes: "+outFile+" ("+votes.size()+" markers)");
+		try {
+			votes.save(outFile);
+		} catch (IOException e) {
+			log.error("Failed saving votes: "+e.getMessage());
+		}
+	}
+
 	public
 	void scoreJob(final SegGtImageLoader<LT> SEGloader, final DetSegCumulativeScores score)
 	{
@@ -299,7 +531,7 @@ extends JobIO<IT,LT>
 
 		//shortcuts:
 		final RandomAccessibleInterval<LT> gtImg = ld.lastLoadedImage;
-		final Map<Double,long[]> gtBoxes = ld.calculatedBoxes;
+		final LabelBoxTable gtBoxes = ld.calculatedBoxes;
 		//
 		final RandomAccessibleInterval<LT> resImg = ld.slicedViewOf(outFusedImg);
 
@@ -311,15 +543,20 @@ extends JobIO<IT,LT>
 			return;
 		}
 
-		final Map<Double,long[]> resBoxes = AbstractWeightedVotingRoisFusionAlgorithm.findBoxes(
+		final LabelBoxTable resBoxes = AbstractWeightedVotingRoisFusionAlgorithm.findBoxes(
 				resImg,log,"fusion result");
 
-		//iterate over SEG GT segments
-		for (Map.Entry<Double,long[]> gtBox : gtBoxes.entrySet())
+		//iterate over SEG GT segments to find their matching fusion segments
+		final JaccardBatch jaccards = new JaccardBatch();
+		final int resImgIdx = jaccards.addImage(resImg);
+		final int gtImgIdx = jaccards.addImage(gtImg);
+		final int[] pairs = new int[gtBoxes.size()];
+		final long[] pairsBox = new long[2*gtImg.numDimensions()];
+		for (int gtIdx = 0; gtIdx < gtBoxes.size(); ++gtIdx)
 		{
-			final double gtLabel = gtBox.getKey();
+			final double gtLabel = gtBoxes.labelAt(gtIdx);
 			final Interval gtInterval
-					= AbstractWeightedVotingRoisFusionAlgorithm.createInterval(gtBox.getValue());
+					= AbstractWeightedVotingRoisFusionAlgorithm.createInterval(gtBoxes.boxAt(gtIdx));
 
 			final double resLabel = extractor.findMatchingLabel(
 					Views.interval(resImg, gtInterval),
@@ -327,21 +564,34 @@ extends JobIO<IT,LT>
 					(int)gtLabel);
 			log.info("...for SEG GT "+gtLabel+" found fusion "+resLabel);
 
+			pairs[gtIdx] = -1;
 			if (resLabel > 0)
 			{
-				final long[] resBox = resBoxes.get(resLabel);
-				AbstractWeightedVotingRoisFusionAlgorithm.unionBoxes(gtBox.getValue(),resBox);
+				//sizes of both segments are known, only their intersection needs to be
+				//counted (and only within the box around all matched segments)
+				final int resIdx = resBoxes.indexOf((int)resLabel);
+				pairs[gtIdx] = jaccards.addPair(resImgIdx, resLabel, resBoxes.countAt(resIdx),
+				                                gtImgIdx, gtLabel, gtBoxes.countAt(gtIdx));
+				if (jaccards.size() == 1) gtBoxes.copyBoxAt(gtIdx,pairsBox);
+				AbstractWeightedVotingRoisFusionAlgorithm.unionBoxes(gtBoxes.boxAt(gtIdx),pairsBox);
+				AbstractWeightedVotingRoisFusionAlgorithm.unionBoxes(resBoxes.boxAt(resIdx),pairsBox);
+			}
+		}
+		if (jaccards.size() > 0)
+			jaccards.compute(AbstractWeightedVotingRoisFusionAlgorithm.createInterval(pairsBox));
 
-				final Interval i = AbstractWeightedVotingRoisFusionAlgorithm.createInterval(resBox);
-				double seg = Jaccard.Jaccard(Views.interval(resImg,i), resLabel,
-						Views.interval(gtImg,i), gtLabel);
+		for (int gtIdx = 0; gtIdx < gtBoxes.size(); ++gtIdx)
+		{
+			if (pairs[gtIdx] > -1)
+			{
+				double seg = jaccards.jaccardAt(pairs[gtIdx]);
 				score.addSegMatch(seg);
-				log.info("......with seg = "+seg);
+				log.info("...for SEG GT "+gtBoxes.labelAt(gtIdx)+" with seg = "+seg);
 			}
 			else
 			{
 				score.addSegMiss(); //nothing found for this SEG instance
-				log.info("......with seg = 0.0");
+				log.info("...for SEG GT "+gtBoxes.labelAt(gtIdx)+" with seg = 0.0");
 			}
 		}
 
@@ -355,7 +605,7 @@ extends JobIO<IT,LT>
 	{
 		log.info("Doing also DET score now ...");
 
-		final Map<Double,long[]> markerBoxes = getMarkerBoxes();
+		final LabelBoxTable markerBoxes = getMarkerBoxes();
 		if (markerBoxes == null)
 		{
 			log.warn("...skipping because of not having ROIs (boxes) for marker image.");
@@ -364,11 +614,11 @@ extends JobIO<IT,LT>
 
 		//iterate over DET/TRA GT markers
 		int fusionLabelsMatchingSomeDetMarker = 0;
-		for (Map.Entry<Double,long[]> gtBox : markerBoxes.entrySet())
+		for (int gtIdx = 0; gtIdx < markerBoxes.size(); ++gtIdx)
 		{
-			final double gtLabel = gtBox.getKey();
+			final double gtLabel = markerBoxes.labelAt(gtIdx);
 			final Interval gtInterval
-					= AbstractWeightedVotingRoisFusionAlgorithm.createInterval(gtBox.getValue());
+					= AbstractWeightedVotingRoisFusionAlgorithm.createInterval(markerBoxes.boxAt(gtIdx));
 
 			final double resLabel = extractor.findMatchingLabel(
 					Views.interval(outFusedImg, gtInterval),
@@ -404,6 +654,8 @@ extends JobIO<IT,LT>
 		//also looses all refs on input images (giving GC a chance to return the mem)
 		for (int i = 0; i < inImgs.size(); ++i) inImgs.set(i, null);
 		markerImg = null;
+		inFiles = null;
+		markerFile = null;
 	}
 
 	public
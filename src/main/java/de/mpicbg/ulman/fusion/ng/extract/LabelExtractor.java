@@ -34,6 +34,8 @@ import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.Cursor;
 import java.util.HashMap;
 import org.scijava.log.Logger;
+import de.mpicbg.ulman.fusion.util.LabelVoxelLists;
+import de.mpicbg.ulman.fusion.util.OverlapTable;
 
 /**
  * Detects labels in input images (of voxel type IT -- Input Type) that match given marker,
@@ -58,6 +60,48 @@ public interface LabelExtractor<IT extends RealType<IT>, LT extends IntegerType<
 	                        final IterableInterval<LT> markerII,
 	                        final int markerValue);
 
+	/**
+	 * The same as findMatchingLabel(IterableInterval,IterableInterval,int) except that
+	 * the number of voxels of the marker is known up front (e.g., from the scan of
+	 * the boxes), which allows the sweep to stop once its result is decided.
+	 *
+	 * @param inII          Sweeper of the input image (from which label is to be returned)
+	 * @param markerII      Sweeper of the input marker image
+	 * @param markerValue   Marker (from the input marker image) in question...
+	 * @param markerSize    Number of voxels of the marker within the 'markerII'
+	 */
+	float findMatchingLabel(final IterableInterval<IT> inII,
+	                        final IterableInterval<LT> markerII,
+	                        final int markerValue,
+	                        final long markerSize);
+
+	/**
+	 * The same as findMatchingLabel(IterableInterval,IterableInterval,int) except that
+	 * the marker is given with the list of its voxels, and only these are examined.
+	 *
+	 * @param inImg         The whole input image (from which label is to be returned)
+	 * @param markerVoxels  Voxels of the markers, as flat offsets into an image of the 'inImg' geometry
+	 * @param markerIdx     Index of the marker in question in the 'markerVoxels'
+	 * @param markerValue   Marker (from the input marker image) in question...
+	 */
+	float findMatchingLabel(final RandomAccessibleInterval<IT> inImg,
+	                        final LabelVoxelLists markerVoxels,
+	                        final int markerIdx,
+	                        final int markerValue);
+
+	/**
+	 * The same as findMatchingLabel(IterableInterval,IterableInterval,int) except that
+	 * the overlaps of the marker with the input labels are already known, and are only
+	 * looked up in the 'inOverlaps' (which is the table of the input image in question).
+	 *
+	 * @param inOverlaps    Overlaps of the markers with labels of the input image
+	 * @param markerIdx     Index of the marker in question in the 'inOverlaps'
+	 * @param markerValue   Marker (from the input marker image) in question...
+	 */
+	float findMatchingLabel(final OverlapTable inOverlaps,
+	                        final int markerIdx,
+	                        final int markerValue);
+
 	/**
 	 * Just returns the all matching labels together with their overlap ratios.
 	 *
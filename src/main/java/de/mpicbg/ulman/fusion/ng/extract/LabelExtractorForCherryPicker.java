@@ -28,7 +28,10 @@
 package de.mpicbg.ulman.fusion.ng.extract;
 
 import de.mpicbg.ulman.fusion.util.SegGtImageLoader;
+import de.mpicbg.ulman.fusion.util.LabelVoxelLists;
+import de.mpicbg.ulman.fusion.util.OverlapTable;
 import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 
@@ -58,6 +61,41 @@ public class LabelExtractorForCherryPicker <IT extends RealType<IT>, LT extends
 		return super.findMatchingLabel(inII,markerII,markerValue);
 	}
 
+	/** Essentially only memorizes which 'markerValue' was used as the last. */
+	@Override
+	public
+	float findMatchingLabel(final IterableInterval<IT> inII,
+	                        final IterableInterval<LT> markerII,
+	                        final int markerValue,
+	                        final long markerSize)
+	{
+		lastlyExtractedMarkerValue = markerValue;
+		return super.findMatchingLabel(inII,markerII,markerValue,markerSize);
+	}
+
+	/** Essentially only memorizes which 'markerValue' was used as the last. */
+	@Override
+	public
+	float findMatchingLabel(final RandomAccessibleInterval<IT> inImg,
+	                        final LabelVoxelLists markerVoxels,
+	                        final int markerIdx,
+	                        final int markerValue)
+	{
+		lastlyExtractedMarkerValue = markerValue;
+		return super.findMatchingLabel(inImg,markerVoxels,markerIdx,markerValue);
+	}
+
+	/** Essentially only memorizes which 'markerValue' was used as the last. */
+	@Override
+	public
+	float findMatchingLabel(final OverlapTable inOverlaps,
+	                        final int markerIdx,
+	                        final int markerValue)
+	{
+		lastlyExtractedMarkerValue = markerValue;
+		return super.findMatchingLabel(inOverlaps,markerIdx,markerValue);
+	}
+
 	/** The value of the most recently processed TRA marker. */
 	public int lastlyExtractedMarkerValue = -1;
 
@@ -28,16 +28,23 @@
 package de.mpicbg.ulman.fusion.ng.extract;
 
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.IntegerType;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.scijava.log.Logger;
+import de.mpicbg.ulman.fusion.util.LabelHistogram;
+import de.mpicbg.ulman.fusion.util.LabelVoxelLists;
+import de.mpicbg.ulman.fusion.util.OverlapTable;
+import de.mpicbg.ulman.fusion.util.PrimitiveImgAccess;
 import de.mpicbg.ulman.fusion.util.loggers.RestrictedConsoleLogger;
 
 public class MajorityOverlapBasedLabelExtractor<IT extends RealType<IT>, LT extends IntegerType<LT>, ET extends RealType<ET>>
@@ -53,6 +60,73 @@ implements LabelExtractor<IT,LT,ET>
 	public
 	float minFractionOfMarker = 0.5f;
 
+	/** frequencies of labels discovered across the marker volume, re-used
+	    among the calls of findMatchingLabel() to avoid any allocations;
+	    this makes this object not thread-safe */
+	final LabelHistogram labelCounter = new LabelHistogram();
+
+	/** direct accesses to the images seen so far, remembered under the underlying
+	    images (which are not kept alive by this map), so that only their ROIs are
+	    re-targeted in every call; this makes this object not thread-safe too */
+	final Map<Img<?>,PrimitiveImgAccess> accesses = new WeakHashMap<>();
+
+	/** returns the (remembered) direct access to the 'img', with its ROI set to the interval
+	    of the 'img', or null if the 'img' is not supported, see PrimitiveImgAccess.of() */
+	PrimitiveImgAccess accessOf(final Interval img)
+	{
+		final Img<?> src = PrimitiveImgAccess.sourceOf(img);
+		if (src == null) return null;
+
+		PrimitiveImgAccess a = accesses.get(src);
+		if (a == null)
+		{
+			if (accesses.containsKey(src)) return null; //NB: known to be of an unsupported type
+			a = PrimitiveImgAccess.of(src);
+			accesses.put(src,a);
+			if (a == null) return null;
+		}
+		return a.reset(img) ? a : null;
+	}
+
+	/** re-used position for the findMatchingLabel() over the voxel lists */
+	long[] pos = new long[3];
+
+	/** if set, the findMatchingLabel() over the voxel lists, or the one given the marker
+	    size, stops visiting the voxels as soon as its result is decided */
+	public
+	boolean stopMatchingEarly = true;
+
+	/** the most frequent (non-background) label so far, its count, and
+	    the count of the second most frequent one, for the early stopping */
+	float leadingLabel;
+	int leadingCount, runnerUpCount;
+
+	/**
+	 * Accounts the 'label' and returns 1 if the leading label is surely the
+	 * result of the matching (it is over the 'minCount' and no other label can
+	 * catch up in the 'remaining' voxels), -1 if surely no label can make it
+	 * over the 'minCount', or 0 if it is not decided yet.
+	 */
+	int addAndDecide(final float label, final int remaining, final float minCount)
+	{
+		final int count = labelCounter.add(label);
+		if (label > 0)
+		{
+			if (label == leadingLabel) leadingCount = count;
+			else if (count > leadingCount)
+			{
+				runnerUpCount = leadingCount;
+				leadingLabel = label;
+				leadingCount = count;
+			}
+			else if (count > runnerUpCount) runnerUpCount = count;
+		}
+
+		if (leadingCount + remaining <= minCount) return -1;
+		if (leadingCount > minCount && leadingCount > runnerUpCount + remaining) return 1;
+		return 0;
+	}
+
 	/**
 	 * Sweeps over 'markerValue' labelled voxels inside the marker image
 	 * 'markerII', checks labels found in the corresponding voxels in the
@@ -68,7 +142,24 @@ implements LabelExtractor<IT,LT,ET>
 	                        final int markerValue)
 	{
 		//keep frequencies of labels discovered across the marker volume
-		final HashMap<Float,Integer> labelCounter = new HashMap<>();
+		labelCounter.clear();
+
+		//fast path for images with directly accessible voxel arrays
+		final PrimitiveImgAccess inA = accessOf(inII);
+		final PrimitiveImgAccess markerA = inA != null ? accessOf(markerII) : null;
+		if (markerA != null && markerA != inA && inA.isOfSameSize(markerA))
+		{
+			final int len = inA.lineLength();
+			int markerSize = 0;
+			while (inA.nextLine() && markerA.nextLine())
+				for (int x = 0; x < len; ++x)
+					if (markerA.getInt(x) == markerValue)
+					{
+						++markerSize;
+						labelCounter.add( inA.getFloat(x) );
+					}
+			return pickMajorityLabel(labelCounter, markerSize);
+		}
 
 		final Cursor<IT> inCursor = inII.cursor();
 		final Cursor<LT> markerCursor = markerII.cursor();
@@ -86,22 +177,181 @@ implements LabelExtractor<IT,LT,ET>
 
 				//check what value is in the input image
 				//and update the counter of found values
-				final float inVal = inCursor.get().getRealFloat();
-				labelCounter.put(inVal, labelCounter.getOrDefault(inVal,0)+1);
+				labelCounter.add( inCursor.get().getRealFloat() );
+			}
+		}
+
+		return pickMajorityLabel(labelCounter, markerSize);
+	}
+
+	/**
+	 * The same as findMatchingLabel(IterableInterval,IterableInterval,int)
+	 * except that the sweep stops as soon as its result is decided, which
+	 * is possible because the 'markerSize' is known up front.
+	 */
+	@Override
+	public
+	float findMatchingLabel(final IterableInterval<IT> inII,
+	                        final IterableInterval<LT> markerII,
+	                        final int markerValue,
+	                        final long markerSize)
+	{
+		if (!stopMatchingEarly || markerSize <= 0 || markerSize > Integer.MAX_VALUE)
+			return findMatchingLabel(inII,markerII,markerValue);
+
+		//keep frequencies of labels discovered across the marker volume
+		labelCounter.clear();
+
+		final float minCount = minFractionOfMarker*markerSize;
+		leadingLabel = -1;
+		leadingCount = 0;
+		runnerUpCount = 0;
+		int remaining = (int)markerSize;
+
+		//fast path for images with directly accessible voxel arrays
+		final PrimitiveImgAccess inA = accessOf(inII);
+		final PrimitiveImgAccess markerA = inA != null ? accessOf(markerII) : null;
+		if (markerA != null && markerA != inA && inA.isOfSameSize(markerA))
+		{
+			final int len = inA.lineLength();
+			while (inA.nextLine() && markerA.nextLine())
+				for (int x = 0; x < len; ++x)
+					if (markerA.getInt(x) == markerValue)
+					{
+						final int decision = addAndDecide( inA.getFloat(x), --remaining, minCount );
+						if (decision != 0) return decision > 0 ? leadingLabel : -1;
+					}
+			return pickMajorityLabel(labelCounter, (int)markerSize);
+		}
+
+		final Cursor<IT> inCursor = inII.cursor();
+		final Cursor<LT> markerCursor = markerII.cursor();
+		while (markerCursor.hasNext())
+		{
+			//advance both cursors in synchrony
+			inCursor.next();
+			if (markerCursor.next().getInteger() == markerValue)
+			{
+				final int decision = addAndDecide( inCursor.get().getRealFloat(), --remaining, minCount );
+				if (decision != 0) return decision > 0 ? leadingLabel : -1;
+			}
+		}
+
+		return pickMajorityLabel(labelCounter, (int)markerSize);
+	}
+
+	/**
+	 * The same as findMatchingLabel(IterableInterval,IterableInterval,int)
+	 * except that only the listed voxels of the marker are visited.
+	 */
+	@Override
+	public
+	float findMatchingLabel(final RandomAccessibleInterval<IT> inImg,
+	                        final LabelVoxelLists markerVoxels,
+	                        final int markerIdx,
+	                        final int markerValue)
+	{
+		//keep frequencies of labels discovered across the marker volume
+		labelCounter.clear();
+
+		final int markerSize = markerVoxels.countAt(markerIdx);
+
+		//the early stopping: the result is known once the leading label cannot be
+		//overtaken, or once no label can reach the minimal overlap anymore
+		final float minCount = minFractionOfMarker*markerSize;
+		leadingLabel = -1;
+		leadingCount = 0;
+		runnerUpCount = 0;
+
+		//fast path for images with directly accessible voxel arrays,
+		//NB: the voxel offsets are then exactly the offsets into the image
+		final PrimitiveImgAccess inA = accessOf(inImg);
+		if (pos.length != markerVoxels.numDimensions()) pos = new long[markerVoxels.numDimensions()];
+		if (inA != null && isSameGeometry(inImg, markerVoxels, pos))
+		{
+			for (int i = 0; i < markerSize; ++i)
+			{
+				inA.setOffset( markerVoxels.offsetAt(markerIdx, i) );
+				if (stopMatchingEarly)
+				{
+					final int decision = addAndDecide( inA.getFloat(0), markerSize-i-1, minCount );
+					if (decision != 0) return decision > 0 ? leadingLabel : -1;
+				}
+				else labelCounter.add( inA.getFloat(0) );
+			}
+			return pickMajorityLabel(labelCounter, markerSize);
+		}
+
+		final RandomAccess<IT> inRA = inImg.randomAccess();
+
+		for (int i = 0; i < markerSize; ++i)
+		{
+			markerVoxels.localizeAt(markerIdx, i, pos);
+			inRA.setPosition(pos);
+
+			if (stopMatchingEarly)
+			{
+				final int decision = addAndDecide( inRA.get().getRealFloat(), markerSize-i-1, minCount );
+				if (decision != 0) return decision > 0 ? leadingLabel : -1;
+			}
+			else labelCounter.add( inRA.get().getRealFloat() );
+		}
+
+		return pickMajorityLabel(labelCounter, markerSize);
+	}
+
+	/**
+	 * The same as findMatchingLabel(IterableInterval,IterableInterval,int)
+	 * except that the overlaps are only looked up in the 'inOverlaps'.
+	 */
+	@Override
+	public
+	float findMatchingLabel(final OverlapTable inOverlaps,
+	                        final int markerIdx,
+	                        final int markerValue)
+	{
+		float bestLabel = -1;
+		int bestCount = 0;
+		long markerSize = 0;
+		for (int k = 0; k < inOverlaps.rowSize(markerIdx); ++k)
+		{
+			final int curLabel = inOverlaps.labelAt(markerIdx,k);
+			final int curCount = inOverlaps.countAt(markerIdx,k);
+			markerSize += curCount;
+			if (curLabel <= 0) continue;
+
+			if (curCount > bestCount || (curCount == bestCount && curLabel < bestLabel))
+			{
+				bestLabel = curLabel;
+				bestCount = curCount;
 			}
 		}
 
+		return ( (bestCount > minFractionOfMarker*markerSize) ? bestLabel : -1 );
+	}
+
+	/**
+	 * Finds the most frequent input label (except for the background),
+	 * and returns it if it also spans at least this.minFractionOfMarker
+	 * of the 'markerSize', otherwise -1 is returned. Should there be
+	 * more equally frequent labels, the lowest one is taken.
+	 */
+	float pickMajorityLabel(final LabelHistogram labelCounter, final int markerSize)
+	{
 		//now, find the most frequent input label...
 		//(except for the background...)
 		float bestLabel = -1;
 		int bestCount = 0;
-		for (Iterator<Float> keys = labelCounter.keySet().iterator(); keys.hasNext(); )
+		for (int idx = 0; idx < labelCounter.size(); ++idx)
 		{
-			float curLabel = keys.next();
-			if (labelCounter.get(curLabel) > bestCount && curLabel > 0)
+			final float curLabel = labelCounter.labelAt(idx);
+			if (curLabel <= 0) continue;
+
+			final int curCount = labelCounter.countAt(idx);
+			if (curCount > bestCount || (curCount == bestCount && curLabel < bestLabel))
 			{
 				bestLabel = curLabel;
-				bestCount = labelCounter.get(curLabel);
+				bestCount = curCount;
 			}
 		}
 
@@ -111,6 +361,21 @@ implements LabelExtractor<IT,LT,ET>
 	}
 
 
+	/** returns true if the offsets of the 'voxels' address the same voxels in the 'img',
+	    the 'pos' is an aux array of voxels.numDimensions() length */
+	static
+	boolean isSameGeometry(final RandomAccessibleInterval<?> img, final LabelVoxelLists voxels, final long[] pos)
+	{
+		if (img.numDimensions() != voxels.numDimensions()) return false;
+		img.min(pos);
+		if (voxels.offsetOf(pos) != 0) return false;
+		img.max(pos);
+		long size = 1;
+		for (int d = 0; d < pos.length; ++d) size *= img.dimension(d);
+		return voxels.offsetOf(pos) == size-1;
+	}
+
+
 	@Override
 	public
 	void isolateGivenLabel(final RandomAccessibleInterval<IT> sourceRAI,
@@ -118,6 +383,19 @@ implements LabelExtractor<IT,LT,ET>
 	                       final RandomAccessibleInterval<ET> outputRAI,
 	                       final ET saveAsLabel)
 	{
+		//fast path for images with directly accessible voxel arrays
+		final PrimitiveImgAccess inA = accessOf(sourceRAI);
+		final PrimitiveImgAccess outA = inA != null ? accessOf(outputRAI) : null;
+		if (outA != null && outA != inA && inA.isOfSameSize(outA))
+		{
+			final double value = saveAsLabel.getRealDouble();
+			final int len = inA.lineLength();
+			while (inA.nextLine() && outA.nextLine())
+				for (int x = 0; x < len; ++x)
+					if (inA.getFloat(x) == wantedLabel) outA.setDouble(x, value);
+			return;
+		}
+
 		LoopBuilder.setImages(sourceRAI,outputRAI).forEachPixel( (i,o) -> { if (i.getRealFloat() == wantedLabel) o.set(saveAsLabel); } );
 	}
 	
@@ -129,6 +407,19 @@ implements LabelExtractor<IT,LT,ET>
 	                   final RandomAccessibleInterval<ET> outputRAI,
 	                   final ET addThisLabel)
 	{
+		//fast path for images with directly accessible voxel arrays
+		final PrimitiveImgAccess inA = accessOf(sourceRAI);
+		final PrimitiveImgAccess outA = inA != null ? accessOf(outputRAI) : null;
+		if (outA != null && outA != inA && inA.isOfSameSize(outA))
+		{
+			final double value = addThisLabel.getRealDouble();
+			final int len = inA.lineLength();
+			while (inA.nextLine() && outA.nextLine())
+				for (int x = 0; x < len; ++x)
+					if (inA.getFloat(x) == wantedLabel) outA.add(x, value);
+			return;
+		}
+
 		LoopBuilder.setImages(sourceRAI,outputRAI).forEachPixel( (i,o) -> { if (i.getRealFloat() == wantedLabel) o.add(addThisLabel); } );
 	}
 
@@ -28,6 +28,7 @@
 package de.mpicbg.ulman.fusion.ng.fuse;
 
 import de.mpicbg.ulman.fusion.ng.extract.LabelExtractor;
+import de.mpicbg.ulman.fusion.util.PrimitiveImgAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.view.Views;
 import net.imglib2.loops.LoopBuilder;
@@ -78,19 +79,98 @@ public class FailSafeInsertor
 	}
 
 
-	/** returns the index of the chosen image whose marker was eventually inserted */
+	/**
+	 * Returns the value with which the marker of an input of the 'weight' is inserted.
+	 * The inserted voxels are only tested to be positive later, so it is 1 for any
+	 * positive weight (which survives any accumulator type, unlike a small weight
+	 * that an integer ET would round to zero), and 0 otherwise.
+	 */
+	public static
+	double failSafeValue(final double weight)
+	{ return weight > 0 ? 1.0 : 0.0; }
+
+
+	/**
+	 * The same as clearAndInsertGivenMarker() but for the 'outImg' that is known
+	 * to be all zero already, e.g., after a fusion that has not made anything
+	 * over the threshold, so the clearing is not done.
+	 */
+	public static
+	<IT extends RealType<IT>, ET extends RealType<ET>>
+	void insertGivenMarker(final RandomAccessibleInterval<IT> inImg,
+	                       final float inLabel,
+	                       final LabelExtractor<IT,?,ET> le,
+	                       final double outValue,
+	                       final RandomAccessibleInterval<ET> outImg)
+	{
+		final ET outputValue = Views.flatIterable(outImg).firstElement().createVariable();
+		outputValue.setReal( outValue );
+		le.isolateGivenLabel(inImg,inLabel, outImg,outputValue);
+	}
+
+	/**
+	 * Sets the 'outValue' into the voxels of the 'outImg' that are set in the 'mask',
+	 * which lists the voxels in the flat iteration order of the 'outImg', other voxels
+	 * are not touched. Returns false if the 'outImg' is not accessible directly, and
+	 * nothing is changed then.
+	 */
+	public static
+	<ET extends RealType<ET>>
+	boolean insertMask(final long[] mask,
+	                   final double outValue,
+	                   final RandomAccessibleInterval<ET> outImg)
+	{
+		final PrimitiveImgAccess outA = PrimitiveImgAccess.of(outImg);
+		if (outA == null) return false;
+
+		//NB: the value as the ET represents it
+		final ET outputValue = Views.flatIterable(outImg).firstElement().createVariable();
+		outputValue.setReal( outValue );
+		final double value = outputValue.getRealDouble();
+
+		//only the set bits are visited
+		final int len = outA.lineLength();
+		int lineStart = 0;
+		while (outA.nextLine())
+		{
+			final int lineEnd = lineStart + len;
+			for (int w = lineStart >>> 6; w <= (lineEnd-1) >>> 6; ++w)
+			{
+				long word = mask[w];
+				while (word != 0)
+				{
+					final int bit = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word-1;
+					if (bit >= lineStart && bit < lineEnd) outA.setDouble(bit-lineStart, value);
+				}
+			}
+			lineStart = lineEnd;
+		}
+		return true;
+	}
+
+	/**
+	 * Inserts the marker of the input of the best weight into the 'outImg' that is known
+	 * to be all zero already. If the 'bestWeightMask' is given, it must hold the
+	 * voxels of the label of the best-weight input (see insertMask()), and only
+	 * these voxels are then written, otherwise the input is swept. Returns the
+	 * index of the chosen input whose marker was inserted, or -1 if none is left.
+	 */
 	public static
 	<IT extends RealType<IT>, ET extends RealType<ET>>
-	int clearAndInsertBestWeightMarker(final Vector<RandomAccessibleInterval<IT>> inImgs,
-	                                   final Vector<Float> inLabels,
-	                                   final LabelExtractor<IT,?,ET> le,
-	                                   final Vector<Double> inWeights,
-	                                   final RandomAccessibleInterval<ET> outImg)
+	int insertBestWeightMarker(final Vector<RandomAccessibleInterval<IT>> inImgs,
+	                           final Vector<Float> inLabels,
+	                           final LabelExtractor<IT,?,ET> le,
+	                           final Vector<Double> inWeights,
+	                           final RandomAccessibleInterval<ET> outImg,
+	                           final long[] bestWeightMask)
 	{
 		int bestWeightIdx = getBestWeightIndex(inImgs, inWeights);
 		if (bestWeightIdx == -1) return -1;
 
-		clearAndInsertGivenMarker(inImgs.get(bestWeightIdx),inLabels.get(bestWeightIdx), le, inWeights.get(bestWeightIdx),outImg);
+		final double outValue = failSafeValue(inWeights.get(bestWeightIdx));
+		if (bestWeightMask == null || !insertMask(bestWeightMask, outValue, outImg))
+			insertGivenMarker(inImgs.get(bestWeightIdx),inLabels.get(bestWeightIdx), le, outValue,outImg);
 		return bestWeightIdx;
 	}
 }
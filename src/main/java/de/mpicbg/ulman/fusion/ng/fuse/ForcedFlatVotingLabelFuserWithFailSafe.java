@@ -27,11 +27,12 @@
  */
 package de.mpicbg.ulman.fusion.ng.fuse;
 
-import net.imglib2.Cursor;
 import net.imglib2.type.numeric.RealType; import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.view.Views;
 import java.util.Vector;
 import de.mpicbg.ulman.fusion.ng.extract.LabelExtractor;
+import de.mpicbg.ulman.fusion.ng.extract.MajorityOverlapBasedLabelExtractor;
+import de.mpicbg.ulman.fusion.util.BitslicedVoteCounter;
+import de.mpicbg.ulman.fusion.util.PrimitiveImgAccess;
 
 public class ForcedFlatVotingLabelFuserWithFailSafe<IT extends RealType<IT>, ET extends RealType<ET>>
 extends WeightedVotingLabelFuser<IT,ET>
@@ -47,7 +48,7 @@ implements LabelFuser<IT,ET>
 	 * This process may fail, e.g., when there is not enough images to accumulate
 	 * over the threshold, which is detected and in which case the "emergency"
 	 * (fail safe) routine is executed.
-	 * Here, the {@link FailSafeInsertor#clearAndInsertBestWeightMarker} is used
+	 * Here, the {@link FailSafeInsertor#insertBestWeightMarker} is used
 	 * which **will use the weights**. So the weights are considered only for the
 	 * fail safe operation, and are **not** considered during the voting itself.
 	 */
@@ -67,20 +68,110 @@ implements LabelFuser<IT,ET>
 		while (flatWeightsCache.size() < inWeights.size()) flatWeightsCache.add(1.0);
 		while (flatWeightsCache.size() > inWeights.size()) flatWeightsCache.removeElementAt(flatWeightsCache.size()-1);
 
-		super.fuseMatchingLabels(inImgs,inLabels, le, flatWeightsCache,outImg);
-
-		//check if fusion managed to create something
-		boolean isEmpty = true;
-		final Cursor<ET> oC = Views.flatIterable(outImg).cursor();
-		while (isEmpty && oC.hasNext())
-			isEmpty = oC.next().getRealFloat() == 0;
+		//fuse, and learn if fusion managed to create something
+		//NB: the flat votes are just counted, which is what the bit masks are for
+		//NB: the fusion collects the voxels of the best-weight input for the fail safe on its way
+		failSafeInputIdx = FailSafeInsertor.getBestWeightIndex(inImgs, inWeights);
+		isFailSafeMaskValid = false;
+		Boolean anythingSet = null;
+		if (le instanceof MajorityOverlapBasedLabelExtractor && weightsScale == 1.0)
+			anythingSet = fuseWithBitMasks(inImgs,inLabels, outImg);
+		final boolean isEmpty = anythingSet != null ? !anythingSet
+				: !fuseAndThreshold(inImgs,inLabels, le, flatWeightsCache,outImg);
 
 		if (isEmpty)
 		{
-			int idx = FailSafeInsertor.clearAndInsertBestWeightMarker(inImgs,inLabels, le, inWeights,outImg);
+			//NB: the empty fusion has left the outImg all zero
+			int idx = FailSafeInsertor.insertBestWeightMarker(inImgs,inLabels, le, inWeights,outImg,
+					isFailSafeMaskValid ? failSafeMask : null);
 			log.info("the following marker FSed "+(idx == -1 ? "failed: " : "from "+idx+": "));
 		}
 	}
 
 	Vector<Double> flatWeightsCache = new Vector<>(30);
+
+	/**
+	 * Extracts the matching label of every input into a bit mask over the whole
+	 * 'outImg', counts the masks with the bitsliced counter, and writes the
+	 * thresholded counts as 0/1 into the 'outImg', which is expected to be zero
+	 * beforehand (as the fusion algorithms do it). Returns null if some of the
+	 * images is not accessible directly or the counts would not fit into the
+	 * ET (and nothing is changed then), otherwise returns whether anything
+	 * made it over the threshold.
+	 */
+	Boolean fuseWithBitMasks(final Vector<RandomAccessibleInterval<IT>> inImgs,
+	                         final Vector<Float> inLabels,
+	                         final RandomAccessibleInterval<ET> outImg)
+	{
+		final PrimitiveImgAccess outA = PrimitiveImgAccess.of(outImg);
+		if (outA == null) return null;
+
+		int noOfInputs = 0;
+		for (RandomAccessibleInterval<IT> img : inImgs) if (img != null) ++noOfInputs;
+		//NB: the ET must hold all votes without wrapping to give the same result
+		if (outA.asStoredFloat(noOfInputs) != noOfInputs) return null;
+
+		final PrimitiveImgAccess[] inA = new PrimitiveImgAccess[noOfInputs];
+		final float[] labels = new float[noOfInputs];
+		for (int i = 0, k = 0; i < inImgs.size(); ++i)
+		{
+			if (inImgs.get(i) == null) continue;
+
+			inA[k] = PrimitiveImgAccess.of(inImgs.get(i));
+			if (inA[k] == null || !inA[k].isOfSameSize(outA)) return null;
+			labels[k] = inLabels.get(i);
+			++k;
+		}
+
+		//the votes are compared as floats against the (double) threshold,
+		//an (integer) count is over it iff it is over its ceiling
+		final double threshold = minAcceptableWeight;
+		final boolean isUnreachable = Double.isNaN(threshold) || threshold > noOfInputs;
+		//NB: the votes must be counted (and recorded) even if nothing can make it
+		if (isUnreachable && voteCounts == null) return false;
+		final int minVotes = isUnreachable ? noOfInputs+1 : (int)Math.ceil(Math.max(threshold, 0));
+
+		final long noOfVoxels = outA.size();
+		if (noOfVoxels > Integer.MAX_VALUE - 63) return null;
+
+		//the input for the fail safe mask, as indexed in the 'inA'
+		int fsK = -1;
+		if (failSafeInputIdx > -1 && failSafeInputIdx < inImgs.size() && inImgs.get(failSafeInputIdx) != null
+				&& prepareFailSafeMask(noOfVoxels))
+		{
+			fsK = 0;
+			for (int i = 0; i < failSafeInputIdx; ++i) if (inImgs.get(i) != null) ++fsK;
+		}
+
+		counter.reset((int)noOfVoxels, noOfInputs);
+		final long[] mask = counter.mask();
+		final int len = outA.lineLength();
+		for (int k = 0; k < noOfInputs; ++k)
+		{
+			if (k > 0) counter.clearMask();
+			final PrimitiveImgAccess a = inA[k];
+			final float label = labels[k];
+			int bit = 0;
+			while (a.nextLine())
+				for (int x = 0; x < len; ++x, ++bit)
+					if (a.getFloat(x) == label) mask[bit >>> 6] |= 1L << bit;
+			counter.addMask();
+
+			//NB: the mask holds the voxels of this input until the next one is extracted
+			if (k == fsK) System.arraycopy(mask,0, failSafeMask,0, counter.noOfWords());
+		}
+		isFailSafeMaskValid = fsK > -1;
+
+		if (voteCounts != null)
+			for (int bit = 0; bit < (int)noOfVoxels; ++bit) voteCounts.addVote(bit, counter.countAt(bit));
+
+		final int noOfSet = counter.threshold(minVotes, mask);
+		int bit = 0;
+		while (outA.nextLine())
+			for (int x = 0; x < len; ++x, ++bit)
+				outA.setInt(x, (int)(mask[bit >>> 6] >>> bit) & 1);
+		return noOfSet > 0;
+	}
+
+	final BitslicedVoteCounter counter = new BitslicedVoteCounter();
 }
@@ -29,26 +29,33 @@ package de.mpicbg.ulman.fusion.ng.fuse;
 
 import de.mpicbg.ulman.fusion.ng.extract.LabelExtractor;
 import de.mpicbg.ulman.fusion.ng.extract.LabelExtractorForCherryPicker;
+import de.mpicbg.ulman.fusion.util.JaccardBatch;
+import de.mpicbg.ulman.fusion.util.LabelMask;
 import de.mpicbg.ulman.fusion.util.SegGtImageLoader;
 import de.mpicbg.ulman.fusion.util.loggers.RestrictedConsoleLogger;
-import net.celltrackingchallenge.measures.util.Jaccard;
-import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ByteType;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 import org.scijava.log.Logger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class LabelPicker<IT extends RealType<IT>, ET extends RealType<ET>>
 implements LabelFuser<IT,ET>
 {
 	final ByteType ONE = new ByteType((byte)1);
-	final long[] minBBox = new long[2];
-	final long[] maxBBox = new long[2];
 
 	<LT extends IntegerType<LT>>
 	void fuseMatchingLabels_withExplicitLT(final Vector<RandomAccessibleInterval<IT>> inImgs,
@@ -76,33 +83,22 @@ implements LabelFuser<IT,ET>
 		//
 		//where current_SEG is taken from the "secret channel" -> reachable from 'le'
 		final Vector<Double> scores = new Vector<>(inLabels.size());
-		for (SegGtImageLoader<LT>.LoadedData ld : extractorForCherryPicker.segGtImageLoader.getLastLoadedData())
+		final List<SegGtImageLoader<LT>.LoadedData> loadedData = extractorForCherryPicker.segGtImageLoader.getLastLoadedData();
+		forgetSegMasksOfOtherImagesThan(loadedData);
+		for (SegGtImageLoader<LT>.LoadedData ld : loadedData)
 		{
 			//shortcut to the bbox of the currently examined SEG label, it may however happen that such
 			//label is not in the currently processed SEG image... in which case we skip this SEG image
-			final long[] segBBox = ld.calculatedBoxes.getOrDefault((double)segLabel,null);
-			if (segBBox == null) continue;
+			final LabelMask segMask = getSegMask(ld, segLabel);
+			if (segMask == null) continue;
 
-			//setup a new (2D) ROI-interval as the union of the fuseROI and SEG label ROI
-			minBBox[0] = Math.min( segBBox[0], fuseROI.min(0) );
-			minBBox[1] = Math.min( segBBox[1], fuseROI.min(1) );
-			maxBBox[0] = Math.max( segBBox[2], fuseROI.max(0) );
-			maxBBox[1] = Math.max( segBBox[3], fuseROI.max(1) );
-			final Interval roi = new FinalInterval(minBBox,maxBBox);
-			final IntervalView<LT> viewAroundSEG = Views.interval(ld.lastLoadedImage, roi);
+			//the (2D) ROI-interval as the union of the fuseROI and SEG label ROI
+			final Interval roi = segMask.unionWith(fuseROI);
 
+			//all inputs against the SEG label, possibly in parallel, but collected in the order of the inputs
+			final double[] inScores = scoreInputs(inImgs,inLabels, ld,segMask,roi);
 			for (int i = 0; i < inImgs.size(); ++i)
-				if (inImgs.get(i) != null)
-				{
-					final RandomAccessibleInterval<IT> inImgSlice = ld.slicedViewOf(inImgs.get(i));
-					scores.add( Jaccard.Jaccard(
-							Views.interval(inImgSlice, roi),
-							inLabels.get(i),
-							viewAroundSEG,
-							extractorForCherryPicker.traToSegLabelValues.get(extractorForCherryPicker.lastlyExtractedMarkerValue)
-					) );
-				}
-				else scores.add( -2.0 );
+				scores.add( inScores[i] );
 		}
 		if (scores.size() == 0) {
 			log.error("What!? SEG label "+segLabel+" wasn't found in any of the SEG images associated to this timepoint, cannot cherry pick, skipping...");
@@ -137,6 +133,107 @@ implements LabelFuser<IT,ET>
 		}
 	}
 
+	// ---------------- scoring ----------------
+	/** masks of the SEG labels per SEG image (compared by identity), valid as long as the image is loaded */
+	final Map<RandomAccessibleInterval<?>, Map<Integer,LabelMask>> segMasks = new IdentityHashMap<>();
+
+	<LT extends IntegerType<LT>>
+	void forgetSegMasksOfOtherImagesThan(final List<SegGtImageLoader<LT>.LoadedData> loadedData)
+	{
+		final Iterator<RandomAccessibleInterval<?>> it = segMasks.keySet().iterator();
+		while (it.hasNext())
+		{
+			final RandomAccessibleInterval<?> img = it.next();
+			boolean isLoaded = false;
+			for (SegGtImageLoader<LT>.LoadedData ld : loadedData) isLoaded |= ld.lastLoadedImage == img;
+			if (!isLoaded) it.remove();
+		}
+	}
+
+	/** returns the (possibly cached) mask of the 'segLabel' within its (2D) bbox,
+	    or null if the label is not in the SEG image */
+	<LT extends IntegerType<LT>>
+	LabelMask getSegMask(final SegGtImageLoader<LT>.LoadedData ld, final int segLabel)
+	{
+		final Map<Integer,LabelMask> masks = segMasks.computeIfAbsent(ld.lastLoadedImage, k -> new HashMap<>());
+		LabelMask mask = masks.get(segLabel);
+		if (mask != null) return mask;
+
+		final long[] segBBox = ld.calculatedBoxes.getBox(segLabel);
+		if (segBBox == null) return null;
+
+		mask = LabelMask.of(ld.lastLoadedImage, segLabel,
+				new long[] { segBBox[0], segBBox[1] }, new long[] { segBBox[2], segBBox[3] });
+		masks.put(segLabel, mask);
+		return mask;
+	}
+
+	/** per input, its own batch so that the inputs can be scored concurrently */
+	final Vector<JaccardBatch> jaccards = new Vector<>(10);
+
+	/** returns the scores of all inputs, -2.0 for the missing ones, in the order of the inputs */
+	<LT extends IntegerType<LT>>
+	double[] scoreInputs(final Vector<RandomAccessibleInterval<IT>> inImgs,
+	                     final Vector<Float> inLabels,
+	                     final SegGtImageLoader<LT>.LoadedData ld,
+	                     final LabelMask segMask,
+	                     final Interval roi)
+	{
+		while (jaccards.size() < inImgs.size()) jaccards.add( new JaccardBatch() );
+
+		final double[] scores = new double[inImgs.size()];
+		final List<Callable<Void>> tasks = new ArrayList<>(inImgs.size());
+		for (int i = 0; i < inImgs.size(); ++i)
+		{
+			if (inImgs.get(i) == null) { scores[i] = -2.0; continue; }
+			final int idx = i;
+			tasks.add( () -> {
+				//the input label against the SEG label, only the input is swept
+				final JaccardBatch batch = jaccards.get(idx);
+				batch.clear();
+				final int p = batch.addPair(batch.addImage(ld.slicedViewOf(inImgs.get(idx))), inLabels.get(idx), segMask);
+				batch.compute(roi);
+				scores[idx] = batch.jaccardAt(p);
+				return null;
+			} );
+		}
+
+		if (threadsCount < 2 || tasks.size() < 2)
+		{
+			for (Callable<Void> t : tasks) {
+				try { t.call(); }
+				catch (Exception e) { throw new RuntimeException("Error while scoring inputs", e); }
+			}
+			return scores;
+		}
+
+		//NB: every task writes only its own element of the 'scores', and the best score
+		//    is searched only after all tasks are over, so the first best input always wins
+		try {
+			for (Future<Void> f : threadsPool.invokeAll(tasks)) f.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Error in multithreading", e);
+		}
+		return scores;
+	}
+
+	private int threadsCount = 1;
+	private ForkJoinPool threadsPool = null;
+
+	/** sets how many inputs are scored concurrently, 1 means serially in the calling thread */
+	public
+	void setThreadsCount(final int threadsCount)
+	{
+		if (threadsPool != null) threadsPool.shutdown();
+		this.threadsCount = threadsCount;
+		this.threadsPool = threadsCount > 1 ? new ForkJoinPool(threadsCount) : null;
+	}
+	public
+	int getThreadsCount()
+	{
+		return threadsCount;
+	}
+
 	@Override
 	public
 	void fuseMatchingLabels(final Vector<RandomAccessibleInterval<IT>> inImgs,
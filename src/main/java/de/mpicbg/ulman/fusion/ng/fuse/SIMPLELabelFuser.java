@@ -31,9 +31,14 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.operators.SetZero;
+import net.imglib2.view.Views;
+import java.util.Arrays;
 import java.util.Vector;
 import de.mpicbg.ulman.fusion.ng.extract.LabelExtractor;
-import net.celltrackingchallenge.measures.util.Jaccard;
+import de.mpicbg.ulman.fusion.ng.extract.MajorityOverlapBasedLabelExtractor;
+import de.mpicbg.ulman.fusion.util.JaccardBatch;
+import de.mpicbg.ulman.fusion.util.LongIntMap;
+import de.mpicbg.ulman.fusion.util.PrimitiveImgAccess;
 
 import org.scijava.log.Logger;
 import de.mpicbg.ulman.fusion.util.loggers.RestrictedConsoleLogger;
@@ -80,6 +85,11 @@ implements LabelFuser<IT,ET>
 		//make sure the majorityFuser is available
 		if (majorityFuser == null) majorityFuser = new WeightedVotingLabelFuser<>();
 
+		//NB: the voting patterns know how the MajorityOverlapBasedLabelExtractor
+		//adds the labels, other extractors are given the chance to do it their way
+		if (le instanceof MajorityOverlapBasedLabelExtractor
+			&& fuseWithVotingPatterns(inImgs,inLabels, inWeights,outImg)) return;
+
 		//initial candidate segment
 		majorityFuser.minAcceptableWeight = getMajorityThreshold(inImgs,inWeights);
 		majorityFuser.fuseMatchingLabels(inImgs,inLabels, le, inWeights,outImg);
@@ -89,8 +99,17 @@ implements LabelFuser<IT,ET>
 		double currentQualityThreshold = initialQualityThreshold;
 		int iterationCnt = 1;
 
+		final int[] pairs = new int[inImgs.size()];
 		while (iterationCnt < maxIters)
 		{
+			//Jaccards of all available inputs with the candidate, in one sweep
+			jaccards.clear();
+			final int candidateImgIdx = jaccards.addImage(outImg);
+			for (int i=0; i < inImgs.size(); ++i)
+				if (inImgs.get(i) != null)
+					pairs[i] = jaccards.addPair(jaccards.addImage(inImgs.get(i)),inLabels.get(i), candidateImgIdx,1.0);
+			jaccards.compute(outImg);
+
 			//update weights of the inputs that still pass the quality threshold
 			for (int i=0; i < inImgs.size(); ++i)
 			{
@@ -98,7 +117,7 @@ implements LabelFuser<IT,ET>
 				if (inImgs.get(i) == null) continue;
 
 				//adapt the weight
-				final double newWeight = Jaccard.Jaccard(inImgs.get(i),inLabels.get(i), outImg,1.0);
+				final double newWeight = jaccards.jaccardAt(pairs[i]);
 				myWeights.set(i,newWeight);
 
 				//filter out low-weighted ones (only after the initial settle-down phase)
@@ -113,7 +132,7 @@ implements LabelFuser<IT,ET>
 			LoopBuilder.setImages(outImg).forEachPixel(SetZero::setZero);
 			majorityFuser.minAcceptableWeight = getMajorityThreshold(inImgs,myWeights);
 			majorityFuser.fuseMatchingLabels(inImgs,inLabels, le, myWeights,outImg);
-			//TODO stopping flag when new outImg is different from the previous one
+			//NB: stopping when the candidate is not changing is done in fuseWithVotingPatterns()
 
 			//update the quality threshold
 			++iterationCnt;
@@ -126,6 +145,218 @@ implements LabelFuser<IT,ET>
 	private
 	WeightedVotingLabelFuser<IT,ET> majorityFuser = null;
 
+	private final JaccardBatch jaccards = new JaccardBatch();
+
+
+	/**
+	 * The same as the iterations in fuseMatchingLabels() but the inputs are
+	 * swept only once: the voting pattern (bit 'i' set iff the i-th input has
+	 * its label there) of every voxel is noted, and the iterations then work
+	 * only with the distinct patterns and their voxel counts. A candidate is
+	 * which patterns are over the majority threshold, the intersections with
+	 * the inputs are sums over these patterns, and a pruned input is just
+	 * a bit masked out of the patterns. The iterations stop once the candidate
+	 * is not changing and no further input can be pruned, which is when all
+	 * remaining iterations would produce the same candidate. The 'outImg' is
+	 * expected to be zero (as the fusion algorithms do it), and is written only
+	 * once at the end.
+	 *
+	 * Returns false (and does nothing) if some of the images is not accessible
+	 * directly, or if there are more than 64 inputs (incl. the null ones).
+	 */
+	boolean fuseWithVotingPatterns(final Vector<RandomAccessibleInterval<IT>> inImgs,
+	                               final Vector<Float> inLabels,
+	                               final Vector<Double> inWeights,
+	                               final RandomAccessibleInterval<ET> outImg)
+	{
+		final int noOfInputs = inImgs.size();
+		if (noOfInputs > 64) return false;
+
+		final PrimitiveImgAccess outA = PrimitiveImgAccess.of(outImg);
+		if (outA == null || outA.size() > Integer.MAX_VALUE) return false;
+
+		final PrimitiveImgAccess[] inA = new PrimitiveImgAccess[noOfInputs];
+		final float[] labels = new float[noOfInputs];
+		for (int i = 0; i < noOfInputs; ++i)
+		{
+			if (inImgs.get(i) == null) continue;
+			inA[i] = PrimitiveImgAccess.of(inImgs.get(i));
+			if (inA[i] == null || !inA[i].isOfSameSize(outA)) return false;
+			labels[i] = inLabels.get(i);
+		}
+
+		//the only sweep over the inputs: distinct non-empty patterns with
+		//their voxel counts, and the voxels (in the sweeping order) that have them
+		patterns.clear();
+		noOfVoters = 0;
+		final int len = outA.lineLength();
+		int pos = 0;
+		while (outA.nextLine())
+		{
+			for (PrimitiveImgAccess a : inA) if (a != null) a.nextLine();
+			for (int x = 0; x < len; ++x, ++pos)
+			{
+				long pattern = 0;
+				for (int i = 0; i < noOfInputs; ++i)
+					if (inA[i] != null && inA[i].getFloat(x) == labels[i]) pattern |= 1L << i;
+				if (pattern == 0) continue;
+
+				int u = patterns.indexOf(pattern);
+				if (u < 0) u = patterns.put(pattern, 0);
+				patterns.setValueAt(u, patterns.valueAt(u)+1);
+
+				if (noOfVoters == voterPositions.length) {
+					voterPositions = Arrays.copyOf(voterPositions, 2*noOfVoters);
+					voterPatterns = Arrays.copyOf(voterPatterns, 2*noOfVoters);
+				}
+				voterPositions[noOfVoters] = pos;
+				voterPatterns[noOfVoters++] = u;
+			}
+		}
+		final int noOfPatterns = patterns.size();
+		final long noOfSilentVoxels = outA.size() - noOfVoters;
+
+		//sizes of the inputs' labels
+		final long[] sizes = new long[noOfInputs];
+		for (int u = 0; u < noOfPatterns; ++u)
+			for (int i = 0; i < noOfInputs; ++i)
+				if ((patterns.keyAt(u) & (1L << i)) != 0) sizes[i] += patterns.valueAt(u);
+
+		//initial candidate segment; the last element is for the empty pattern
+		final ET ONE = Views.flatIterable(outImg).firstElement().createVariable();
+		boolean[] candidate = new boolean[noOfPatterns+1];
+		boolean[] newCandidate = new boolean[noOfPatterns+1];
+		findCandidate(inImgs, inWeights, ONE, outA, candidate);
+
+		//own copy of the weights
+		final Vector<Double> myWeights = new Vector<>(inWeights);
+		double currentQualityThreshold = initialQualityThreshold;
+		int iterationCnt = 1;
+
+		while (iterationCnt < maxIters)
+		{
+			long candidateSize = candidate[noOfPatterns] ? noOfSilentVoxels : 0;
+			for (int u = 0; u < noOfPatterns; ++u)
+				if (candidate[u]) candidateSize += patterns.valueAt(u);
+
+			//update weights of the inputs that still pass the quality threshold
+			for (int i=0; i < noOfInputs; ++i)
+			{
+				//consider only available images
+				if (inImgs.get(i) == null) continue;
+
+				//adapt the weight: Jaccard of the input and the candidate
+				long intersection = 0;
+				for (int u = 0; u < noOfPatterns; ++u)
+					if (candidate[u] && (patterns.keyAt(u) & (1L << i)) != 0) intersection += patterns.valueAt(u);
+				final long union = sizes[i] + candidateSize - intersection;
+				final double newWeight = union > 0 ? (double)intersection / (double)union : 0.0;
+				myWeights.set(i,newWeight);
+
+				//filter out low-weighted ones (only after the initial settle-down phase)
+				if (iterationCnt >= noOfNoUpdateIters && newWeight < currentQualityThreshold) inImgs.set(i,null);
+			}
+
+			//DEBUG
+			reportCurrentWeights("it: "+iterationCnt+", thres: "+currentQualityThreshold+" ",
+					inImgs,myWeights);
+
+			//create a new candidate
+			findCandidate(inImgs, myWeights, ONE, outA, newCandidate);
+			final boolean isCandidateUnchanged = Arrays.equals(candidate, newCandidate);
+			final boolean[] tmp = candidate;
+			candidate = newCandidate;
+			newCandidate = tmp;
+
+			//update the quality threshold
+			final boolean wasPruning = iterationCnt >= noOfNoUpdateIters;
+			final double usedQualityThreshold = currentQualityThreshold;
+			++iterationCnt;
+			if (iterationCnt > noOfNoUpdateIters) currentQualityThreshold = Math.max(
+				currentQualityThreshold - stepDownInQualityThreshold*(iterationCnt-noOfNoUpdateIters),
+				minimalQualityThreshold );
+
+			//the same candidate gives the same weights, and these cannot prune anything
+			//with the same or lower threshold, so all next candidates would be the same
+			if (isCandidateUnchanged && wasPruning && currentQualityThreshold <= usedQualityThreshold)
+			{
+				log.info("it: "+iterationCnt+", candidate has converged");
+				break;
+			}
+		}
+
+		//finally, render the candidate
+		outA.resetLines();
+		pos = 0;
+		int v = 0;
+		while (outA.nextLine())
+			for (int x = 0; x < len; ++x, ++pos)
+			{
+				final boolean isSet = v < noOfVoters && voterPositions[v] == pos ?
+						candidate[voterPatterns[v++]] : candidate[noOfPatterns];
+				outA.setInt(x, isSet ? 1 : 0);
+			}
+		return true;
+	}
+
+	/**
+	 * Determines which patterns make it over the majority threshold, given the
+	 * weights of the available inputs. The votes of a pattern are summed up in
+	 * the order of inputs the same way as the WeightedVotingLabelFuser would do
+	 * it in the ET voxel type of the 'outA'.
+	 */
+	private
+	void findCandidate(final Vector<RandomAccessibleInterval<IT>> inImgs,
+	                   final Vector<Double> weights,
+	                   final ET ONE,
+	                   final PrimitiveImgAccess outA,
+	                   final boolean[] candidate)
+	{
+		//NB: this is majorityFuser.minAcceptableWeight (when its weightsScale is 1.0)
+		final double threshold = getMajorityThreshold(inImgs,weights);
+
+		//the weights as the ET represents them, of the available inputs only
+		long mask = 0;
+		for (int i = 0; i < inImgs.size(); ++i)
+		{
+			if (inImgs.get(i) == null) continue;
+			mask |= 1L << i;
+			ONE.setReal(weights.get(i));
+			etWeights[i] = ONE.getRealDouble();
+		}
+
+		final int noOfPatterns = patterns.size();
+		for (int u = 0; u < noOfPatterns; ++u)
+			candidate[u] = getVote(patterns.keyAt(u) & mask, outA) >= threshold;
+		candidate[noOfPatterns] = getVote(0, outA) >= threshold;
+	}
+
+	private
+	float getVote(final long pattern, final PrimitiveImgAccess outA)
+	{
+		switch (outA.kind) {
+		case DOUBLE: {
+			double acc = 0;
+			for (int i = 0; i < 64; ++i) if ((pattern & (1L << i)) != 0) acc += etWeights[i];
+			return (float)acc; }
+		case FLOAT: {
+			float acc = 0;
+			for (int i = 0; i < 64; ++i) if ((pattern & (1L << i)) != 0) acc += (float)etWeights[i];
+			return acc; }
+		default: {
+			long acc = 0;
+			for (int i = 0; i < 64; ++i) if ((pattern & (1L << i)) != 0) acc += (long)etWeights[i];
+			return outA.asStoredFloat(acc); }
+		}
+	}
+
+	//reused between the calls of fuseWithVotingPatterns()
+	private final LongIntMap patterns = new LongIntMap();
+	private int[] voterPositions = new int[1024];
+	private int[] voterPatterns = new int[1024];
+	private int noOfVoters = 0;
+	private final double[] etWeights = new double[64];
+
 	/** Calculates a "0.5 threshold" given non-normalized weights w_i:
 	    Given S = \Sum_i w_i -- a normalization yielding \Sum_i w_i/S = 1.0,
 	    a pixel p is considered majority-voted iff
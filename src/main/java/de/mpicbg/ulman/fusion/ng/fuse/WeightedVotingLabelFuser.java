@@ -27,12 +27,16 @@
  */
 package de.mpicbg.ulman.fusion.ng.fuse;
 
+import net.imglib2.Cursor;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.view.Views;
-import net.imglib2.loops.LoopBuilder;
+import java.util.Arrays;
 import java.util.Vector;
 import de.mpicbg.ulman.fusion.ng.extract.LabelExtractor;
+import de.mpicbg.ulman.fusion.ng.extract.MajorityOverlapBasedLabelExtractor;
+import de.mpicbg.ulman.fusion.util.PrimitiveImgAccess;
+import de.mpicbg.ulman.fusion.util.VoteCountRecords;
 
 import org.scijava.log.Logger;
 import de.mpicbg.ulman.fusion.util.loggers.RestrictedConsoleLogger;
@@ -50,6 +54,36 @@ implements LabelFuser<IT,ET>
 	public
 	double minAcceptableWeight = 0.01f;
 
+	/** the weights (and the minAcceptableWeight) are multiplied with this
+	    before they are used, which allows for fixed-point accumulation in
+	    integer ET types, see {@link de.mpicbg.ulman.fusion.ng.AccumulatorPrecision} */
+	public
+	double weightsScale = 1.0;
+
+	/** if set, the (scaled) votes of every fused segment are added into it
+	    just before the thresholding, under the marker started there beforehand */
+	public
+	VoteCountRecords voteCounts = null;
+
+	/** if not negative, the fusion collects on its way (if it can) the voxels
+	    of the label of this input into the failSafeMask, the fail safe
+	    routines can then insert the label without visiting the input again */
+	protected int failSafeInputIdx = -1;
+	/** voxels in the flat iteration order of the fused ROI, valid only after
+	    the last fusion has set the isFailSafeMaskValid */
+	protected long[] failSafeMask = new long[0];
+	protected boolean isFailSafeMaskValid = false;
+
+	/** makes the failSafeMask ready for the ROI of 'noOfVoxels', returns false if it cannot hold it */
+	protected boolean prepareFailSafeMask(final long noOfVoxels)
+	{
+		if (noOfVoxels > Integer.MAX_VALUE - 63) return false;
+		final int words = (int)((noOfVoxels + 63) >>> 6);
+		if (failSafeMask.length < words) failSafeMask = new long[words];
+		else Arrays.fill(failSafeMask, 0, words, 0);
+		return true;
+	}
+
 	/**
 	 * Input images are cummulated into "a certainty" how strongly a given
 	 * voxel should appear in the final fused segment. The output image is
@@ -64,22 +98,154 @@ implements LabelFuser<IT,ET>
 	                        final Vector<Double> inWeights,
 	                        final RandomAccessibleInterval<ET> outImg)
 	{
+		fuseAndThreshold(inImgs,inLabels, le, inWeights,outImg);
+	}
+
+	/**
+	 * The same as {@link #fuseMatchingLabels(Vector, Vector, LabelExtractor, Vector, RandomAccessibleInterval)},
+	 * and returns true if at least one voxel made it over the threshold, i.e.,
+	 * if the fused segment is not empty.
+	 */
+	protected
+	boolean fuseAndThreshold(final Vector<RandomAccessibleInterval<IT>> inImgs,
+	                         final Vector<Float> inLabels,
+	                         final LabelExtractor<IT,?,ET> le,
+	                         final Vector<Double> inWeights,
+	                         final RandomAccessibleInterval<ET> outImg)
+	{
+		isFailSafeMaskValid = false;
+
 		//the "adding constant" with the weight of an image
 		final ET ONE = Views.flatIterable(outImg).firstElement().createVariable();
 
+		//NB: the single-sweep kernel knows how the MajorityOverlapBasedLabelExtractor
+		//adds the labels, other extractors are given the chance to do it their way
+		if (le instanceof MajorityOverlapBasedLabelExtractor)
+		{
+			final Boolean anythingSet = fuseAndThresholdInOneSweep(inImgs,inLabels, inWeights,outImg, ONE);
+			if (anythingSet != null) return anythingSet;
+		}
+
 		for (int i=0; i < inImgs.size(); ++i)
 		{
 			if (inImgs.get(i) == null) continue;
 
 			//change the "adding constant" to the weight of this image...
-			ONE.setReal(inWeights.get(i));
+			ONE.setReal(inWeights.get(i) * weightsScale);
 			//...and extract this label into a temporary image
 			le.addGivenLabel(inImgs.get(i),inLabels.get(i), outImg,ONE);
 		}
 
 		//finalize the current fused segment
-		LoopBuilder.setImages(outImg).forEachPixel(
-			(a) -> a.setReal( a.getRealFloat() >= minAcceptableWeight ? 1 : 0 ) );
+		final double threshold = minAcceptableWeight * weightsScale;
+		boolean anythingSet = false;
+		int voxelIdx = 0;
+		final Cursor<ET> oC = Views.flatIterable(outImg).cursor();
+		while (oC.hasNext())
+		{
+			final ET a = oC.next();
+			if (voteCounts != null) voteCounts.addVote(voxelIdx++, a.getRealFloat());
+			final boolean isSet = a.getRealFloat() >= threshold;
+			a.setReal( isSet ? 1 : 0 );
+			anythingSet |= isSet;
+		}
+		return anythingSet;
+	}
+
+	/**
+	 * Sweeps all inputs and the output at once, the weighted votes of a voxel are
+	 * accumulated (the same way as the ET type would do it) outside the output
+	 * image, and only the thresholded result is written into it. Returns null if
+	 * some of the images is not accessible directly (and nothing is changed then),
+	 * otherwise returns whether anything made it over the threshold.
+	 */
+	Boolean fuseAndThresholdInOneSweep(final Vector<RandomAccessibleInterval<IT>> inImgs,
+	                                   final Vector<Float> inLabels,
+	                                   final Vector<Double> inWeights,
+	                                   final RandomAccessibleInterval<ET> outImg,
+	                                   final ET ONE)
+	{
+		final PrimitiveImgAccess outA = PrimitiveImgAccess.of(outImg);
+		if (outA == null) return null;
+
+		int noOfInputs = 0;
+		for (RandomAccessibleInterval<IT> img : inImgs) if (img != null) ++noOfInputs;
+
+		final PrimitiveImgAccess[] inA = new PrimitiveImgAccess[noOfInputs];
+		final float[] labels = new float[noOfInputs];
+		final double[] weights = new double[noOfInputs];
+		for (int i = 0, k = 0; i < inImgs.size(); ++i)
+		{
+			if (inImgs.get(i) == null) continue;
+
+			inA[k] = PrimitiveImgAccess.of(inImgs.get(i));
+			if (inA[k] == null || !inA[k].isOfSameSize(outA)) return null;
+			labels[k] = inLabels.get(i);
+			//NB: the weight as the ET represents it
+			ONE.setReal(inWeights.get(i) * weightsScale);
+			weights[k] = ONE.getRealDouble();
+			++k;
+		}
+
+		final float[] fWeights = new float[noOfInputs];
+		final long[] lWeights = new long[noOfInputs];
+		for (int k = 0; k < noOfInputs; ++k) {
+			fWeights[k] = (float)weights[k];
+			lWeights[k] = (long)weights[k];
+		}
+
+		//the input for the fail safe mask, as indexed in the 'inA'
+		int fsK = -1;
+		if (failSafeInputIdx > -1 && failSafeInputIdx < inImgs.size() && inImgs.get(failSafeInputIdx) != null
+				&& prepareFailSafeMask(outA.size()))
+		{
+			fsK = 0;
+			for (int i = 0; i < failSafeInputIdx; ++i) if (inImgs.get(i) != null) ++fsK;
+		}
+		final float fsLabel = fsK > -1 ? labels[fsK] : 0;
+
+		final double threshold = minAcceptableWeight * weightsScale;
+		boolean anythingSet = false;
+		int voxelIdx = 0;
+		final int len = outA.lineLength();
+		while (outA.nextLine())
+		{
+			for (PrimitiveImgAccess a : inA) a.nextLine();
+
+			for (int x = 0; x < len; ++x, ++voxelIdx)
+			{
+				if (fsK > -1 && inA[fsK].getFloat(x) == fsLabel) failSafeMask[voxelIdx >>> 6] |= 1L << voxelIdx;
+
+				final float vote;
+				switch (outA.kind) {
+				case DOUBLE: {
+					double acc = outA.getDouble(x);
+					for (int k = 0; k < noOfInputs; ++k)
+						if (inA[k].getFloat(x) == labels[k]) acc += weights[k];
+					vote = (float)acc;
+					break; }
+				case FLOAT: {
+					float acc = outA.getFloat(x);
+					for (int k = 0; k < noOfInputs; ++k)
+						if (inA[k].getFloat(x) == labels[k]) acc += fWeights[k];
+					vote = acc;
+					break; }
+				default: {
+					//NB: integer types wrap around, which can be done only once at the end
+					long acc = (long)outA.getDouble(x);
+					for (int k = 0; k < noOfInputs; ++k)
+						if (inA[k].getFloat(x) == labels[k]) acc += lWeights[k];
+					vote = outA.asStoredFloat(acc); }
+				}
+
+				if (voteCounts != null) voteCounts.addVote(voxelIdx, vote);
+				final boolean isSet = vote >= threshold;
+				outA.setInt(x, isSet ? 1 : 0);
+				anythingSet |= isSet;
+			}
+		}
+		isFailSafeMaskValid = fsK > -1;
+		return anythingSet;
 	}
 
 	// ---------------- logging ----------------
@@ -27,10 +27,8 @@
  */
 package de.mpicbg.ulman.fusion.ng.fuse;
 
-import net.imglib2.Cursor;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.view.Views;
 import java.util.Vector;
 import de.mpicbg.ulman.fusion.ng.extract.LabelExtractor;
 
@@ -47,7 +45,7 @@ implements LabelFuser<IT,ET>
 	 * This process may fail, e.g., when there is not enough images to accumulate
 	 * over the threshold, which is detected and in which case the "emergency"
 	 * (fail safe) routine is executed.
-	 * Here, the {@link FailSafeInsertor#clearAndInsertBestWeightMarker} is used.
+	 * Here, the {@link FailSafeInsertor#insertBestWeightMarker} is used.
 	 */
 	@Override
 	public
@@ -57,17 +55,16 @@ implements LabelFuser<IT,ET>
 	                        final Vector<Double> inWeights,
 	                        final RandomAccessibleInterval<ET> outImg)
 	{
-		super.fuseMatchingLabels(inImgs,inLabels, le, inWeights,outImg);
-
-		//check if fusion managed to create something
-		boolean isEmpty = true;
-		final Cursor<ET> oC = Views.flatIterable(outImg).cursor();
-		while (isEmpty && oC.hasNext())
-			isEmpty = oC.next().getRealFloat() == 0;
+		//fuse, and learn if fusion managed to create something
+		//NB: the fusion collects the voxels of the best-weight input for the fail safe on its way
+		failSafeInputIdx = FailSafeInsertor.getBestWeightIndex(inImgs, inWeights);
+		final boolean isEmpty = !fuseAndThreshold(inImgs,inLabels, le, inWeights,outImg);
 
 		if (isEmpty)
 		{
-			int idx = FailSafeInsertor.clearAndInsertBestWeightMarker(inImgs,inLabels, le, inWeights,outImg);
+			//NB: the empty fusion has left the outImg all zero
+			int idx = FailSafeInsertor.insertBestWeightMarker(inImgs,inLabels, le, inWeights,outImg,
+					isFailSafeMaskValid ? failSafeMask : null);
 			log.info("the following marker FSed "+(idx == -1 ? "failed: " : "from "+idx+": "));
 		}
 	}
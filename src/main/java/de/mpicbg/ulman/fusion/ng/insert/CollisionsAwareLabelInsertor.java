@@ -27,6 +27,8 @@
  */
 package de.mpicbg.ulman.fusion.ng.insert;
 
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.IntegerType;
@@ -35,32 +37,29 @@ import net.imglib2.img.Img;
 import net.imglib2.view.Views;
 import net.imglib2.loops.LoopBuilder;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 
 import org.scijava.log.Logger;
+import de.mpicbg.ulman.fusion.util.MarkerTable;
+import de.mpicbg.ulman.fusion.util.PrimitiveImgAccess;
 import de.mpicbg.ulman.fusion.util.loggers.RestrictedConsoleLogger;
 
 public class CollisionsAwareLabelInsertor<LT extends IntegerType<LT>, ET extends RealType<ET>>
 implements LabelInsertor<LT,ET>
 {
-	/** number of colliding voxels per marker,
-	    NB: used to determine portion of the colliding volume */
-	public HashMap<Integer,Long> mCollidingVolume = new HashMap<>(100);
+	/** numbers of colliding and non-colliding voxels per marker (used to determine
+	    portion of the colliding volume), and flags of the markers that are in some
+	    collision (MarkerTable.COLLIDING), that are touching output image border
+	    (MarkerTable.BORDERING), and for which not enough of input segments were
+	    found (MarkerTable.NO_MATCHES) */
+	public final MarkerTable markers = new MarkerTable();
 
-	/** number of non-colliding voxels per marker,
-	    NB: used to determine portion of the colliding volume */
-	public HashMap<Integer,Long> mNoCollidingVolume = new HashMap<>(100);
-
-	/** set of markers that are in some collision */
-	public HashSet<Integer> mColliding = new HashSet<>(100);
-
-	/** set of markers that are touching output image border */
-	public HashSet<Integer> mBordering = new HashSet<>(100);
-
-	/** set of markers for which not enough of input segments were found */
-	public HashSet<Integer> mNoMatches = new HashSet<>(100);
+	/** ROIs of the output image in which the markers were inserted,
+	    NB: markers have no voxels outside their ROIs */
+	protected HashMap<Integer,Interval> mInsertedROI = new HashMap<>(100);
 
 	/** special label for the voxels in the "collision area" of more labels */
 	protected int INTERSECTION;
@@ -73,12 +72,8 @@ implements LabelInsertor<LT,ET>
 	public
 	void initialize(final Img<LT> templateImg)
 	{
-		mCollidingVolume.clear();
-		mNoCollidingVolume.clear();
-
-		mColliding.clear();
-		mBordering.clear();
-		mNoMatches.clear();
+		markers.clear();
+		mInsertedROI.clear();
 
 		INTERSECTION = (int)(templateImg.firstElement().getMaxValue());
 	}
@@ -93,50 +88,107 @@ implements LabelInsertor<LT,ET>
 		//check colliding markers and decide if to be removed or not
 		//and fill a histogram array at the same time
 		final int[] collHistogram = new int[11];
-		for (Iterator<Integer> it = mCollidingVolume.keySet().iterator(); it.hasNext(); )
+		for (int idx = 0; idx < markers.size(); ++idx)
 		{
-			final int marker = it.next();
+			if (!markers.hasVolumesAt(idx)) continue;
 
 			//get proportion of colliding volume from the whole marker volume
-			float collRatio = (float)mCollidingVolume.get(marker);
-			collRatio /= (float)(mNoCollidingVolume.get(marker)+mCollidingVolume.get(marker));
+			float collRatio = (float)markers.collidingVolumeAt(idx);
+			collRatio /= (float)(markers.noCollidingVolumeAt(idx)+markers.collidingVolumeAt(idx));
 
 			//decide if to mark the marker for removal
 			if ( (collRatio > removeMarkersCollisionThreshold)
-			  && (!mBordering.contains(marker)) ) mColliding.add(marker);
+			  && (!markers.hasFlagAt(idx,MarkerTable.BORDERING)) ) markers.setFlagAt(idx,MarkerTable.COLLIDING);
 			  //NB: should not be in two classes simultaneously
 
 			//update the histogram
-			if (!mNoMatches.contains(marker))
+			if (!markers.hasFlagAt(idx,MarkerTable.NO_MATCHES))
 				collHistogram[(int)(collRatio*10.f)]++;
 		}
 
 		//jobs: remove border-touching cells
 		//jobs: remove colliding cells
-		//sweep the output image and do the jobs
-		LoopBuilder.setImages(outImg).forEachPixel(
-			(a) -> {
-				final int label = a.getInteger();
-				if (label == INTERSECTION)
-				{
-					a.setZero();
-					log.trace("cleaning: collision intersection");
-				}
-				else if (mColliding.contains(label))
-				{
-					a.setZero();
-					log.trace("cleaning: rest of a colliding marker");
-				}
-				else if (removeMarkersAtBoundary && mBordering.contains(label))
-				{
-					a.setZero();
-					log.trace("cleaning: marker at boundary");
-				}
-			} );
+		//sweep the output image, or only the ROIs of the affected markers, and do the jobs
+		//NB: the collision intersection is within the ROIs of the markers in collision
+		final List<Integer> affectedMarkers = new ArrayList<>();
+		for (int idx = 0; idx < markers.size(); ++idx)
+			if (markers.collidingVolumeAt(idx) > 0 || markers.hasFlagAt(idx,MarkerTable.COLLIDING)
+			  || (removeMarkersAtBoundary && markers.hasFlagAt(idx,MarkerTable.BORDERING)))
+				affectedMarkers.add(markers.labelAt(idx));
+
+		final List<Interval> rois = insertedROIsOf(affectedMarkers, outImg);
+		if (rois == null)
+			LoopBuilder.setImages(outImg).forEachPixel(
+				(a) -> cleanVoxel(a, removeMarkersAtBoundary) );
+		else
+			for (Interval roi : rois)
+				LoopBuilder.setImages(Views.interval(outImg,roi)).forEachPixel(
+					(a) -> cleanVoxel(a, removeMarkersAtBoundary) );
 
 		return collHistogram;
 	}
 
+	private
+	void cleanVoxel(final LT a, final boolean removeMarkersAtBoundary)
+	{
+		final int label = a.getInteger();
+		if (label == INTERSECTION)
+		{
+			a.setZero();
+			log.trace("cleaning: collision intersection");
+		}
+		else if (markers.hasAnyFlag(label,MarkerTable.COLLIDING))
+		{
+			a.setZero();
+			log.trace("cleaning: rest of a colliding marker");
+		}
+		else if (removeMarkersAtBoundary && markers.hasAnyFlag(label,MarkerTable.BORDERING))
+		{
+			a.setZero();
+			log.trace("cleaning: marker at boundary");
+		}
+	}
+
+	/**
+	 * Returns the ROIs in which the 'affectedMarkers' were inserted, or null when the 'img'
+	 * shall be rather swept whole: when the ROIs together are not smaller than the
+	 * 'img', or when some marker has voxels but its ROI is not known.
+	 */
+	List<Interval> insertedROIsOf(final Collection<Integer> affectedMarkers, final Interval img)
+	{
+		long imgSize = 1;
+		for (int d = 0; d < img.numDimensions(); ++d) imgSize *= img.dimension(d);
+
+		final List<Interval> rois = new ArrayList<>(affectedMarkers.size());
+		long roisSize = 0;
+		for (int marker : affectedMarkers)
+		{
+			final Interval roi = mInsertedROI.get(marker);
+			if (roi == null)
+			{
+				if (markers.noCollidingVolumeOf(marker) > 0 || markers.collidingVolumeOf(marker) > 0) return null;
+				continue; //NB: the marker has no voxels at all
+			}
+
+			long roiSize = 1;
+			for (int d = 0; d < roi.numDimensions(); ++d) roiSize *= roi.dimension(d);
+			roisSize += roiSize;
+			if (roisSize >= imgSize) return null;
+			rois.add(roi);
+		}
+		return rois;
+	}
+
+	/** notes the ROI of the output image in which the 'marker' is being inserted */
+	void registerInsertedROI(final RandomAccessibleInterval<LT> outResultImg, final int marker)
+	{
+		final long[] min = new long[outResultImg.numDimensions()];
+		final long[] max = new long[outResultImg.numDimensions()];
+		outResultImg.min(min);
+		outResultImg.max(max);
+		mInsertedROI.put(marker, new FinalInterval(min,max));
+	}
+
 
 	/** status-less wrapper around this.insertLabel() */
 	public
@@ -162,6 +214,16 @@ implements LabelInsertor<LT,ET>
 	                 final InsertionStatus status)
 	{
 		status.clear();
+		registerInsertedROI(outResultImg, outMarker);
+
+		//fast path for images with directly accessible voxel arrays
+		final PrimitiveImgAccess tmpA = PrimitiveImgAccess.of(inSingleLabelImg);
+		final PrimitiveImgAccess outA = tmpA != null ? PrimitiveImgAccess.of(outResultImg) : null;
+		if (outA != null && tmpA.isOfSameSize(outA))
+		{
+			insertLabel(tmpA,outA, outResultImg,outMarker,status);
+			return;
+		}
 
 		//now, threshold the tmp image (provided we have written there something
 		//at all) and store it with the appropriate label in the output image
@@ -200,8 +262,7 @@ implements LabelInsertor<LT,ET>
 
 						//update also stats of the other guy
 						//because he was not intersecting here previously
-						mNoCollidingVolume.put(otherMarker,mNoCollidingVolume.get(otherMarker)-1);
-						mCollidingVolume.put(otherMarker,mCollidingVolume.get(otherMarker)+1);
+						markers.addVolumes(otherMarker, +1,-1);
 					}
 				}
 
@@ -212,8 +273,75 @@ implements LabelInsertor<LT,ET>
 			}
 		}
 
-		mCollidingVolume.put(  outMarker,status.collidingVolume);
-		mNoCollidingVolume.put(outMarker,status.notCollidingVolume);
+		markers.setVolumes(outMarker, status.collidingVolume,status.notCollidingVolume);
+	}
+
+	/**
+	 * The same as {@link #insertLabel(RandomAccessibleInterval, RandomAccessibleInterval, int, InsertionStatus)}
+	 * but working directly on the voxel arrays, the voxels are visited in the same order.
+	 */
+	void insertLabel(final PrimitiveImgAccess tmpA,
+	                 final PrimitiveImgAccess outA,
+	                 final RandomAccessibleInterval<LT> outResultImg,
+	                 final int outMarker,
+	                 final InsertionStatus status)
+	{
+		final int dim = outResultImg.numDimensions();
+		final int len = outA.lineLength();
+		final long xMin = outResultImg.min(0);
+		final long xMax = outResultImg.max(0);
+
+		while (tmpA.nextLine() && outA.nextLine())
+		{
+			//is the whole line at the image boundary?
+			boolean lineAtBorder = false;
+			for (int d = 1; d < dim && !lineAtBorder; ++d)
+				if ( outA.getLinePosition(d) == outResultImg.min(d)
+				  || outA.getLinePosition(d) == outResultImg.max(d) ) lineAtBorder = true;
+
+			for (int x = 0; x < len; ++x)
+			{
+				if (tmpA.getFloat(x) > 0)
+				{
+					//voxel to be inserted into the output final label mask
+					status.foundAtAll = true;
+
+					final int otherMarker = outA.getInt(x);
+					if (otherMarker == 0)
+					{
+						//inserting into an unoccupied voxel
+						outA.setInt(x, outMarker);
+						status.notCollidingVolume++;
+					}
+					else
+					{
+						//collision detected
+						outA.setInt(x, INTERSECTION);
+						status.collidingVolume++;
+						status.inCollision = true;
+
+						outA.localize(x, pos);
+						registerPxInCollision(pos, outMarker);
+
+						if (otherMarker != INTERSECTION)
+						{
+							status.localColliders.add(otherMarker);
+							registerPxInCollision(pos, otherMarker);
+
+							//update also stats of the other guy
+							//because he was not intersecting here previously
+							markers.addVolumes(otherMarker, +1,-1);
+						}
+					}
+
+					//check if we are at the image boundary
+					final long px = outA.getLinePosition(0) + x;
+					if (lineAtBorder || px == xMin || px == xMax) status.atBorder = true;
+				}
+			}
+		}
+
+		markers.setVolumes(outMarker, status.collidingVolume,status.notCollidingVolume);
 	}
 
 	/**
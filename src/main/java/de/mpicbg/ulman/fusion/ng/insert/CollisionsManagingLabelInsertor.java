@@ -31,102 +31,51 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.view.Views;
 import de.mpicbg.ulman.fusion.util.ReusableMemory;
+import de.mpicbg.ulman.fusion.util.CollisionVoxels;
+import de.mpicbg.ulman.fusion.util.CollisionResolver;
+import de.mpicbg.ulman.fusion.util.MarkerTable;
+import de.mpicbg.ulman.fusion.util.PrimitiveImgAccess;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class CollisionsManagingLabelInsertor<LT extends IntegerType<LT>, ET extends RealType<ET>>
 extends CollisionsAwareLabelInsertor<LT,ET>
 implements LabelInsertor<LT,ET>
 {
-	static public class PxCoord implements Comparator<PxCoord>
-	{
-		PxCoord(int... xyz)
-		{
-			this.x = xyz[0];
-			this.y = xyz[1];
-			this.z = xyz[2];
-		}
-		PxCoord(int color, int... xyz)
-		{
-			this.color = color;
-			this.x = xyz[0];
-			this.y = xyz[1];
-			this.z = xyz[2];
-		}
-
-		int x, y, z;
-
-		/** assuming pixels are organized row-major in big memory (1D) buffer,
-		    this compares how far are two pixels away from the [0,0,0] in the buffer */
-		@Override
-		public int compare(PxCoord p1, PxCoord p2)
-		{
-			int delta = p1.z - p2.z;
-			if (delta == 0)
-			{
-				delta = p1.y - p2.y;
-				if (delta == 0)
-					delta = p1.x - p2.x;
-			}
-			return delta;
-		}
-
-		/** marker color finally decided to be used for this pixel */
-		int color = -1;
-
-		/** list of markers/labels that wanted to be on this pixel */
-		final private int[] claimingLabels = new int[10];
-		//
-		private int nextAvail = 0;
-		//
-		void addClaimingLabel(final int label) {
-			if (containsClaimingLabel(label)) return;
-			claimingLabels[nextAvail++] = label;
-			if (nextAvail > 8) //TODO: finish/clear up this test
-				throw new RuntimeException("Claiming labels buffer close to overfill...");
-		}
-		boolean containsClaimingLabel(final int label) {
-			for (int i = 0; i < nextAvail; ++i)
-				if (claimingLabels[i] == label) return true;
-			return false;
-		}
-	}
-
 	@Override
 	void registerPxInCollision(final int[] pos, final int claimer)
 	{
-		//find coinciding pixel
-		PxCoord p;
+		pxInINTERSECTION.addClaimer(offsetOf(pos), claimer);
+	}
 
-		final long index = pos[2]*xyPlane + pos[1]*xLine + pos[0];
-		final int pxCoordIdx = coordsCatalogue.getOrDefault(index,-1);
+	/** voxels in the collision area together with their claimers */
+	CollisionVoxels pxInINTERSECTION;
+	/** voxels (of the colliding markers) removed from the output image until
+	    the collision area is resolved, with their original labels as colours */
+	CollisionVoxels pxTemporarilyHidden;
 
-		if (pxCoordIdx > -1)
-		{
-			//found coinciding pixel, add another claimer
-			p = pxInINTERSECTION.get( pxCoordIdx );
-			p.addClaimingLabel( claimer );
-			//TODO remove debug test
-			if (p.x != pos[0] || p.y != pos[1] || p.z != pos[2])
-				log.warn("CM WARNING: pxInINTERSECTION map refers to wrong PxCoord!");
-			return;
-		}
+	//image position is serialized into an offset/index as z*xyPlane + y*xLine + x
+	long xLine=0,xyPlane=0;
 
-		//not found, add a brand new pixel with its claimer
-		p = new PxCoord(pos);
-		p.addClaimingLabel( claimer );
-		pxInINTERSECTION.add( p );
-		coordsCatalogue.put(index, pxInINTERSECTION.size()-1);
+	long offsetOf(final int[] pos)
+	{
+		return pos[2]*xyPlane + pos[1]*xLine + pos[0];
 	}
 
-	List<PxCoord> pxInINTERSECTION;
-	List<PxCoord> pxTemporarilyHidden;
-
-	//maps image position (serialized into an offset/index) into index in pxInINTERSECTION
-	Map<Long,Integer> coordsCatalogue;
-	long xLine=0,xyPlane=0;
+	void positionOf(final long offset, final int[] pos)
+	{
+		pos[2] = (int)(offset / xyPlane);
+		final long inPlane = offset - pos[2]*xyPlane;
+		pos[1] = (int)(inPlane / xLine);
+		pos[0] = (int)(inPlane - pos[1]*xLine);
+	}
 
 	@Override
 	public
@@ -136,15 +85,13 @@ implements LabelInsertor<LT,ET>
 
 		final ReusableMemory<LT, ?> MEMORY = ReusableMemory.getInstanceFor(templateImg, templateImg.firstElement());
 
-		pxInINTERSECTION = MEMORY.getInteresectionPx( ReusableMemory.getThreadId() );
-		pxTemporarilyHidden = MEMORY.getTempHiddenPx( ReusableMemory.getThreadId() );
-		log.trace("CM: borrowed collision vector came with "+pxInINTERSECTION.size()+" pixels from previous run");
+		pxInINTERSECTION = MEMORY.getCollisionVoxels( ReusableMemory.getThreadId() );
+		pxTemporarilyHidden = MEMORY.getTempHiddenVoxels( ReusableMemory.getThreadId() );
+		log.trace("CM: borrowed collision store came with "+pxInINTERSECTION.size()+" pixels from previous run");
 		pxInINTERSECTION.clear();
 		pxTemporarilyHidden.clear();
-		log.warn("CM: borrowed collision vector now at capacity "+((Vector<?>)pxInINTERSECTION).capacity());
+		log.warn("CM: borrowed collision store now at capacity "+pxInINTERSECTION.capacity());
 
-		coordsCatalogue = MEMORY.getCatalogue( ReusableMemory.getThreadId() );
-		coordsCatalogue.clear();
 		xLine = templateImg.dimension(0);
 		xyPlane = xLine * templateImg.dimension(1);
 		log.warn("CM: xLine = "+xLine+", xyPlane = "+xyPlane);
@@ -160,62 +107,66 @@ implements LabelInsertor<LT,ET>
 		//check colliding markers and decide if to be removed or not
 		//and fill a histogram array at the same time
 		final int[] collHistogram = new int[11];
-		for (int marker : mCollidingVolume.keySet())
+		for (int idx = 0; idx < markers.size(); ++idx)
 		{
+			if (!markers.hasVolumesAt(idx)) continue;
+
 			//get proportion of colliding volume from the whole marker volume
-			float collRatio = (float)mCollidingVolume.get(marker);
-			collRatio /= (float)(mNoCollidingVolume.get(marker)+mCollidingVolume.get(marker));
+			float collRatio = (float)markers.collidingVolumeAt(idx);
+			collRatio /= (float)(markers.noCollidingVolumeAt(idx)+markers.collidingVolumeAt(idx));
 
 			//decide if to mark the marker for removal
 			//NB: should not be in two classes simultaneously
-			if ( (collRatio > removeMarkersCollisionThreshold) && (!mBordering.contains(marker)) )
+			if ( (collRatio > removeMarkersCollisionThreshold) && (!markers.hasFlagAt(idx,MarkerTable.BORDERING)) )
 			{
-				mColliding.add(marker);
+				markers.setFlagAt(idx,MarkerTable.COLLIDING);
 			}
 
 			//update the histogram
-			if (!mNoMatches.contains(marker))
+			if (!markers.hasFlagAt(idx,MarkerTable.NO_MATCHES))
 				collHistogram[(int)(collRatio*10.f)]++;
 		}
 
+		//sort to have the list of coords memory(cache)-friendly
+		pxInINTERSECTION.sortByOffsets();
+
 		//job #1: remove border-touching cells
-		//job #3: insert TRA markers for those in mColliding
-		//job #4: move pixels from mColliding to pxTemporarilyHidden
-		//sweep the output image and do the jobs
-		final Cursor<LT> oC = outImg.localizingCursor();
-		final Cursor<LT> mC = markerImg.cursor();
-		//NB: we have to be sweeping explicitly (w/o LoopBuilder) because we need to know
-		//    coords where we are (and we gonna be storing them in the aux array 'pos')
-		//NB: assumes that markerImg was created from outImg and both have, thus, the same iteration order
-		while (oC.hasNext())
+		//job #3: insert TRA markers for the colliding markers
+		//job #4: move pixels of the colliding markers to pxTemporarilyHidden
+		//sweep the ROIs of the markers of jobs #1 and #4 (or the whole output image),
+		//and the pixels in collision for the job #3
+		final List<Integer> affectedMarkers = new ArrayList<>();
+		for (int idx = 0; idx < markers.size(); ++idx)
+			if (markers.hasFlagAt(idx,MarkerTable.COLLIDING)
+			  || (removeMarkersAtBoundary && markers.hasFlagAt(idx,MarkerTable.BORDERING)))
+				affectedMarkers.add(markers.labelAt(idx));
+		final List<Interval> rois = insertedROIsOf(affectedMarkers, outImg);
+		if (rois == null)
 		{
-			final LT o = oC.next();
-			final LT m = mC.next();
-			final int label = o.getInteger();
-			if (removeMarkersAtBoundary && mBordering.contains(label))
-			{
-				o.setZero(); //job #1
-			}
-			else if (label == INTERSECTION)
-			{
-				final int mLabel = m.getInteger();
-				if (mLabel > 0 && mColliding.contains(mLabel)) o.setReal(mLabel); //job #3
-			}
-			else if (mColliding.contains(label))
+			sweepAndHide(outImg, markerImg.randomAccess(), removeMarkersAtBoundary);
+		}
+		else
+		{
+			//NB: the job #4 must not see the pixels inserted with the job #3, and both jobs
+			//    are idempotent when the ROIs overlap (the hidden pixels become zero)
+			for (Interval roi : rois)
+				sweepAndHide(Views.interval(outImg,roi), null, removeMarkersAtBoundary);
+
+			final RandomAccess<LT> oRA = outImg.randomAccess();
+			final RandomAccess<LT> mRA = markerImg.randomAccess();
+			for (int i = 0; i < pxInINTERSECTION.size(); ++i)
 			{
-				oC.localize(pos);
-				pxTemporarilyHidden.add( new PxCoord(label, pos) ); //job #4
-				o.setZero();                                        //job #4
+				positionOf(pxInINTERSECTION.offsetAt(i), pos);
+				oRA.setPosition(pos);
+				if (oRA.get().getInteger() != INTERSECTION) continue;
+				mRA.setPosition(pos);
+				final int mLabel = mRA.get().getInteger();
+				if (mLabel > 0 && markers.hasAnyFlag(mLabel,MarkerTable.COLLIDING)) oRA.get().setReal(mLabel); //job #3
 			}
 		}
 
-		//sort to have the list of coords memory(cache)-friendly
-		if (pxInINTERSECTION.size() > 0)
-			pxInINTERSECTION.sort( pxInINTERSECTION.get(0) );
-
 		log.trace("CM: grabbing pixel coords: "+pxInINTERSECTION.size()+" + "+pxTemporarilyHidden.size());
 		log.info("CM: num output pixels in collision " + pxInINTERSECTION.size());
-		log.info("CM: num collision places " + coordsCatalogue.size());
 		log.info("CM: num temporarily hidden pixels  " + pxTemporarilyHidden.size());
 		//debug img:
 		//SimplifiedIO.saveImage(outImg,"/temp/X_before.tif");
@@ -225,46 +176,34 @@ implements LabelInsertor<LT,ET>
 		//eroding it only with its claimers that are neighboring to it
 		//
 		//preparations:
-		final RandomAccess<LT> oRA = outImg.randomAccess();
-		final int[] posMax = new int[3]; //note, it comes zeroed
-		for (int d = 0; d < outImg.numDimensions() && d < posMax.length; ++d)
-			posMax[d] = (int)outImg.dimension(d) -1; //to make it a max legal coord
+		final CollisionResolver resolver = createResolver(outImg);
+		final long[] imgDims = new long[outImg.numDimensions()];
+		outImg.dimensions(imgDims);
+		resolver.reset(pxInINTERSECTION, imgDims);
+		//NB: the parts write concurrently into the output, which is safe only with the direct access to its voxel arrays
+		if (threadsCount > 1 && pxInINTERSECTION.size() >= MIN_VOXELS_TO_SPLIT
+		  && PrimitiveImgAccess.of(outImg) != null)
+		{
+			final int parts = resolver.splitIntoParts(4*threadsCount, () -> createResolver(outImg));
+			log.info("CM: collision area split into "+parts+" independent parts");
+		}
 		//
 		//do as long as all collision pixels are resolved,
 		//resolved means that its label is determined, or
 		//we cannot determine it under the current circumstances
-		int lastSize = pxInINTERSECTION.size() +1;
-		int safetyCounter = 100;
-		while (pxInINTERSECTION.size() > 0 && pxInINTERSECTION.size() != lastSize && --safetyCounter > 0)
-		{
-			//debug:
-			//log.trace("CM: "+cnt+": Eroding collision zone of size "+pxInINTERSECTION.size());
-
-			lastSize = pxInINTERSECTION.size();
-			erodeCollisionRegion(oRA, posMax);
-
-			//debug img:
-			//SimplifiedIO.saveImage(outImg, String.format("/temp/X_round%d.tif",++cnt) );
-		}
+		resolver.resolve(99, threadsPool);
 
 		// return back the temporarily hidden pixels
-		for (PxCoord px : pxTemporarilyHidden)
+		for (int i = 0; i < pxTemporarilyHidden.size(); ++i)
 		{
-			pos[0] = px.x;
-			pos[1] = px.y;
-			pos[2] = px.z;
-			oRA.setPosition(pos);
-			oRA.get().setReal( px.color );
+			resolver.changeLabel(pxTemporarilyHidden.offsetAt(i), pxTemporarilyHidden.colourAt(i));
 		}
 
-		//sometimes, when mColliding-label's TRA marker was outside the pxInINTERSECTION,
+		//sometimes, when a colliding marker's TRA marker was outside the pxInINTERSECTION,
 		//the "erosion" of INTERSECTION region stalled and we have to restart it now --
 		//now after the pxTemporarilyHidden pixels are back
-		safetyCounter = 100;
-		while (pxInINTERSECTION.size() > 0 && --safetyCounter > 0)
-		{
-			erodeCollisionRegion(oRA, posMax);
-		}
+		resolver.resolve(99, threadsPool);
+		pxInINTERSECTION.removeColoured();
 
 		if (pxInINTERSECTION.size() > 0)
 			log.warn("CM WARNING: Collisions resolving failed on "+pxInINTERSECTION.size()+" voxels");
@@ -276,50 +215,93 @@ implements LabelInsertor<LT,ET>
 		return collHistogram;
 	}
 
+	/** does the jobs #1 and #4 within the 'img', and the job #3 too if 'markerRA' is given */
 	private
-	void erodeCollisionRegion(RandomAccess<LT> oRA, int[] posMax)
+	void sweepAndHide(final RandomAccessibleInterval<LT> img, final RandomAccess<LT> markerRA,
+	                  final boolean removeMarkersAtBoundary)
 	{
-		//erosion in two loops:
-		//  first, determine pixels and store them aside so they don't influence the rest of the loop
-		//  second, move the determined pixels into the output image
-		Iterator<PxCoord> pxIt = pxInINTERSECTION.iterator();
-		while (pxIt.hasNext())
+		final Cursor<LT> oC = Views.flatIterable(img).localizingCursor();
+		while (oC.hasNext())
 		{
-			PxCoord px = pxIt.next();
-			//look around pxPos to find first pixel from claimers, if at all
-			for (int[] posDelta : posDeltas)
+			final LT o = oC.next();
+			final int label = o.getInteger();
+			if (removeMarkersAtBoundary && markers.hasAnyFlag(label,MarkerTable.BORDERING))
 			{
-				pos[0] = Math.min( Math.max(px.x + posDelta[0],0) , posMax[0] );
-				pos[1] = Math.min( Math.max(px.y + posDelta[1],0) , posMax[1] );
-				pos[2] = Math.min( Math.max(px.z + posDelta[2],0) , posMax[2] );
-				oRA.setPosition(pos);
-				final int surroundingLabel = oRA.get().getInteger();
-				if ( px.containsClaimingLabel(surroundingLabel) )
-				{
-					px.color = surroundingLabel;
-					break;
-				}
+				o.setZero(); //job #1
 			}
-		}
-		pxIt = pxInINTERSECTION.iterator();
-		while (pxIt.hasNext())
-		{
-			PxCoord px = pxIt.next();
-			//is the pixel determined already?
-			if (px.color > -1)
+			else if (label == INTERSECTION)
 			{
-				pos[0] = px.x;
-				pos[1] = px.y;
-				pos[2] = px.z;
-				oRA.setPosition(pos);
-				oRA.get().setReal( px.color );
-				pxIt.remove();
+				if (markerRA == null) continue;
+				markerRA.setPosition(oC);
+				final int mLabel = markerRA.get().getInteger();
+				if (mLabel > 0 && markers.hasAnyFlag(mLabel,MarkerTable.COLLIDING)) o.setReal(mLabel); //job #3
+			}
+			else if (markers.hasAnyFlag(label,MarkerTable.COLLIDING))
+			{
+				oC.localize(pos);
+				pxTemporarilyHidden.append( offsetOf(pos), label ); //job #4
+				o.setZero();                                        //job #4
 			}
 		}
 	}
 
-	final static int[][] posDeltas = new int[][] {
-			{-1,-1,-1},{0,-1,-1},{1,-1,-1},  {-1,0,-1},{0,0,-1},{1,0,-1},  {-1,+1,-1},{0,+1,-1},{1,+1,-1},
-			{-1,-1, 0},{0,-1, 0},{1,-1, 0},  {-1,0, 0},         {1,0, 0},  {-1,+1, 0},{0,+1, 0},{1,+1, 0},
-			{-1,-1,+1},{0,-1,+1},{1,-1,+1},  {-1,0,-1},{0,0,+1},{1,0,+1},  {-1,+1,+1},{0,+1,+1},{1,+1,+1} };
+	/** returns the resolver that accesses directly the voxel arrays of the 'outImg', if possible */
+	private
+	CollisionResolver createResolver(final Img<LT> outImg)
+	{
+		final PrimitiveImgAccess outA = PrimitiveImgAccess.of(outImg);
+		if (outA != null)
+			return new CollisionResolver() {
+				@Override
+				protected int getLabel(final long offset)
+				{
+					outA.setOffset(offset);
+					return outA.getInt(0);
+				}
+				@Override
+				protected void setLabel(final long offset, final int label)
+				{
+					outA.setOffset(offset);
+					outA.setInt(0, label);
+				} };
+
+		final RandomAccess<LT> oRA = outImg.randomAccess();
+		return new CollisionResolver() {
+			final int[] raPos = new int[3];
+			@Override
+			protected int getLabel(final long offset)
+			{
+				positionOf(offset, raPos);
+				oRA.setPosition(raPos);
+				return oRA.get().getInteger();
+			}
+			@Override
+			protected void setLabel(final long offset, final int label)
+			{
+				positionOf(offset, raPos);
+				oRA.setPosition(raPos);
+				oRA.get().setInteger(label);
+			} };
+	}
+
+	/** collision areas smaller than this are always resolved serially */
+	static final int MIN_VOXELS_TO_SPLIT = 10000;
+
+	private int threadsCount = 1;
+	private ForkJoinPool threadsPool = null;
+
+	/** sets how many threads resolve the independent parts of the collision area,
+	    1 means serially in the calling thread */
+	public
+	void setThreadsCount(final int threadsCount)
+	{
+		if (threadsPool != null) threadsPool.shutdown();
+		this.threadsCount = threadsCount;
+		this.threadsPool = threadsCount > 1 ? new ForkJoinPool(threadsCount) : null;
+	}
+	public
+	int getThreadsCount()
+	{
+		return threadsCount;
+	}
 }
@@ -28,6 +28,7 @@
 package de.mpicbg.ulman.fusion.ng.postprocess;
 
 import de.mpicbg.ulman.fusion.ng.AbstractWeightedVotingRoisFusionAlgorithm;
+import de.mpicbg.ulman.fusion.util.PrimitiveImgAccess;
 import de.mpicbg.ulman.fusion.util.ReusableMemory;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.IntegerType;
@@ -98,12 +99,30 @@ implements LabelPostprocessor<LT>
 		final IntervalView<LT> ccaOutView = Views.interval(ccaOutImg,ROI);
 
 		//copy out only the currently examined marker
-		LoopBuilder.setImages(imgView,ccaInView)
-				.forEachPixel( (s,t) -> t.setInteger(s.getInteger() == markerValue ? 1 : 0) );
+		final PrimitiveImgAccess imgA = PrimitiveImgAccess.of(imgView);
+		final PrimitiveImgAccess ccaInA = imgA != null ? PrimitiveImgAccess.of(ccaInView) : null;
+		final PrimitiveImgAccess ccaOutA = ccaInA != null ? PrimitiveImgAccess.of(ccaOutView) : null;
+		if (ccaOutA != null && imgA.isOfSameSize(ccaInA) && imgA.isOfSameSize(ccaOutA))
+		{
+			//fast path for images with directly accessible voxel arrays,
+			//NB: clears also the ccaOutView, see below
+			final int len = imgA.lineLength();
+			while (imgA.nextLine() && ccaInA.nextLine() && ccaOutA.nextLine())
+				for (int x = 0; x < len; ++x)
+				{
+					ccaInA.setInt(x, imgA.getInt(x) == markerValue ? 1 : 0);
+					ccaOutA.setInt(x, 0);
+				}
+		}
+		else
+		{
+			LoopBuilder.setImages(imgView,ccaInView)
+					.forEachPixel( (s,t) -> t.setInteger(s.getInteger() == markerValue ? 1 : 0) );
 
-		//since the View comes from one shared large image, there might be results of CCA for other markers,
-		//we better clear it before (so that the CCA function cannot be fooled by some previous result)
-		LoopBuilder.setImages(ccaOutView).forEachPixel(SetZero::setZero);
+			//since the View comes from one shared large image, there might be results of CCA for other markers,
+			//we better clear it before (so that the CCA function cannot be fooled by some previous result)
+			LoopBuilder.setImages(ccaOutView).forEachPixel(SetZero::setZero);
+		}
 
 		//CCA to this View
 		final int noOfLabels
@@ -0,0 +1,138 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.util.Arrays;
+
+/**
+ * Counts flat (unit) votes per position, for many positions at once: the votes
+ * come as bit masks (64 positions per long, bit 'b' of the word 'b/64'), and
+ * the counts are kept "bitsliced", that is, as a few bit planes where the p-th
+ * plane holds the p-th bit of the counts of all positions. Adding a mask is then
+ * a ripple-carry addition over whole words, and comparing the counts against
+ * a threshold is also done over whole words, followed by a popcount.
+ *
+ * The counter is meant to be reset() and reused, which causes no allocations
+ * once the internal arrays have grown to the needed sizes.
+ */
+public class BitslicedVoteCounter
+{
+	/** returns how many longs are needed to hold 'noOfBits' bits */
+	public static
+	int wordsFor(final int noOfBits)
+	{ return (noOfBits + 63) >>> 6; }
+
+	private long[] planes = new long[0];
+	private long[] mask = new long[0];
+	private int noOfPlanes = 0;
+	private int noOfWords = 0;
+	private int noOfBits = 0;
+
+	/** prepares for counting up to 'maxVotes' votes for each of 'noOfBits' positions,
+	    all counts are set to zero, the mask() is cleared too */
+	public void reset(final int noOfBits, final int maxVotes)
+	{
+		this.noOfBits = noOfBits;
+		noOfWords = wordsFor(noOfBits);
+		noOfPlanes = Math.max(1, 32 - Integer.numberOfLeadingZeros(maxVotes));
+
+		final int size = noOfPlanes * noOfWords;
+		if (planes.length < size) planes = new long[size];
+		else Arrays.fill(planes, 0, size, 0);
+
+		if (mask.length < noOfWords) mask = new long[noOfWords];
+		else clearMask();
+	}
+
+	/** returns the number of positions */
+	public int noOfBits()
+	{ return noOfBits; }
+
+	/** returns the number of longs used for the positions */
+	public int noOfWords()
+	{ return noOfWords; }
+
+	/** returns the reusable mask of noOfWords() longs, to be filled and added with addMask() */
+	public long[] mask()
+	{ return mask; }
+
+	/** zeroes the mask() */
+	public void clearMask()
+	{ Arrays.fill(mask, 0, noOfWords, 0); }
+
+	/** adds one vote for every position set in the mask(), the counts of positions
+	    must not exceed the 'maxVotes' given with the last reset() */
+	public void addMask()
+	{ add(mask); }
+
+	/** adds one vote for every position set in the 'votes' (of at least noOfWords() longs) */
+	public void add(final long[] votes)
+	{
+		final int size = noOfPlanes * noOfWords;
+		for (int w = 0; w < noOfWords; ++w)
+		{
+			long carry = votes[w];
+			for (int p = w; carry != 0 && p < size; p += noOfWords)
+			{
+				final long t = planes[p] & carry;
+				planes[p] ^= carry;
+				carry = t;
+			}
+		}
+	}
+
+	/** returns the count of the position 'bit' */
+	public int countAt(final int bit)
+	{
+		final int w = bit >>> 6;
+		final long b = 1L << bit;
+		int count = 0;
+		for (int p = noOfPlanes-1; p >= 0; --p)
+		{
+			count <<= 1;
+			if ((planes[p*noOfWords + w] & b) != 0) count |= 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Sets in the 'result' (of at least noOfWords() longs, can be the mask())
+	 * exactly the positions with at least 'minVotes' votes, and returns how
+	 * many such positions there are.
+	 */
+	public int threshold(final int minVotes, final long[] result)
+	{
+		if (minVotes <= 0)
+		{
+			//every position qualifies
+			Arrays.fill(result, 0, noOfWords, -1L);
+			if ((noOfBits & 63) != 0) result[noOfWords-1] = (1L << noOfBits) - 1;
+			return noOfBits;
+		}
+		if (noOfPlanes < 31 && minVotes >= (1 << noOfPlanes))
+		{
+			//no position can qualify
+			Arrays.fill(result, 0, noOfWords, 0);
+			return 0;
+		}
+
+		int count = 0;
+		for (int w = 0; w < noOfWords; ++w)
+		{
+			//from the highest bit: 'gt' marks counts already found greater than
+			//'minVotes', 'eq' marks counts equal to it in the bits seen so far
+			long gt = 0, eq = -1L;
+			for (int p = noOfPlanes-1; p >= 0; --p)
+			{
+				final long c = planes[p*noOfWords + w];
+				if ((minVotes & (1 << p)) != 0) eq &= c;
+				else
+				{
+					gt |= eq & c;
+					eq &= ~c;
+				}
+			}
+			result[w] = gt | eq;
+			count += Long.bitCount(result[w]);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,346 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Resolves the collision area, the voxels given in a CollisionVoxels, by eroding
+ * it with its claimers: in every round, every (not yet resolved) voxel looks at
+ * its neighbours in the order of the posDeltas, where the positions outside the
+ * image are clamped into it, and the first neighbour labelled with a claimer of
+ * the voxel determines the voxel's colour. The resolved voxels are written into
+ * the image only after the round, so that they don't influence the rest of it.
+ *
+ * The erosion is driven by a frontier: the first round visits all voxels, but the
+ * next rounds visit only the unresolved voxels next to the voxels resolved in the
+ * previous round, because the neighbourhood of no other voxel has changed. The
+ * voxels are thus visited a constant number of times, yet the result is the same
+ * as if all remaining voxels were re-visited in every round.
+ *
+ * The image is accessed only with getLabel() and setLabel(), the voxels are
+ * addressed with their flat offsets z*xyPlane + y*xLine + x.
+ *
+ * The voxels can be split into independent parts, each being a union of connected
+ * components (in the 3x3x3 neighbourhood) of the collision area. A voxel looks only
+ * into its 3x3x3 box, and thus sees only voxels of its own component and voxels
+ * outside the collision area (which don't change), so the parts can be resolved
+ * concurrently and the result is the same as if they were resolved together.
+ */
+public abstract class CollisionResolver
+{
+	/** returns the label of the image voxel at the 'offset' */
+	protected abstract int getLabel(final long offset);
+
+	/** sets the label of the image voxel at the 'offset' */
+	protected abstract void setLabel(final long offset, final int label);
+
+
+	/** the neighbours in the order in which they are examined for the claimers,
+	    NB: {-1,0,-1} is listed twice (while {-1,0,+1} is not) as it has always been */
+	public final static int[][] posDeltas = new int[][] {
+			{-1,-1,-1},{0,-1,-1},{1,-1,-1},  {-1,0,-1},{0,0,-1},{1,0,-1},  {-1,+1,-1},{0,+1,-1},{1,+1,-1},
+			{-1,-1, 0},{0,-1, 0},{1,-1, 0},  {-1,0, 0},         {1,0, 0},  {-1,+1, 0},{0,+1, 0},{1,+1, 0},
+			{-1,-1,+1},{0,-1,+1},{1,-1,+1},  {-1,0,-1},{0,0,+1},{1,0,+1},  {-1,+1,+1},{0,+1,+1},{1,+1,+1} };
+
+	private CollisionVoxels voxels;
+
+	//the image geometry, the max legal coordinate (zero for the missing dimensions)
+	private final int[] posMax = new int[3];
+	private long xLine = 1, xyPlane = 1;
+
+	//the voxels (indices into 'voxels') to be visited in the current and in the next round
+	private int[] frontier = new int[0];
+	private int[] nextFrontier = new int[0];
+	private int frontierSize = 0, nextFrontierSize = 0;
+	/** per voxel: the last round for which it was queued */
+	private int[] queuedFor = new int[0];
+	private int round = 0;
+
+	private final int[] pos = new int[3];
+	private final int[] nPos = new int[3];
+
+	/** the parts, if the voxels were split, each with its own frontier (and image access) */
+	private final List<CollisionResolver> parts = new ArrayList<>();
+	/** per voxel: index of its part */
+	private int[] partOf = new int[0];
+	/** aux array for the splitting */
+	private int[] members = new int[0];
+
+
+	/** prepares for resolving the 'voxels' in the image of the dimensions 'imgDims' (at most 3),
+	    and queues all of them for the first round */
+	public void reset(final CollisionVoxels voxels, final long[] imgDims)
+	{
+		this.voxels = voxels;
+		Arrays.fill(posMax, 0);
+		for (int d = 0; d < imgDims.length && d < posMax.length; ++d)
+			posMax[d] = (int)imgDims[d] -1;
+		xLine = posMax[0]+1;
+		xyPlane = xLine * (posMax[1]+1);
+
+		final int size = voxels.size();
+		if (queuedFor.length < size)
+		{
+			frontier = new int[size];
+			nextFrontier = new int[size];
+			queuedFor = new int[size];
+		}
+
+		round = 0;
+		frontierSize = 0;
+		for (int i = 0; i < size; ++i) nextFrontier[i] = i;
+		nextFrontierSize = size;
+		Arrays.fill(queuedFor, 0, size, 1);
+		parts.clear();
+	}
+
+	/** returns true if some voxels are queued for the next round */
+	public boolean hasNextRound()
+	{
+		if (parts.isEmpty()) return nextFrontierSize > 0;
+		for (CollisionResolver part : parts)
+			if (part.hasNextRound()) return true;
+		return false;
+	}
+
+	/**
+	 * Splits the voxels, right after the reset(), into at most 'maxParts' independent
+	 * parts of similar sizes, each part gets its own resolver from the 'newPart', and
+	 * returns the number of the parts. The voxels are not split if they form only one
+	 * component, and 1 is returned.
+	 */
+	public int splitIntoParts(final int maxParts, final Supplier<CollisionResolver> newPart)
+	{
+		if (round > 0)
+			throw new RuntimeException("Cannot split the collision area after its resolving has started.");
+
+		final int size = voxels.size();
+		if (partOf.length < size)
+		{
+			partOf = new int[size];
+			members = new int[size];
+		}
+		Arrays.fill(partOf, 0, size, -1);
+
+		//flood the components, and put them one after another into the parts,
+		//the next part is started when the current one is large enough
+		final int targetPartSize = (size + maxParts-1) / Math.max(maxParts,1);
+		final int[] stack = members;
+		int part = 0, partSize = 0;
+		for (int seed = 0; seed < size; ++seed)
+		{
+			if (partOf[seed] > -1) continue;
+			if (partSize >= targetPartSize)
+			{
+				++part;
+				partSize = 0;
+			}
+
+			int stackSize = 0;
+			stack[stackSize++] = seed;
+			partOf[seed] = part;
+			while (stackSize > 0)
+			{
+				final int i = stack[--stackSize];
+				++partSize;
+
+				positionOf(voxels.offsetAt(i), nPos);
+				for (int z = Math.max(nPos[2]-1,0); z <= Math.min(nPos[2]+1,posMax[2]); ++z)
+				for (int y = Math.max(nPos[1]-1,0); y <= Math.min(nPos[1]+1,posMax[1]); ++y)
+				for (int x = Math.max(nPos[0]-1,0); x <= Math.min(nPos[0]+1,posMax[0]); ++x)
+				{
+					final int j = voxels.indexOf(z*xyPlane + y*xLine + x);
+					if (j < 0 || partOf[j] > -1) continue;
+					partOf[j] = part;
+					stack[stackSize++] = j;
+				}
+			}
+		}
+
+		final int noOfParts = part+1;
+		if (noOfParts < 2) return 1;
+
+		//list the voxels part after part, in the ascending order within the part
+		final int[] partStarts = new int[noOfParts+1];
+		for (int i = 0; i < size; ++i) ++partStarts[partOf[i]+1];
+		for (int p = 0; p < noOfParts; ++p) partStarts[p+1] += partStarts[p];
+		final int[] nextMember = Arrays.copyOf(partStarts, noOfParts);
+		for (int i = 0; i < size; ++i) members[nextMember[partOf[i]]++] = i;
+
+		for (int p = 0; p < noOfParts; ++p)
+		{
+			final CollisionResolver r = newPart.get();
+			r.resetAsPartOf(this, partStarts[p], partStarts[p+1]);
+			parts.add(r);
+		}
+		return noOfParts;
+	}
+
+	/** prepares for resolving the voxels listed in the 'whole.members' from 'from' to 'to' (exclusive) */
+	private void resetAsPartOf(final CollisionResolver whole, final int from, final int to)
+	{
+		voxels = whole.voxels;
+		System.arraycopy(whole.posMax, 0, posMax, 0, posMax.length);
+		xLine = whole.xLine;
+		xyPlane = whole.xyPlane;
+
+		//NB: the parts have disjoint voxels, and thus can share the 'queuedFor'
+		queuedFor = whole.queuedFor;
+
+		final int size = to-from;
+		frontier = new int[size];
+		nextFrontier = new int[size];
+		System.arraycopy(whole.members, from, nextFrontier, 0, size);
+		nextFrontierSize = size;
+		frontierSize = 0;
+		round = 0;
+		parts.clear();
+	}
+
+	/** sets the image voxel at the 'offset' (which is not in the collision area) to the 'label',
+	    and queues for the next round the unresolved voxels next to it */
+	public void changeLabel(final long offset, final int label)
+	{
+		setLabel(offset, label);
+		queueAround(offset);
+	}
+
+	/** queues for the next round the unresolved voxels next to the image voxel at the 'offset',
+	    the method shall be called whenever the image voxel is changed from outside */
+	public void queueAround(final long offset)
+	{
+		positionOf(offset, nPos);
+		queueAround(nPos);
+	}
+
+	/** runs rounds until no voxel is queued or up to 'maxRounds' rounds,
+	    and returns the number of the rounds done */
+	public int resolve(final int maxRounds)
+	{
+		return resolve(maxRounds, null);
+	}
+
+	/** runs rounds until no voxel is queued or up to 'maxRounds' rounds, the parts (if split)
+	    are resolved on the 'workerThreads' (if given), and returns the number of the rounds done */
+	public int resolve(final int maxRounds, final ExecutorService workerThreads)
+	{
+		if (!parts.isEmpty())
+		{
+			final List<Callable<Integer>> tasks = new ArrayList<>(parts.size());
+			for (CollisionResolver part : parts)
+				if (part.hasNextRound()) tasks.add( () -> part.resolve(maxRounds) );
+
+			int rounds = 0;
+			if (workerThreads == null || tasks.size() < 2)
+			{
+				for (Callable<Integer> t : tasks) {
+					try { rounds = Math.max(rounds, t.call()); }
+					catch (Exception e) { throw new RuntimeException("Error while resolving collisions", e); }
+				}
+				return rounds;
+			}
+
+			//NB: the voxels' index is only read now (it was made valid with the split)
+			try {
+				for (Future<Integer> f : workerThreads.invokeAll(tasks)) rounds = Math.max(rounds, f.get());
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException("Error in multithreading", e);
+			}
+			return rounds;
+		}
+
+		int rounds = 0;
+		while (rounds < maxRounds && hasNextRound())
+		{
+			erodeOneRound();
+			++rounds;
+		}
+		return rounds;
+	}
+
+	private void erodeOneRound()
+	{
+		++round;
+		int[] swap = frontier; frontier = nextFrontier; nextFrontier = swap;
+		frontierSize = nextFrontierSize;
+		nextFrontierSize = 0;
+
+		//first, determine voxels and keep them (at the front of the frontier)
+		//aside so they don't influence the rest of the round
+		int resolved = 0;
+		for (int f = 0; f < frontierSize; ++f)
+		{
+			final int i = frontier[f];
+			final int colour = findClaimerAround(i);
+			if (colour != CollisionVoxels.NO_COLOUR)
+			{
+				voxels.setColourAt(i, colour);
+				frontier[resolved++] = i;
+			}
+		}
+
+		//second, move the determined voxels into the image
+		for (int f = 0; f < resolved; ++f)
+			setLabel(voxels.offsetAt(frontier[f]), voxels.colourAt(frontier[f]));
+
+		//and queue their unresolved neighbours
+		for (int f = 0; f < resolved; ++f)
+		{
+			positionOf(voxels.offsetAt(frontier[f]), nPos);
+			queueAround(nPos);
+		}
+	}
+
+	/** returns the first claimer of the 'i'-th voxel found around it, or NO_COLOUR */
+	private int findClaimerAround(final int i)
+	{
+		positionOf(voxels.offsetAt(i), pos);
+		for (int[] posDelta : posDeltas)
+		{
+			final int x = Math.min( Math.max(pos[0] + posDelta[0],0) , posMax[0] );
+			final int y = Math.min( Math.max(pos[1] + posDelta[1],0) , posMax[1] );
+			final int z = Math.min( Math.max(pos[2] + posDelta[2],0) , posMax[2] );
+			final int surroundingLabel = getLabel(z*xyPlane + y*xLine + x);
+			if (voxels.isClaimedBy(i, surroundingLabel)) return surroundingLabel;
+		}
+		return CollisionVoxels.NO_COLOUR;
+	}
+
+	/** queues the unresolved voxels within the 3x3x3 box around the 'center' (into their parts),
+	    NB: the clamped neighbourhood of a voxel never reaches beyond this box */
+	private void queueAround(final int[] center)
+	{
+		for (int z = Math.max(center[2]-1,0); z <= Math.min(center[2]+1,posMax[2]); ++z)
+		for (int y = Math.max(center[1]-1,0); y <= Math.min(center[1]+1,posMax[1]); ++y)
+		for (int x = Math.max(center[0]-1,0); x <= Math.min(center[0]+1,posMax[0]); ++x)
+		{
+			final int i = voxels.indexOf(z*xyPlane + y*xLine + x);
+			if (i < 0) continue;
+			if (parts.isEmpty()) queue(i);
+			else parts.get(partOf[i]).queue(i);
+		}
+	}
+
+	/** queues the 'i'-th voxel for the next round, if it is unresolved and not queued yet */
+	private void queue(final int i)
+	{
+		final int nextRound = round+1;
+		if (queuedFor[i] == nextRound || voxels.colourAt(i) != CollisionVoxels.NO_COLOUR) return;
+		queuedFor[i] = nextRound;
+		nextFrontier[nextFrontierSize++] = i;
+	}
+
+	private void positionOf(final long offset, final int[] pos)
+	{
+		pos[2] = (int)(offset / xyPlane);
+		final long inPlane = offset - pos[2]*xyPlane;
+		pos[1] = (int)(inPlane / xLine);
+		pos[0] = (int)(inPlane - pos[1]*xLine);
+	}
+}
@@ -0,0 +1,201 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.util.Arrays;
+
+/**
+ * Reusable store of voxels, each given with its flat offset (see LabelVoxelLists),
+ * its (finally decided) colour, and the set of its claimers, e.g., the voxels in
+ * collision of more markers together with the markers (labels) that wanted them.
+ *
+ * The voxels are kept "as a struct of arrays", that is, the offsets, colours and
+ * claimers of all voxels are in a few primitive arrays and no object is created
+ * per voxel. The claimers of all voxels are kept in one shared pool, as singly
+ * linked lists, so a voxel can have any number of claimers. The voxels can be
+ * looked up by their offsets with a primitive (open-addressing) index.
+ *
+ * The store is meant to be clear()-ed and filled again many times, which causes
+ * no allocations once the internal arrays have grown to the needed sizes.
+ */
+public class CollisionVoxels
+{
+	/** the colour of voxels whose colour has not been decided (yet) */
+	public static final int NO_COLOUR = -1;
+
+	public CollisionVoxels()
+	{
+		this(1024);
+	}
+
+	public CollisionVoxels(final int expectedSize)
+	{
+		final int capacity = Math.max(expectedSize, 4);
+		offsets = new long[capacity];
+		colours = new int[capacity];
+		firstClaimers = new int[capacity];
+		claimers = new int[capacity];
+		nextClaimers = new int[capacity];
+		index = new LongIntMap(capacity);
+	}
+
+	//per voxel: offset, colour, index (into the pool) of its first claimer or -1
+	private long[] offsets;
+	private int[] colours;
+	private int[] firstClaimers;
+	private int size = 0;
+
+	//the pool of claimers: the claimer and index of the next claimer of the same voxel or -1
+	private int[] claimers;
+	private int[] nextClaimers;
+	private int poolSize = 0;
+
+	/** maps offsets to indices of the voxels, rebuilt lazily after the voxels were reordered */
+	private final LongIntMap index;
+	private boolean isIndexValid = true;
+
+	/** aux arrays for the reordering */
+	private int[] spareColours = new int[0];
+	private int[] spareFirstClaimers = new int[0];
+
+
+	/** forgets all voxels, keeps the allocated memory */
+	public void clear()
+	{
+		size = 0;
+		poolSize = 0;
+		index.clear();
+		isIndexValid = true;
+	}
+
+	/** returns the number of voxels */
+	public int size()
+	{ return size; }
+
+	/** returns the number of voxels the store can hold without growing */
+	public int capacity()
+	{ return offsets.length; }
+
+	/** returns the offset of the 'i'-th voxel */
+	public long offsetAt(final int i)
+	{ return offsets[i]; }
+
+	/** returns the colour of the 'i'-th voxel, or NO_COLOUR */
+	public int colourAt(final int i)
+	{ return colours[i]; }
+
+	/** sets the colour of the 'i'-th voxel */
+	public void setColourAt(final int i, final int colour)
+	{ colours[i] = colour; }
+
+	/** returns the index of the voxel at the 'offset', or -1 if it is not present */
+	public int indexOf(final long offset)
+	{
+		if (!isIndexValid) rebuildIndex();
+		return index.get(offset, -1);
+	}
+
+	/** returns true if the 'label' is among the claimers of the 'i'-th voxel */
+	public boolean isClaimedBy(final int i, final int label)
+	{
+		for (int c = firstClaimers[i]; c > -1; c = nextClaimers[c])
+			if (claimers[c] == label) return true;
+		return false;
+	}
+
+	/** adds the voxel at the 'offset' with the 'colour' and no claimers, the voxel
+	    is not looked up (and thus not indexed), and returns the index of the voxel */
+	public int append(final long offset, final int colour)
+	{
+		if (size == offsets.length) grow();
+		offsets[size] = offset;
+		colours[size] = colour;
+		firstClaimers[size] = -1;
+		isIndexValid = false;
+		return size++;
+	}
+
+	/** adds the 'claimer' to the voxel at the 'offset' (the voxel is added, with NO_COLOUR,
+	    if it is not present), and returns the index of the voxel */
+	public int addClaimer(final long offset, final int claimer)
+	{
+		if (!isIndexValid) rebuildIndex();
+
+		int i = index.get(offset, -1);
+		if (i < 0)
+		{
+			i = append(offset, NO_COLOUR);
+			index.put(offset, i);
+			isIndexValid = true;
+		}
+		else if (isClaimedBy(i, claimer)) return i;
+
+		if (poolSize == claimers.length)
+		{
+			claimers = Arrays.copyOf(claimers, 2*poolSize);
+			nextClaimers = Arrays.copyOf(nextClaimers, 2*poolSize);
+		}
+		claimers[poolSize] = claimer;
+		nextClaimers[poolSize] = firstClaimers[i];
+		firstClaimers[i] = poolSize++;
+		return i;
+	}
+
+	/** reorders the voxels to have their offsets ascending, that is,
+	    to have them in the order in which they are stored in the image */
+	public void sortByOffsets()
+	{
+		if (!isIndexValid) rebuildIndex();
+		if (spareColours.length < size)
+		{
+			spareColours = new int[offsets.length];
+			spareFirstClaimers = new int[offsets.length];
+		}
+
+		//NB: the offsets are unique, the index tells where the rest of the voxel was
+		Arrays.sort(offsets, 0, size);
+		for (int i = 0; i < size; ++i)
+		{
+			final int was = index.get(offsets[i], -1);
+			spareColours[i] = colours[was];
+			spareFirstClaimers[i] = firstClaimers[was];
+		}
+
+		int[] swap = colours; colours = spareColours; spareColours = swap;
+		swap = firstClaimers; firstClaimers = spareFirstClaimers; spareFirstClaimers = swap;
+		isIndexValid = false;
+	}
+
+	/** removes the voxels whose colour has been decided, the order of
+	    the remaining ones is kept, and returns how many were removed */
+	public int removeColoured()
+	{
+		int kept = 0;
+		for (int i = 0; i < size; ++i)
+		{
+			if (colours[i] != NO_COLOUR) continue;
+			offsets[kept] = offsets[i];
+			colours[kept] = colours[i];
+			firstClaimers[kept] = firstClaimers[i];
+			++kept;
+		}
+
+		final int removed = size - kept;
+		size = kept;
+		if (removed > 0) isIndexValid = false;
+		return removed;
+	}
+
+	private void rebuildIndex()
+	{
+		index.clear();
+		for (int i = 0; i < size; ++i) index.put(offsets[i], i);
+		isIndexValid = true;
+	}
+
+	private void grow()
+	{
+		final int capacity = 2*offsets.length;
+		offsets = Arrays.copyOf(offsets, capacity);
+		colours = Arrays.copyOf(colours, capacity);
+		firstClaimers = Arrays.copyOf(firstClaimers, capacity);
+	}
+}
@@ -0,0 +1,314 @@
+package de.mpicbg.ulman.fusion.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Jaccard indices of many pairs of segments, all computed in one pass over
+ * a common ROI. A segment is given with an image (registered with addImage())
+ * and a label in it, and the pairs are registered with addPair(). Afterwards,
+ * compute() sweeps the ROI once and every voxel is read only once from every
+ * image, and the intersections (and unions) of all pairs are counted in
+ * primitive arrays.
+ *
+ * If the sizes of both segments of a pair (inside the ROI!) are known, e.g.,
+ * from a LabelBoxTable when the ROI covers the segments, they can be given
+ * with the pair and only the intersection is counted. Such pairs between the
+ * same two images are then looked up per voxel in a hash table, so their
+ * number does not matter much.
+ *
+ * The second segment of a pair can be also given with a LabelMask, e.g., when
+ * the same segment is scored against many others in different threads (with
+ * their own batches). Such segment is not swept at all, its mask is tested
+ * only at the voxels of the first segment.
+ *
+ * The voxels are compared with the labels exactly the same way, and the index
+ * is calculated from the counts exactly the same way, as the Jaccard.Jaccard()
+ * from the CTC measures does it (except that a pair of two empty segments
+ * gets 0.0), so the results are the same.
+ */
+public class JaccardBatch
+{
+	private final List<RandomAccessibleInterval<? extends RealType<?>>> images = new ArrayList<>(10);
+
+	private int noOfPairs = 0;
+	private int[] imgA = new int[16], imgB = new int[16];
+	private double[] labelA = new double[16], labelB = new double[16];
+	/** if not null, the segment B of the pair is given with it (and imgB is -1) */
+	private LabelMask[] maskB = new LabelMask[16];
+	/** sizes of the segments, either given or counted with compute() */
+	private long[] sizeA = new long[16], sizeB = new long[16];
+	private boolean[] isSizeAKnown = new boolean[16], isSizeBKnown = new boolean[16];
+	private long[] intersection = new long[16];
+
+	/** forgets all images and pairs */
+	public void clear()
+	{
+		images.clear();
+		Arrays.fill(maskB, 0, noOfPairs, null);
+		noOfPairs = 0;
+	}
+
+	/** registers the image for the next addPair(), and returns its index */
+	public int addImage(final RandomAccessibleInterval<? extends RealType<?>> img)
+	{
+		images.add(img);
+		return images.size()-1;
+	}
+
+	/** registers the pair of segments, the sizes of which are to be counted,
+	    and returns the index of the pair */
+	public int addPair(final int imgA, final double labelA, final int imgB, final double labelB)
+	{
+		return addPair(imgA,labelA,-1, imgB,labelB,-1);
+	}
+
+	/** registers the pair of segments, a negative size means it is not known and
+	    is to be counted, and returns the index of the pair */
+	public int addPair(final int imgA, final double labelA, final long sizeA,
+	                   final int imgB, final double labelB, final long sizeB)
+	{
+		if (imgA < 0 || imgA >= images.size() || imgB < 0 || imgB >= images.size())
+			throw new RuntimeException("Register the images first with addImage().");
+
+		if (noOfPairs == this.imgA.length) grow();
+		final int p = noOfPairs++;
+		this.imgA[p] = imgA;
+		this.labelA[p] = labelA;
+		this.isSizeAKnown[p] = sizeA >= 0;
+		this.sizeA[p] = sizeA;
+		this.imgB[p] = imgB;
+		this.labelB[p] = labelB;
+		this.isSizeBKnown[p] = sizeB >= 0;
+		this.sizeB[p] = sizeB;
+		this.maskB[p] = null;
+		return p;
+	}
+
+	/** registers the pair of the segment from the image (whose size is to be counted)
+	    and the segment given with the 'maskB', and returns the index of the pair */
+	public int addPair(final int imgA, final double labelA, final LabelMask maskB)
+	{
+		if (imgA < 0 || imgA >= images.size())
+			throw new RuntimeException("Register the images first with addImage().");
+
+		if (noOfPairs == this.imgA.length) grow();
+		final int p = noOfPairs++;
+		this.imgA[p] = imgA;
+		this.labelA[p] = labelA;
+		this.isSizeAKnown[p] = false;
+		this.sizeA[p] = -1;
+		this.imgB[p] = -1;
+		this.labelB[p] = 0;
+		this.isSizeBKnown[p] = true;
+		this.sizeB[p] = maskB.size();
+		this.maskB[p] = maskB;
+		return p;
+	}
+
+	private void grow()
+	{
+		final int capacity = 2*imgA.length;
+		imgA = Arrays.copyOf(imgA, capacity);
+		imgB = Arrays.copyOf(imgB, capacity);
+		labelA = Arrays.copyOf(labelA, capacity);
+		labelB = Arrays.copyOf(labelB, capacity);
+		maskB = Arrays.copyOf(maskB, capacity);
+		sizeA = Arrays.copyOf(sizeA, capacity);
+		sizeB = Arrays.copyOf(sizeB, capacity);
+		isSizeAKnown = Arrays.copyOf(isSizeAKnown, capacity);
+		isSizeBKnown = Arrays.copyOf(isSizeBKnown, capacity);
+		intersection = Arrays.copyOf(intersection, capacity);
+	}
+
+	/** returns the number of registered pairs */
+	public int size()
+	{ return noOfPairs; }
+
+	/** returns the intersection of the pair 'p' found with the last compute() */
+	public long intersectionAt(final int p)
+	{ return intersection[p]; }
+
+	/** returns the union of the pair 'p' found with the last compute() */
+	public long unionAt(final int p)
+	{ return sizeA[p] + sizeB[p] - intersection[p]; }
+
+	/** returns the Jaccard index of the pair 'p' found with the last compute() */
+	public double jaccardAt(final int p)
+	{
+		final long union = unionAt(p);
+		return union > 0 ? (double)intersection[p] / (double)union : 0.0;
+	}
+
+
+	// ------------- the sweep -------------
+	/** pairs that are tested one by one for every voxel */
+	private int[] linearPairs = new int[16];
+	private int noOfLinearPairs;
+	/** pairs with the segment B given with a mask, tested one by one at the voxels of their segments A */
+	private int[] maskPairs = new int[16];
+	private int noOfMaskPairs;
+	/** the position of the currently swept voxel, maintained only if there are mask pairs */
+	private long[] position = new long[0];
+	/** per couple of images (imgA,imgB) with known-sizes pairs: the pairs by their labels */
+	private int[] hashedImgA = new int[4], hashedImgB = new int[4];
+	private LongIntMap[] hashedPairs = new LongIntMap[4];
+	private int noOfHashed;
+
+	/** pairs of known sizes between the same two images are worth hashing if there are more of them */
+	private static final int MIN_PAIRS_TO_HASH = 8;
+
+	private static
+	long keyOf(final double labelA, final double labelB)
+	{
+		return ((long)Float.floatToIntBits((float)labelA) << 32) | (Float.floatToIntBits((float)labelB) & 0xffffffffL);
+	}
+
+	/** counts the intersections (and the unknown sizes) of all registered pairs inside the 'roi' */
+	public void compute(final Interval roi)
+	{
+		planTheSweep();
+
+		final int noOfImages = images.size();
+		final double[] values = new double[noOfImages];
+		final boolean isLocalizing = noOfMaskPairs > 0;
+		if (isLocalizing && position.length < roi.numDimensions()) position = new long[roi.numDimensions()];
+
+		final PrimitiveImgAccess[] access = new PrimitiveImgAccess[noOfImages];
+		boolean isAccessDirect = true;
+		for (int k = 0; k < noOfImages && isAccessDirect; ++k)
+		{
+			access[k] = PrimitiveImgAccess.of(Views.interval(images.get(k), roi));
+			isAccessDirect = access[k] != null && access[k].isOfSameSize(access[0]);
+		}
+
+		if (isAccessDirect)
+		{
+			if (noOfImages == 0) return;
+			final int len = access[0].lineLength();
+			while (access[0].nextLine())
+			{
+				for (int k = 1; k < noOfImages; ++k) access[k].nextLine();
+				if (isLocalizing)
+					for (int d = 0; d < roi.numDimensions(); ++d) position[d] = access[0].getLinePosition(d);
+				final long x0 = isLocalizing ? position[0] : 0;
+				for (int x = 0; x < len; ++x)
+				{
+					for (int k = 0; k < noOfImages; ++k) values[k] = access[k].getDouble(x);
+					if (isLocalizing) position[0] = x0 + x;
+					countVoxel(values);
+				}
+			}
+		}
+		else
+		{
+			final List<Cursor<? extends RealType<?>>> cursors = new ArrayList<>(noOfImages);
+			for (RandomAccessibleInterval<? extends RealType<?>> img : images)
+			{
+				//NB: only the first cursor reports the position
+				if (cursors.isEmpty() && isLocalizing)
+					cursors.add( Views.flatIterable(Views.interval(img, roi)).localizingCursor() );
+				else
+					cursors.add( Views.flatIterable(Views.interval(img, roi)).cursor() );
+			}
+			if (noOfImages == 0) return;
+			while (cursors.get(0).hasNext())
+			{
+				for (int k = 0; k < noOfImages; ++k) values[k] = cursors.get(k).next().getRealDouble();
+				if (isLocalizing) cursors.get(0).localize(position);
+				countVoxel(values);
+			}
+		}
+	}
+
+	private void planTheSweep()
+	{
+		Arrays.fill(intersection, 0, noOfPairs, 0);
+		for (int p = 0; p < noOfPairs; ++p) {
+			if (!isSizeAKnown[p]) sizeA[p] = 0;
+			if (!isSizeBKnown[p]) sizeB[p] = 0;
+		}
+
+		if (linearPairs.length < noOfPairs) linearPairs = new int[imgA.length];
+		if (maskPairs.length < noOfPairs) maskPairs = new int[imgA.length];
+		noOfLinearPairs = 0;
+		noOfMaskPairs = 0;
+		noOfHashed = 0;
+
+		final boolean[] isPlanned = new boolean[noOfPairs];
+		for (int p = 0; p < noOfPairs; ++p)
+		{
+			if (isPlanned[p]) continue;
+			if (maskB[p] != null) { maskPairs[noOfMaskPairs++] = p; continue; }
+			if (!isSizeAKnown[p] || !isSizeBKnown[p]) { linearPairs[noOfLinearPairs++] = p; continue; }
+
+			//the known-sizes pairs of the same couple of images
+			int count = 0;
+			for (int q = p; q < noOfPairs; ++q)
+				if (imgA[q] == imgA[p] && imgB[q] == imgB[p] && isSizeAKnown[q] && isSizeBKnown[q] && maskB[q] == null) ++count;
+
+			LongIntMap map = null;
+			if (count >= MIN_PAIRS_TO_HASH)
+			{
+				if (noOfHashed == hashedPairs.length) {
+					hashedImgA = Arrays.copyOf(hashedImgA, 2*noOfHashed);
+					hashedImgB = Arrays.copyOf(hashedImgB, 2*noOfHashed);
+					hashedPairs = Arrays.copyOf(hashedPairs, 2*noOfHashed);
+				}
+				if (hashedPairs[noOfHashed] == null) hashedPairs[noOfHashed] = new LongIntMap(count);
+				map = hashedPairs[noOfHashed];
+				map.clear();
+				hashedImgA[noOfHashed] = imgA[p];
+				hashedImgB[noOfHashed] = imgB[p];
+				++noOfHashed;
+			}
+
+			for (int q = p; q < noOfPairs; ++q)
+			{
+				if (imgA[q] != imgA[p] || imgB[q] != imgB[p] || !isSizeAKnown[q] || !isSizeBKnown[q] || maskB[q] != null) continue;
+				isPlanned[q] = true;
+
+				//NB: the same labels twice (as floats) cannot share the entry, such pair is tested linearly
+				final long key = keyOf(labelA[q],labelB[q]);
+				if (map != null && map.indexOf(key) < 0) map.put(key, q);
+				else linearPairs[noOfLinearPairs++] = q;
+			}
+		}
+	}
+
+	private void countVoxel(final double[] values)
+	{
+		for (int h = 0; h < noOfHashed; ++h)
+		{
+			final double a = values[hashedImgA[h]];
+			final double b = values[hashedImgB[h]];
+			final int p = hashedPairs[h].get(keyOf(a,b), -1);
+			if (p > -1 && a == labelA[p] && b == labelB[p]) ++intersection[p];
+		}
+
+		for (int i = 0; i < noOfLinearPairs; ++i)
+		{
+			final int p = linearPairs[i];
+			final boolean isA = values[imgA[p]] == labelA[p];
+			final boolean isB = values[imgB[p]] == labelB[p];
+			if (isA && isB) ++intersection[p];
+			if (isA && !isSizeAKnown[p]) ++sizeA[p];
+			if (isB && !isSizeBKnown[p]) ++sizeB[p];
+		}
+
+		for (int i = 0; i < noOfMaskPairs; ++i)
+		{
+			final int p = maskPairs[i];
+			if (values[imgA[p]] != labelA[p]) continue;
+			++sizeA[p];
+			if (maskB[p].isSetAt(position)) ++intersection[p];
+		}
+	}
+}
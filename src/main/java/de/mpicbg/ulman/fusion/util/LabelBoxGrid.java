@@ -0,0 +1,193 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.util.Arrays;
+
+/**
+ * Uniform-grid spatial index over the boxes from one LabelBoxTable. It answers
+ * which labels have their boxes intersecting a given query box, by visiting only
+ * the grid cells covered by the query box (instead of testing all boxes).
+ *
+ * The grid is laid over the given domain (typically the image interval), its
+ * cells are about as large as an average box, so every box is typically
+ * registered in only a few cells. The cells are stored in a compressed form:
+ * one array with the indices (into the LabelBoxTable) of all registered boxes,
+ * sorted by cells, and one array with the beginnings of the cells in it.
+ *
+ * The index is a snapshot: it has to be rebuilt if boxes in the table change.
+ * The query results are kept inside this object, which is why one instance
+ * must not be queried from multiple threads concurrently.
+ */
+public class LabelBoxGrid
+{
+	public LabelBoxGrid(final LabelBoxTable boxes, final long[] domainMin, final long[] domainMax)
+	{
+		table = boxes;
+		dim = boxes.numDimensions();
+		final int noOfBoxes = boxes.size();
+
+		min = domainMin.clone();
+		cellSize = new long[dim];
+		cellsPerDim = new int[dim];
+		cellStrides = new int[dim];
+
+		//cells about the size of an average box
+		long totalCells = 1;
+		for (int n = 0; n < dim; ++n) {
+			long sumOfSizes = 0;
+			for (int idx = 0; idx < noOfBoxes; ++idx)
+				sumOfSizes += boxes.maxAt(idx,n) - boxes.minAt(idx,n) +1;
+			cellSize[n] = Math.max(1, noOfBoxes > 0 ? sumOfSizes / noOfBoxes : 1);
+
+			final long extent = domainMax[n] - domainMin[n] +1;
+			cellsPerDim[n] = (int)Math.min(Integer.MAX_VALUE, (extent + cellSize[n]-1) / cellSize[n]);
+			totalCells *= cellsPerDim[n];
+		}
+
+		//but not too many cells in total (e.g. with very few or very small boxes)
+		final long maxCells = 8L*noOfBoxes + 64;
+		while (totalCells > maxCells) {
+			totalCells = 1;
+			for (int n = 0; n < dim; ++n) {
+				if (cellsPerDim[n] > 1) {
+					cellSize[n] *= 2;
+					cellsPerDim[n] = (cellsPerDim[n]+1) / 2;
+				}
+				totalCells *= cellsPerDim[n];
+			}
+		}
+
+		cellStrides[0] = 1;
+		for (int n = 1; n < dim; ++n) cellStrides[n] = cellStrides[n-1] * cellsPerDim[n-1];
+
+		//first pass: count boxes per cell, second pass: place them
+		cellStarts = new int[(int)totalCells +1];
+		final int[] cMin = new int[dim];
+		final int[] cMax = new int[dim];
+		for (int idx = 0; idx < noOfBoxes; ++idx) {
+			cellRangeOf(idx, cMin, cMax);
+			forEachCell(cMin, cMax, cell -> ++cellStarts[cell+1]);
+		}
+		for (int c = 1; c < cellStarts.length; ++c) cellStarts[c] += cellStarts[c-1];
+
+		cellEntries = new int[ cellStarts[cellStarts.length-1] ];
+		final int[] fill = Arrays.copyOf(cellStarts, cellStarts.length-1);
+		for (int idx = 0; idx < noOfBoxes; ++idx) {
+			final int boxIdx = idx;
+			cellRangeOf(idx, cMin, cMax);
+			forEachCell(cMin, cMax, cell -> cellEntries[fill[cell]++] = boxIdx);
+		}
+
+		stamps = new int[noOfBoxes];
+		hits = new int[Math.max(16, Math.min(noOfBoxes, 1024))];
+		qMin = new int[dim];
+		qMax = new int[dim];
+	}
+
+	private final LabelBoxTable table;
+	private final int dim;
+
+	private final long[] min, cellSize;
+	private final int[] cellsPerDim, cellStrides;
+
+	private final int[] cellStarts, cellEntries;
+
+	//query-related, to avoid duplicates and to return results without allocations
+	private final int[] stamps;
+	private int currentStamp = 0;
+	private int[] hits;
+	private int noOfHits = 0;
+	private final int[] qMin, qMax;
+
+
+	/** returns the table over which this index was built */
+	public LabelBoxTable getTable()
+	{ return table; }
+
+	/**
+	 * Finds all labels whose boxes intersect with the 'box' (given in the
+	 * 2*numDimensions() layout), and returns how many were found. The found
+	 * labels are then available via hitAt(), in the order of the table.
+	 */
+	public int findIntersecting(final long[] box)
+	{
+		noOfHits = 0;
+		for (int n = 0; n < dim; ++n) {
+			if (box[n] > box[n+dim]) return 0;
+			final long lo = (box[n]-min[n]) / cellSize[n];
+			final long hi = (box[n+dim]-min[n]) / cellSize[n];
+			//NB: clamped like in cellRangeOf() to find also boxes reaching outside the domain
+			qMin[n] = (int)Math.max(0, Math.min(lo, cellsPerDim[n]-1));
+			qMax[n] = (int)Math.max(0, Math.min(hi, cellsPerDim[n]-1));
+		}
+
+		if (++currentStamp == 0) {
+			//wrapped around, restart the stamping
+			Arrays.fill(stamps, 0);
+			currentStamp = 1;
+		}
+
+		forEachCell(qMin, qMax, cell -> {
+			for (int e = cellStarts[cell]; e < cellStarts[cell+1]; ++e) {
+				final int idx = cellEntries[e];
+				if (stamps[idx] == currentStamp) continue;
+				stamps[idx] = currentStamp;
+				if (intersects(idx, box)) {
+					if (noOfHits == hits.length) hits = Arrays.copyOf(hits, 2*hits.length);
+					hits[noOfHits++] = idx;
+				}
+			}
+		});
+
+		Arrays.sort(hits, 0, noOfHits);
+		return noOfHits;
+	}
+
+	/** returns the number of labels found with the last findIntersecting() */
+	public int noOfHits()
+	{ return noOfHits; }
+
+	/** returns the index (into the table) of the 'k'-th label found with the last findIntersecting() */
+	public int hitIdxAt(final int k)
+	{ return hits[k]; }
+
+	/** returns the 'k'-th label found with the last findIntersecting() */
+	public int hitAt(final int k)
+	{ return table.labelAt(hits[k]); }
+
+
+	private boolean intersects(final int idx, final long[] box)
+	{
+		for (int n = 0; n < dim; ++n)
+			if (table.maxAt(idx,n) < box[n] || table.minAt(idx,n) > box[n+dim]) return false;
+		return true;
+	}
+
+	private void cellRangeOf(final int idx, final int[] cMin, final int[] cMax)
+	{
+		for (int n = 0; n < dim; ++n) {
+			final long lo = (table.minAt(idx,n)-min[n]) / cellSize[n];
+			final long hi = (table.maxAt(idx,n)-min[n]) / cellSize[n];
+			//NB: boxes reaching outside the domain are registered in the border cells
+			cMin[n] = (int)Math.max(0, Math.min(lo, cellsPerDim[n]-1));
+			cMax[n] = (int)Math.max(0, Math.min(hi, cellsPerDim[n]-1));
+		}
+	}
+
+	interface CellVisitor
+	{ void visit(final int cell); }
+
+	private void forEachCell(final int[] cMin, final int[] cMax, final CellVisitor visitor)
+	{
+		final int[] c = cMin.clone();
+		while (true) {
+			int cell = 0;
+			for (int n = 0; n < dim; ++n) cell += c[n] * cellStrides[n];
+			visitor.visit(cell);
+
+			int n = 0;
+			while (n < dim && c[n] == cMax[n]) { c[n] = cMin[n]; ++n; }
+			if (n == dim) return;
+			++c[n];
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per-label axis-aligned bounding boxes (AABBs) of one image. Labels are kept
+ * in the order they were added and are addressed either directly by their
+ * (positive, integer) value, or by their index in this order. All boxes are
+ * stored in one contiguous array, the box of the label at index 'idx' occupies
+ * 2*numDimensions() consecutive elements: first all min coordinates, then all
+ * max coordinates (the same layout as the one used with unionBoxes()).
+ *
+ * The label-to-index lookup is an open-addressing hash table over primitive
+ * ints, no boxing happens when querying this table.
+ *
+ * Labels that were collected voxel by voxel, with extendBox(), have also their
+ * voxel counts and centroids available. The range of occupied slices is the
+ * extent of the box along the last dimension (the z-range in 3D).
+ */
+public class LabelBoxTable
+{
+	/** the initial capacity of the tables created without the expected number of labels */
+	public static final int DEFAULT_CAPACITY = 3000;
+
+	public LabelBoxTable(final int numDimensions)
+	{
+		this(numDimensions, DEFAULT_CAPACITY);
+	}
+
+	public LabelBoxTable(final int numDimensions, final int expectedNoOfLabels)
+	{
+		dim = numDimensions;
+		boxLen = 2*numDimensions;
+
+		final int capacity = Math.max(expectedNoOfLabels, 4);
+		labels = new int[capacity];
+		boxes = new long[capacity*boxLen];
+		counts = new long[capacity];
+		coordSums = new long[capacity*numDimensions];
+		slots = new int[ slotsFor(capacity) ];
+		slotsMask = slots.length-1;
+	}
+
+	private final int dim, boxLen;
+
+	/** labels in the order of their addition */
+	private int[] labels;
+	/** boxes of the labels from the 'labels', in the same order */
+	private long[] boxes;
+	/** number of voxels of the labels from the 'labels', in the same order */
+	private long[] counts;
+	/** per-dimension sums of coordinates of the voxels of the labels, in the same order */
+	private long[] coordSums;
+	/** number of valid entries in 'labels' */
+	private int size = 0;
+
+	/** hash table: stores (index into 'labels')+1, 0 denotes an empty slot */
+	private int[] slots;
+	private int slotsMask;
+
+	private static
+	int slotsFor(final int capacity)
+	{
+		//keep the hash table at most half-full
+		int s = 8;
+		while (s < 2*capacity) s <<= 1;
+		return s;
+	}
+
+	private static
+	int hash(final int label)
+	{
+		final int h = label * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+
+	/** returns an estimate of the memory (in bytes) occupied by this table */
+	public long estimateBytes()
+	{
+		return 4L*labels.length + 8L*boxes.length + 8L*counts.length + 8L*coordSums.length + 4L*slots.length;
+	}
+
+	public int numDimensions()
+	{ return dim; }
+
+	/** returns the number of labels (boxes) stored */
+	public int size()
+	{ return size; }
+
+	public boolean isEmpty()
+	{ return size == 0; }
+
+	public void clear()
+	{
+		size = 0;
+		Arrays.fill(slots, 0);
+	}
+
+	/** returns index of the 'label', or -1 if it is not present */
+	public int indexOf(final int label)
+	{
+		int slot = hash(label) & slotsMask;
+		int idx;
+		while ((idx = slots[slot]) != 0)
+		{
+			if (labels[idx-1] == label) return idx-1;
+			slot = (slot+1) & slotsMask;
+		}
+		return -1;
+	}
+
+	public boolean contains(final int label)
+	{ return indexOf(label) > -1; }
+
+	/** returns the label stored at the index 'idx' */
+	public int labelAt(final int idx)
+	{ return labels[idx]; }
+
+	public long minAt(final int idx, final int d)
+	{ return boxes[idx*boxLen + d]; }
+
+	public long maxAt(final int idx, final int d)
+	{ return boxes[idx*boxLen + dim + d]; }
+
+	/** returns the number of voxels of the label stored at the index 'idx',
+	    or 0 if the label was not collected voxel by voxel */
+	public long countAt(final int idx)
+	{ return counts[idx]; }
+
+	/** returns the number of voxels of the 'label', or 0 if there is no such label */
+	public long getCount(final int label)
+	{
+		final int idx = indexOf(label);
+		return idx > -1 ? counts[idx] : 0;
+	}
+
+	/** returns the 'd'-th coordinate of the centroid of the label stored at the index 'idx' */
+	public double centroidAt(final int idx, final int d)
+	{ return (double)coordSums[idx*dim + d] / (double)counts[idx]; }
+
+	/** returns the centroid of the label stored at the index 'idx' */
+	public double[] centroidAt(final int idx)
+	{
+		final double[] centre = new double[dim];
+		for (int n = 0; n < dim; ++n) centre[n] = centroidAt(idx, n);
+		return centre;
+	}
+
+	/** returns the first slice (along the last dimension) occupied by the label stored at the index 'idx' */
+	public long firstSliceAt(final int idx)
+	{ return minAt(idx, dim-1); }
+
+	/** returns the last slice (along the last dimension) occupied by the label stored at the index 'idx' */
+	public long lastSliceAt(final int idx)
+	{ return maxAt(idx, dim-1); }
+
+	/** returns a copy of the box stored at the index 'idx' */
+	public long[] boxAt(final int idx)
+	{
+		final long[] box = new long[boxLen];
+		copyBoxAt(idx, box);
+		return box;
+	}
+
+	/** copies the box stored at the index 'idx' into the 'targetBox' */
+	public void copyBoxAt(final int idx, final long[] targetBox)
+	{
+		System.arraycopy(boxes, idx*boxLen, targetBox, 0, boxLen);
+	}
+
+	/** returns a copy of the box of the 'label', or null if there is no such label */
+	public long[] getBox(final int label)
+	{
+		final int idx = indexOf(label);
+		return idx > -1 ? boxAt(idx) : null;
+	}
+
+	/** enlarges the 'targetBox' to include also the box stored at the index 'idx' */
+	public void unionBoxAt(final int idx, final long[] targetBox)
+	{
+		final int off = idx*boxLen;
+		for (int n = 0; n < dim; ++n) {
+			if (boxes[off+n] < targetBox[n]) targetBox[n] = boxes[off+n];
+			if (boxes[off+dim+n] > targetBox[dim+n]) targetBox[dim+n] = boxes[off+dim+n];
+		}
+	}
+
+	/** enlarges the 'targetBox' to include also the box of the 'label', returns
+	    false if there is no such label (and the 'targetBox' is then not changed) */
+	public boolean unionBox(final int label, final long[] targetBox)
+	{
+		final int idx = indexOf(label);
+		if (idx < 0) return false;
+		unionBoxAt(idx, targetBox);
+		return true;
+	}
+
+	/** enlarges the box of the 'label' to include also the position 'pos',
+	    and accounts the voxel at the 'pos' into the statistics of the label,
+	    the label is added (with a box spanning over the 'pos' only) if not
+	    yet present; returns index of the label */
+	public int extendBox(final int label, final long[] pos)
+	{
+		int idx = indexOf(label);
+		if (idx < 0) idx = addBox(label, pos, pos);
+		else
+		{
+			final int off = idx*boxLen;
+			for (int n = 0; n < dim; ++n) {
+				if (pos[n] < boxes[off+n]) boxes[off+n] = pos[n];
+				if (pos[n] > boxes[off+dim+n]) boxes[off+dim+n] = pos[n];
+			}
+		}
+
+		++counts[idx];
+		final int off = idx*dim;
+		for (int n = 0; n < dim; ++n) coordSums[off+n] += pos[n];
+		return idx;
+	}
+
+	/** enlarges the box of the 'label' to include also the 'box', the label
+	    is added (with a copy of the 'box') if not yet present; returns index
+	    of the label */
+	public int unionWith(final int label, final long[] box)
+	{
+		final int idx = indexOf(label);
+		if (idx < 0) return addBox(label, box);
+
+		final int off = idx*boxLen;
+		for (int n = 0; n < dim; ++n) {
+			if (box[n] < boxes[off+n]) boxes[off+n] = box[n];
+			if (box[dim+n] > boxes[off+dim+n]) boxes[off+dim+n] = box[dim+n];
+		}
+		return idx;
+	}
+
+	/** adds all boxes from the 'table', labels found in both tables get their
+	    boxes union'ed and statistics summed up, labels not yet present here
+	    are appended in the order of the 'table' */
+	public void unionWith(final LabelBoxTable table)
+	{
+		if (table.dim != dim)
+			throw new RuntimeException("Cannot merge boxes of different dimensionality.");
+
+		final long[] box = new long[boxLen];
+		for (int i = 0; i < table.size; ++i) {
+			table.copyBoxAt(i, box);
+			final int idx = unionWith(table.labels[i], box);
+
+			counts[idx] += table.counts[i];
+			for (int n = 0; n < dim; ++n) coordSums[idx*dim+n] += table.coordSums[i*dim+n];
+		}
+	}
+
+	/** adds (a copy of) the 'box' for the 'label', which must not be present yet;
+	    returns index of the label */
+	public int addBox(final int label, final long[] box)
+	{
+		final int idx = appendLabel(label);
+		System.arraycopy(box, 0, boxes, idx*boxLen, boxLen);
+		return idx;
+	}
+
+	/** writes all labels, boxes and statistics, in the order of the labels */
+	public void writeTo(final DataOutput out)
+	throws IOException
+	{
+		out.writeInt(dim);
+		out.writeInt(size);
+		for (int idx = 0; idx < size; ++idx) {
+			out.writeInt(labels[idx]);
+			for (int n = 0; n < boxLen; ++n) out.writeLong(boxes[idx*boxLen + n]);
+			out.writeLong(counts[idx]);
+			for (int n = 0; n < dim; ++n) out.writeLong(coordSums[idx*dim + n]);
+		}
+	}
+
+	/** creates a new table from the content previously stored with writeTo() */
+	public static
+	LabelBoxTable readFrom(final DataInput in)
+	throws IOException
+	{
+		final int dim = in.readInt();
+		final int size = in.readInt();
+		if (dim < 1 || size < 0)
+			throw new IOException("Corrupted boxes table: dim="+dim+", size="+size);
+
+		final LabelBoxTable table = new LabelBoxTable(dim, size);
+		final long[] box = new long[2*dim];
+		for (int i = 0; i < size; ++i) {
+			final int label = in.readInt();
+			for (int n = 0; n < box.length; ++n) box[n] = in.readLong();
+			final int idx = table.addBox(label, box);
+			table.counts[idx] = in.readLong();
+			for (int n = 0; n < dim; ++n) table.coordSums[idx*dim + n] = in.readLong();
+		}
+		return table;
+	}
+
+	private int addBox(final int label, final long[] min, final long[] max)
+	{
+		final int idx = appendLabel(label);
+		System.arraycopy(min, 0, boxes, idx*boxLen, dim);
+		System.arraycopy(max, 0, boxes, idx*boxLen+dim, dim);
+		return idx;
+	}
+
+	private int appendLabel(final int label)
+	{
+		if (size == labels.length) grow();
+
+		final int idx = size++;
+		labels[idx] = label;
+		counts[idx] = 0;
+		Arrays.fill(coordSums, idx*dim, (idx+1)*dim, 0);
+
+		int slot = hash(label) & slotsMask;
+		while (slots[slot] != 0) slot = (slot+1) & slotsMask;
+		slots[slot] = idx+1;
+
+		return idx;
+	}
+
+	private void grow()
+	{
+		final int capacity = 2*labels.length;
+		labels = Arrays.copyOf(labels, capacity);
+		boxes = Arrays.copyOf(boxes, capacity*boxLen);
+		counts = Arrays.copyOf(counts, capacity);
+		coordSums = Arrays.copyOf(coordSums, capacity*dim);
+
+		slots = new int[ slotsFor(capacity) ];
+		slotsMask = slots.length-1;
+		for (int idx = 0; idx < size; ++idx) {
+			int slot = hash(labels[idx]) & slotsMask;
+			while (slots[slot] != 0) slot = (slot+1) & slotsMask;
+			slots[slot] = idx+1;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.util.Arrays;
+
+/**
+ * Reusable histogram of (float) label values: counts how many times every
+ * label was added. The labels are kept in the order of their first addition
+ * and are addressed by their index in this order.
+ *
+ * The label-to-index lookup is an open-addressing hash table over primitive
+ * floats (compared by their bits, just like java.lang.Float.equals() does),
+ * so no boxing happens. The histogram is meant to be clear()-ed and filled
+ * again many times, which causes no allocations once the internal arrays
+ * have grown to the needed sizes.
+ */
+public class LabelHistogram
+{
+	public LabelHistogram()
+	{
+		this(64);
+	}
+
+	public LabelHistogram(final int expectedNoOfLabels)
+	{
+		final int capacity = Math.max(expectedNoOfLabels, 4);
+		labels = new float[capacity];
+		counts = new int[capacity];
+		slots = new int[ slotsFor(capacity) ];
+		slotsMask = slots.length-1;
+	}
+
+	/** labels in the order of their addition */
+	private float[] labels;
+	/** counts of the labels from the 'labels', in the same order */
+	private int[] counts;
+	/** number of valid entries in 'labels' */
+	private int size = 0;
+
+	/** hash table: stores (index into 'labels')+1, 0 denotes an empty slot */
+	private int[] slots;
+	private int slotsMask;
+
+	private static
+	int slotsFor(final int capacity)
+	{
+		//keep the hash table at most half-full
+		int s = 8;
+		while (s < 2*capacity) s <<= 1;
+		return s;
+	}
+
+	private static
+	int hash(final float label)
+	{
+		final int h = Float.floatToIntBits(label) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+
+	/** returns the number of distinct labels seen since the last clear() */
+	public int size()
+	{ return size; }
+
+	/** forgets all labels, keeps the allocated memory */
+	public void clear()
+	{
+		//NB: only the used slots are visited, which is cheap for a few labels
+		for (int idx = 0; idx < size; ++idx) {
+			int slot = hash(labels[idx]) & slotsMask;
+			while (slots[slot] != 0) { slots[slot] = 0; slot = (slot+1) & slotsMask; }
+		}
+		size = 0;
+	}
+
+	/** returns the label stored at the index 'idx' */
+	public float labelAt(final int idx)
+	{ return labels[idx]; }
+
+	/** returns the count of the label stored at the index 'idx' */
+	public int countAt(final int idx)
+	{ return counts[idx]; }
+
+	/** returns the count of the 'label', or 0 if it was not added */
+	public int getCount(final float label)
+	{
+		final int idx = indexOf(label);
+		return idx > -1 ? counts[idx] : 0;
+	}
+
+	/** returns index of the 'label', or -1 if it is not present */
+	public int indexOf(final float label)
+	{
+		final int bits = Float.floatToIntBits(label);
+		int slot = hash(label) & slotsMask;
+		int idx;
+		while ((idx = slots[slot]) != 0)
+		{
+			if (Float.floatToIntBits(labels[idx-1]) == bits) return idx-1;
+			slot = (slot+1) & slotsMask;
+		}
+		return -1;
+	}
+
+	/** accounts one more occurrence of the 'label', and returns its count now */
+	public int add(final float label)
+	{
+		final int bits = Float.floatToIntBits(label);
+		int slot = hash(label) & slotsMask;
+		int idx;
+		while ((idx = slots[slot]) != 0)
+		{
+			if (Float.floatToIntBits(labels[idx-1]) == bits)
+				return ++counts[idx-1];
+			slot = (slot+1) & slotsMask;
+		}
+
+		if (size == labels.length) {
+			grow();
+			return add(label);
+		}
+
+		labels[size] = label;
+		counts[size] = 1;
+		slots[slot] = ++size;
+		return 1;
+	}
+
+	private void grow()
+	{
+		final int capacity = 2*labels.length;
+		labels = Arrays.copyOf(labels, capacity);
+		counts = Arrays.copyOf(counts, capacity);
+
+		slots = new int[ slotsFor(capacity) ];
+		slotsMask = slots.length-1;
+		for (int idx = 0; idx < size; ++idx) {
+			int slot = hash(labels[idx]) & slotsMask;
+			while (slots[slot] != 0) slot = (slot+1) & slotsMask;
+			slots[slot] = idx+1;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * On-disk sidecar cache of the per-image label index, that is, of the per-label
+ * boxes (with voxel counts and centroids) of an image together with either the
+ * per-marker voxel lists (for a marker image) or the marker-by-input overlaps
+ * (for an input image). The sidecar is stored next to the image, in a file of
+ * the same name with the SUFFIX appended.
+ *
+ * The sidecar is keyed by the (absolute) path, size and modification time of
+ * the image, and is considered stale once any of these changes. Since the
+ * overlaps depend also on the marker image, they are keyed additionally by
+ * the key of the marker image, and are dropped (while the boxes are still
+ * served) when the marker image has changed.
+ */
+public class LabelIndexCache
+{
+	public static final String SUFFIX = ".lbidx";
+
+	private static final int MAGIC = 0x4C424958; //"LBIX"
+	private static final int VERSION = 1;
+
+
+	/** what is stored in one sidecar */
+	public static class Entry
+	{
+		public LabelBoxTable boxes;
+		/** non-null only for the marker image */
+		public LabelVoxelLists voxels;
+		/** non-null only for the input image, and only if valid w.r.t. the current marker image */
+		public OverlapTable overlaps;
+	}
+
+
+	/** identification of the particular content of an image file */
+	static class Key
+	{
+		final String path;
+		final long size;
+		final long mtime;
+
+		Key(final String path, final long size, final long mtime)
+		{
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+		}
+
+		static Key of(final String imgFile)
+		throws IOException
+		{
+			final Path p = Paths.get(imgFile).toAbsolutePath().normalize();
+			return new Key(p.toString(), Files.size(p), Files.getLastModifiedTime(p).toMillis());
+		}
+
+		void writeTo(final DataOutputStream out)
+		throws IOException
+		{
+			out.writeUTF(path);
+			out.writeLong(size);
+			out.writeLong(mtime);
+		}
+
+		static Key readFrom(final DataInputStream in)
+		throws IOException
+		{
+			return new Key(in.readUTF(), in.readLong(), in.readLong());
+		}
+
+		boolean sameAs(final Key k)
+		{
+			return k != null && size == k.size && mtime == k.mtime && path.equals(k.path);
+		}
+	}
+
+
+	public static
+	Path sidecarFor(final String imgFile)
+	{
+		return Paths.get(imgFile + SUFFIX);
+	}
+
+
+	/** stores the label index of the marker image 'markerFile' */
+	public static
+	void saveMarker(final String markerFile, final LabelBoxTable boxes, final LabelVoxelLists voxels)
+	throws IOException
+	{
+		final Key key = Key.of(markerFile);
+		save(markerFile, out -> {
+			key.writeTo(out);
+			boxes.writeTo(out);
+			out.writeBoolean(voxels != null);
+			if (voxels != null) voxels.writeTo(out);
+		});
+	}
+
+	/** stores the label index of the input image 'imgFile', the 'overlaps'
+	    (if non-null) must have been computed against the 'markerFile' */
+	public static
+	void saveInput(final String imgFile, final LabelBoxTable boxes,
+	               final OverlapTable overlaps, final String markerFile)
+	throws IOException
+	{
+		final Key key = Key.of(imgFile);
+		final Key markerKey = overlaps != null ? Key.of(markerFile) : null;
+		save(imgFile, out -> {
+			key.writeTo(out);
+			boxes.writeTo(out);
+			out.writeBoolean(overlaps != null);
+			if (overlaps != null) {
+				markerKey.writeTo(out);
+				overlaps.writeTo(out);
+			}
+		});
+	}
+
+
+	/** returns the label index of the marker image 'markerFile',
+	    or null if there is no valid sidecar for it */
+	public static
+	Entry loadMarker(final String markerFile)
+	throws IOException
+	{
+		final Key key = Key.of(markerFile);
+		try (DataInputStream in = open(markerFile)) {
+			if (in == null || !key.sameAs(Key.readFrom(in))) return null;
+
+			final Entry e = new Entry();
+			e.boxes = LabelBoxTable.readFrom(in);
+			e.voxels = in.readBoolean() ? LabelVoxelLists.readFrom(in) : null;
+			return e;
+		}
+	}
+
+	/** returns the label index of the input image 'imgFile', or null if there
+	    is no valid sidecar for it; the overlaps are provided only if they were
+	    computed against the current content of the 'markerFile' */
+	public static
+	Entry loadInput(final String imgFile, final String markerFile)
+	throws IOException
+	{
+		final Key key = Key.of(imgFile);
+		try (DataInputStream in = open(imgFile)) {
+			if (in == null || !key.sameAs(Key.readFrom(in))) return null;
+
+			final Entry e = new Entry();
+			e.boxes = LabelBoxTable.readFrom(in);
+			if (in.readBoolean() && Key.readFrom(in).sameAs(Key.of(markerFile)))
+				e.overlaps = OverlapTable.readFrom(in);
+			return e;
+		}
+	}
+
+
+	interface Writer
+	{ void write(final DataOutputStream out) throws IOException; }
+
+	private static
+	void save(final String imgFile, final Writer writer)
+	throws IOException
+	{
+		//write aside first, and then replace the sidecar at once,
+		//so that no one reads a half-written sidecar
+		final Path sidecar = sidecarFor(imgFile);
+		final Path tmp = Paths.get(sidecar.toString() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writer.write(out);
+		}
+
+		try {
+			Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/** returns a stream positioned right after the header, or null if there
+	    is no sidecar or it is of a different format */
+	private static
+	DataInputStream open(final String imgFile)
+	throws IOException
+	{
+		final DataInputStream in;
+		try {
+			in = new DataInputStream(
+					new BufferedInputStream(Files.newInputStream(sidecarFor(imgFile)), 1 << 16));
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			in.close();
+			return null;
+		}
+		return in;
+	}
+}
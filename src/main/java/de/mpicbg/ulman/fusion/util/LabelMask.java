@@ -0,0 +1,89 @@
+package de.mpicbg.ulman.fusion.util;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Bit mask of one label within a box, together with the number of its voxels.
+ * The bits follow the flat iteration order over the box, that is, the first
+ * dimension changes the fastest. Once created, the mask is only read, so
+ * it can be queried from multiple threads concurrently.
+ *
+ * It serves as a segment that need not be swept again, see JaccardBatch.addPair().
+ */
+public class LabelMask
+{
+	/** creates the mask of the voxels of the 'img' that equal to the 'label'
+	    (compared as doubles), the 'img' is visited only inside the box 'min'-'max' */
+	public static <T extends RealType<T>>
+	LabelMask of(final RandomAccessibleInterval<T> img, final double label,
+	             final long[] min, final long[] max)
+	{
+		final LabelMask mask = new LabelMask(min,max);
+		long idx = 0;
+		for (T px : Views.flatIterable(Views.interval(img, new FinalInterval(min,max))))
+		{
+			if (px.getRealDouble() == label) {
+				mask.bits[(int)(idx >>> 6)] |= 1L << idx;
+				++mask.size;
+			}
+			++idx;
+		}
+		return mask;
+	}
+
+	public LabelMask(final long[] min, final long[] max)
+	{
+		dim = min.length;
+		this.min = min.clone();
+		this.max = max.clone();
+
+		strides = new long[dim];
+		long noOfVoxels = 1;
+		for (int n = 0; n < dim; ++n) {
+			strides[n] = noOfVoxels;
+			noOfVoxels *= max[n]-min[n] +1;
+		}
+		bits = new long[ (int)((noOfVoxels + 63) >>> 6) ];
+	}
+
+	private final int dim;
+	private final long[] min, max, strides;
+	private final long[] bits;
+	private long size = 0;
+
+
+	public int numDimensions()
+	{ return dim; }
+
+	/** returns the number of voxels of the label */
+	public long size()
+	{ return size; }
+
+	/** returns whether the voxel at the 'pos' (of at least numDimensions() coordinates) belongs to the label */
+	public boolean isSetAt(final long[] pos)
+	{
+		long idx = 0;
+		for (int n = 0; n < dim; ++n) {
+			if (pos[n] < min[n] || pos[n] > max[n]) return false;
+			idx += (pos[n]-min[n]) * strides[n];
+		}
+		return (bits[(int)(idx >>> 6)] & (1L << idx)) != 0;
+	}
+
+	/** returns the smallest interval covering the box of this mask and the first
+	    numDimensions() dimensions of the 'roi' */
+	public Interval unionWith(final Interval roi)
+	{
+		final long[] uMin = new long[dim];
+		final long[] uMax = new long[dim];
+		for (int n = 0; n < dim; ++n) {
+			uMin[n] = Math.min(min[n], roi.min(n));
+			uMax[n] = Math.max(max[n], roi.max(n));
+		}
+		return new FinalInterval(uMin,uMax);
+	}
+}
@@ -0,0 +1,171 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per-label lists of voxels, the voxels are stored as flat offsets into an image of
+ * the given geometry (min corner and size). The offset of a voxel is its position in
+ * the flat iteration order over the image, that is, the first dimension changes the
+ * fastest -- which makes the offset equal to the index into the pixel array of
+ * an ArrayImg of that geometry.
+ *
+ * The lists are addressed by the same index as the labels in the accompanying
+ * LabelBoxTable, and the voxels in every list are kept in the order in which
+ * they were added.
+ */
+public class LabelVoxelLists
+{
+	public LabelVoxelLists(final long[] imgMin, final long[] imgSize)
+	{
+		dim = imgMin.length;
+		min = imgMin.clone();
+		size = imgSize.clone();
+
+		strides = new long[dim];
+		strides[0] = 1;
+		for (int n = 1; n < dim; ++n) strides[n] = strides[n-1] * size[n-1];
+	}
+
+	private final int dim;
+	private final long[] min, size, strides;
+
+	private long[][] lists = new long[100][];
+	private int[] counts = new int[100];
+	private int noOfLists = 0;
+
+
+	public int numDimensions()
+	{ return dim; }
+
+	/** returns the number of lists, which is the highest index added plus one */
+	public int size()
+	{ return noOfLists; }
+
+	/** returns the number of voxels in the list of the index 'idx' */
+	public int countAt(final int idx)
+	{ return idx < noOfLists ? counts[idx] : 0; }
+
+	/** returns the 'i'-th voxel (as a flat offset) from the list of the index 'idx' */
+	public long offsetAt(final int idx, final int i)
+	{ return lists[idx][i]; }
+
+	/** returns the flat offset of the position 'pos' */
+	public long offsetOf(final long[] pos)
+	{
+		long offset = 0;
+		for (int n = 0; n < dim; ++n) offset += (pos[n]-min[n]) * strides[n];
+		return offset;
+	}
+
+	/** converts the flat 'offset' back to the position 'pos' */
+	public void localize(long offset, final long[] pos)
+	{
+		for (int n = dim-1; n >= 0; --n) {
+			pos[n] = offset / strides[n];
+			offset -= pos[n] * strides[n];
+			pos[n] += min[n];
+		}
+	}
+
+	/** converts the 'i'-th voxel from the list of the index 'idx' to the position 'pos' */
+	public void localizeAt(final int idx, final int i, final long[] pos)
+	{ localize(lists[idx][i], pos); }
+
+	/** adds the position 'pos' to the list of the index 'idx' */
+	public void add(final int idx, final long[] pos)
+	{ addOffset(idx, offsetOf(pos)); }
+
+	/** adds the flat 'offset' to the list of the index 'idx' */
+	public void addOffset(final int idx, final long offset)
+	{
+		ensureList(idx, 1);
+		lists[idx][counts[idx]++] = offset;
+	}
+
+	/** appends the whole list of the index 'srcIdx' from the 'src' to the list
+	    of the index 'idx' here; both objects must be of the same geometry */
+	public void appendAll(final LabelVoxelLists src, final int srcIdx, final int idx)
+	{
+		final int cnt = src.countAt(srcIdx);
+		if (cnt == 0) return;
+
+		ensureList(idx, cnt);
+		System.arraycopy(src.lists[srcIdx], 0, lists[idx], counts[idx], cnt);
+		counts[idx] += cnt;
+	}
+
+	/** returns an estimate of the memory (in bytes) occupied by the lists */
+	public long estimateBytes()
+	{
+		long bytes = 8L*lists.length + 4L*counts.length;
+		for (int idx = 0; idx < noOfLists; ++idx)
+			if (lists[idx] != null) bytes += 8L*lists[idx].length + 16;
+		return bytes;
+	}
+
+	/** releases the unused capacity of all lists */
+	public void trimToSize()
+	{
+		for (int idx = 0; idx < noOfLists; ++idx)
+			if (lists[idx] != null && lists[idx].length > counts[idx])
+				lists[idx] = Arrays.copyOf(lists[idx], counts[idx]);
+	}
+
+	/** writes the geometry and all lists */
+	public void writeTo(final DataOutput out)
+	throws IOException
+	{
+		out.writeInt(dim);
+		for (int n = 0; n < dim; ++n) { out.writeLong(min[n]); out.writeLong(size[n]); }
+		out.writeInt(noOfLists);
+		for (int idx = 0; idx < noOfLists; ++idx) {
+			out.writeInt(counts[idx]);
+			for (int i = 0; i < counts[idx]; ++i) out.writeLong(lists[idx][i]);
+		}
+	}
+
+	/** creates new lists from the content previously stored with writeTo() */
+	public static
+	LabelVoxelLists readFrom(final DataInput in)
+	throws IOException
+	{
+		final int dim = in.readInt();
+		if (dim < 1)
+			throw new IOException("Corrupted voxel lists: dim="+dim);
+
+		final long[] min = new long[dim];
+		final long[] size = new long[dim];
+		for (int n = 0; n < dim; ++n) { min[n] = in.readLong(); size[n] = in.readLong(); }
+
+		final LabelVoxelLists vl = new LabelVoxelLists(min, size);
+		final int noOfLists = in.readInt();
+		for (int idx = 0; idx < noOfLists; ++idx) {
+			final int cnt = in.readInt();
+			if (cnt < 0)
+				throw new IOException("Corrupted voxel lists: count="+cnt);
+			vl.ensureList(idx, cnt);
+			for (int i = 0; i < cnt; ++i) vl.lists[idx][i] = in.readLong();
+			vl.counts[idx] = cnt;
+		}
+		return vl;
+	}
+
+	private void ensureList(final int idx, final int extraSpace)
+	{
+		if (idx >= lists.length) {
+			final int newLength = Math.max(2*lists.length, idx+1);
+			lists = Arrays.copyOf(lists, newLength);
+			counts = Arrays.copyOf(counts, newLength);
+		}
+		if (idx >= noOfLists) noOfLists = idx+1;
+
+		final long[] list = lists[idx];
+		if (list == null)
+			lists[idx] = new long[Math.max(64, extraSpace)];
+		else if (counts[idx]+extraSpace > list.length)
+			lists[idx] = Arrays.copyOf(list, Math.max(2*list.length, counts[idx]+extraSpace));
+	}
+}
@@ -0,0 +1,150 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.util.Arrays;
+
+/**
+ * Reusable map from primitive longs to primitive ints, e.g., from flat voxel
+ * offsets or from bit patterns to some indices. The entries are kept in the
+ * order of their first put() and are addressed also by their index in this
+ * order.
+ *
+ * The key-to-index lookup is an open-addressing hash table, so no boxing
+ * happens. The map is meant to be clear()-ed and filled again many times,
+ * which causes no allocations once the internal arrays have grown to the
+ * needed sizes. Entries cannot be removed individually.
+ */
+public class LongIntMap
+{
+	public LongIntMap()
+	{
+		this(64);
+	}
+
+	public LongIntMap(final int expectedSize)
+	{
+		final int capacity = Math.max(expectedSize, 4);
+		keys = new long[capacity];
+		values = new int[capacity];
+		slots = new int[ slotsFor(capacity) ];
+		slotsMask = slots.length-1;
+	}
+
+	/** keys in the order of their addition */
+	private long[] keys;
+	/** values of the keys from the 'keys', in the same order */
+	private int[] values;
+	/** number of valid entries in 'keys' */
+	private int size = 0;
+
+	/** hash table: stores (index into 'keys')+1, 0 denotes an empty slot */
+	private int[] slots;
+	private int slotsMask;
+
+	private static
+	int slotsFor(final int capacity)
+	{
+		//keep the hash table at most half-full
+		int s = 8;
+		while (s < 2*capacity) s <<= 1;
+		return s;
+	}
+
+	private static
+	int hash(final long key)
+	{
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+
+	/** returns the number of entries */
+	public int size()
+	{ return size; }
+
+	/** forgets all entries, keeps the allocated memory */
+	public void clear()
+	{
+		if (size > slots.length/8)
+			Arrays.fill(slots, 0);
+		else
+			//NB: only the used slots are visited, which is cheap for a few entries
+			for (int idx = 0; idx < size; ++idx) {
+				int slot = hash(keys[idx]) & slotsMask;
+				while (slots[slot] != 0) { slots[slot] = 0; slot = (slot+1) & slotsMask; }
+			}
+		size = 0;
+	}
+
+	/** returns the key of the entry at the index 'idx' */
+	public long keyAt(final int idx)
+	{ return keys[idx]; }
+
+	/** returns the value of the entry at the index 'idx' */
+	public int valueAt(final int idx)
+	{ return values[idx]; }
+
+	/** sets the value of the entry at the index 'idx' */
+	public void setValueAt(final int idx, final int value)
+	{ values[idx] = value; }
+
+	/** returns index of the entry with the 'key', or -1 if it is not present */
+	public int indexOf(final long key)
+	{
+		int slot = hash(key) & slotsMask;
+		int idx;
+		while ((idx = slots[slot]) != 0)
+		{
+			if (keys[idx-1] == key) return idx-1;
+			slot = (slot+1) & slotsMask;
+		}
+		return -1;
+	}
+
+	/** returns the value of the 'key', or the 'missingValue' if it is not present */
+	public int get(final long key, final int missingValue)
+	{
+		final int idx = indexOf(key);
+		return idx > -1 ? values[idx] : missingValue;
+	}
+
+	/** sets the 'value' to the 'key' (adds the entry if it is not present),
+	    and returns the index of the entry */
+	public int put(final long key, final int value)
+	{
+		int slot = hash(key) & slotsMask;
+		int idx;
+		while ((idx = slots[slot]) != 0)
+		{
+			if (keys[idx-1] == key) {
+				values[idx-1] = value;
+				return idx-1;
+			}
+			slot = (slot+1) & slotsMask;
+		}
+
+		if (size == keys.length) {
+			grow();
+			return put(key, value);
+		}
+
+		keys[size] = key;
+		values[size] = value;
+		slots[slot] = ++size;
+		return size-1;
+	}
+
+	private void grow()
+	{
+		final int capacity = 2*keys.length;
+		keys = Arrays.copyOf(keys, capacity);
+		values = Arrays.copyOf(values, capacity);
+
+		slots = new int[ slotsFor(capacity) ];
+		slotsMask = slots.length-1;
+		for (int idx = 0; idx < size; ++idx) {
+			int slot = hash(keys[idx]) & slotsMask;
+			while (slots[slot] != 0) slot = (slot+1) & slotsMask;
+			slots[slot] = idx+1;
+		}
+	}
+}
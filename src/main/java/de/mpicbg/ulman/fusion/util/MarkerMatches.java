@@ -0,0 +1,60 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.util.Arrays;
+
+/**
+ * Per marker (indexed as in the markers' LabelBoxTable) and per input image,
+ * the input label that was matched with the marker, or a non-positive value
+ * if there was no match. The matches of a marker are either all known or all
+ * unknown.
+ *
+ * The matches are valid only for the same inputs, markers and matching
+ * settings, which the fusion algorithm describes with a "signature" string;
+ * prepareFor() forgets all matches if anything of it changes.
+ */
+public class MarkerMatches
+{
+	private int noOfMarkers = 0;
+	private int noOfInputs = 0;
+	private String signature = null;
+
+	private float[] labels = new float[0];
+	private boolean[] isKnown = new boolean[0];
+
+	/** keeps the matches if they are for the same geometry and 'signature', otherwise
+	    forgets them, and returns whether the matches were kept */
+	public boolean prepareFor(final int noOfMarkers, final int noOfInputs, final String signature)
+	{
+		if (noOfMarkers == this.noOfMarkers && noOfInputs == this.noOfInputs
+				&& signature.equals(this.signature)) return true;
+
+		this.noOfMarkers = noOfMarkers;
+		this.noOfInputs = noOfInputs;
+		this.signature = signature;
+		labels = new float[noOfMarkers*noOfInputs];
+		isKnown = new boolean[noOfMarkers];
+		return false;
+	}
+
+	/** forgets all matches */
+	public void clear()
+	{
+		Arrays.fill(isKnown, false);
+	}
+
+	/** returns true if the matches of the marker 'markerIdx' are known */
+	public boolean isKnown(final int markerIdx)
+	{ return isKnown[markerIdx]; }
+
+	/** declares the matches of the marker 'markerIdx' all known */
+	public void setKnown(final int markerIdx)
+	{ isKnown[markerIdx] = true; }
+
+	/** returns the label of the input 'inputIdx' matched with the marker 'markerIdx' */
+	public float labelAt(final int markerIdx, final int inputIdx)
+	{ return labels[markerIdx*noOfInputs + inputIdx]; }
+
+	/** sets the label of the input 'inputIdx' matched with the marker 'markerIdx' */
+	public void setLabelAt(final int markerIdx, final int inputIdx, final float label)
+	{ labels[markerIdx*noOfInputs + inputIdx] = label; }
+}
@@ -0,0 +1,177 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.util.Arrays;
+
+/**
+ * Per-marker bookkeeping of the label insertion: the numbers of colliding and
+ * not colliding voxels of the markers, and flags of the markers (e.g., being in
+ * collision or at the image border). The markers are remapped to the dense
+ * indices 0..size()-1 (in the order of their first appearance), and all values
+ * are kept in primitive arrays indexed with them.
+ *
+ * The labels are mapped to the indices directly with an array (for the labels
+ * from 0 to DIRECT_LABELS-1), the other labels with a LongIntMap; neither boxes.
+ * The table is meant to be clear()-ed and filled again many times, which causes
+ * no allocations once the internal arrays have grown to the needed sizes.
+ */
+public class MarkerTable
+{
+	/** flag: the marker is in some collision (and is to be removed) */
+	public static final int COLLIDING  = 1;
+	/** flag: the marker is touching the output image border */
+	public static final int BORDERING  = 2;
+	/** flag: not enough of input segments were found for the marker */
+	public static final int NO_MATCHES = 4;
+
+	private static final int NO_OF_FLAGS = 3;
+	/** internal flag: the volumes of the marker were set */
+	private static final int HAS_VOLUMES = 1 << NO_OF_FLAGS;
+
+	/** labels below this are mapped with the direct array */
+	public static final int DIRECT_LABELS = 1 << 20;
+
+	//per marker (index)
+	private int[] labels = new int[256];
+	private long[] collidingVolumes = new long[256];
+	private long[] noCollidingVolumes = new long[256];
+	private int[] flags = new int[256];
+	private int size = 0;
+
+	/** number of markers with the flag, per bit of the flag */
+	private final int[] flagCounts = new int[NO_OF_FLAGS];
+
+	/** label -> index+1, 0 denotes a label not present */
+	private int[] directIndex = new int[1024];
+	private final LongIntMap otherIndex = new LongIntMap();
+
+
+	/** forgets all markers, keeps the allocated memory */
+	public void clear()
+	{
+		for (int i = 0; i < size; ++i)
+			if (labels[i] >= 0 && labels[i] < directIndex.length) directIndex[labels[i]] = 0;
+		otherIndex.clear();
+		Arrays.fill(flagCounts, 0);
+		size = 0;
+	}
+
+	/** returns the number of markers */
+	public int size()
+	{ return size; }
+
+	/** returns the label of the marker at the 'idx' */
+	public int labelAt(final int idx)
+	{ return labels[idx]; }
+
+	/** returns the index of the marker 'label', or -1 if it is not present */
+	public int indexOf(final int label)
+	{
+		if (label >= 0 && label < DIRECT_LABELS)
+			return label < directIndex.length ? directIndex[label]-1 : -1;
+		return otherIndex.get(label, -1);
+	}
+
+	/** returns the index of the marker 'label', the marker is added if it is not present */
+	public int add(final int label)
+	{
+		final int idx = indexOf(label);
+		if (idx > -1) return idx;
+
+		if (size == labels.length)
+		{
+			final int capacity = 2*size;
+			labels = Arrays.copyOf(labels, capacity);
+			collidingVolumes = Arrays.copyOf(collidingVolumes, capacity);
+			noCollidingVolumes = Arrays.copyOf(noCollidingVolumes, capacity);
+			flags = Arrays.copyOf(flags, capacity);
+		}
+		labels[size] = label;
+		collidingVolumes[size] = 0;
+		noCollidingVolumes[size] = 0;
+		flags[size] = 0;
+
+		if (label >= 0 && label < DIRECT_LABELS)
+		{
+			if (label >= directIndex.length)
+				directIndex = Arrays.copyOf(directIndex, Math.min(Math.max(2*directIndex.length, label+1), DIRECT_LABELS));
+			directIndex[label] = size+1;
+		}
+		else otherIndex.put(label, size);
+		return size++;
+	}
+
+
+	// ------------- volumes -------------
+	/** sets the volumes of the marker 'label' (which is added if not present) */
+	public void setVolumes(final int label, final long collidingVolume, final long noCollidingVolume)
+	{
+		final int idx = add(label);
+		collidingVolumes[idx] = collidingVolume;
+		noCollidingVolumes[idx] = noCollidingVolume;
+		flags[idx] |= HAS_VOLUMES;
+	}
+
+	/** adds to the volumes of the marker 'label' (which is added if not present) */
+	public void addVolumes(final int label, final long collidingDelta, final long noCollidingDelta)
+	{
+		final int idx = add(label);
+		collidingVolumes[idx] += collidingDelta;
+		noCollidingVolumes[idx] += noCollidingDelta;
+		flags[idx] |= HAS_VOLUMES;
+	}
+
+	/** returns true if the volumes of the marker at the 'idx' were set (or added to) */
+	public boolean hasVolumesAt(final int idx)
+	{ return (flags[idx] & HAS_VOLUMES) != 0; }
+
+	public long collidingVolumeAt(final int idx)
+	{ return collidingVolumes[idx]; }
+
+	public long noCollidingVolumeAt(final int idx)
+	{ return noCollidingVolumes[idx]; }
+
+	/** returns the colliding volume of the marker 'label', 0 if it is not present */
+	public long collidingVolumeOf(final int label)
+	{
+		final int idx = indexOf(label);
+		return idx > -1 ? collidingVolumes[idx] : 0;
+	}
+
+	/** returns the not colliding volume of the marker 'label', 0 if it is not present */
+	public long noCollidingVolumeOf(final int label)
+	{
+		final int idx = indexOf(label);
+		return idx > -1 ? noCollidingVolumes[idx] : 0;
+	}
+
+
+	// ------------- flags -------------
+	/** sets the 'flag' (one of COLLIDING, BORDERING, NO_MATCHES) to the marker 'label' (which is added if not present) */
+	public void setFlag(final int label, final int flag)
+	{
+		setFlagAt(add(label), flag);
+	}
+
+	/** sets the 'flag' to the marker at the 'idx' */
+	public void setFlagAt(final int idx, final int flag)
+	{
+		if ((flags[idx] & flag) != 0) return;
+		flags[idx] |= flag;
+		++flagCounts[Integer.numberOfTrailingZeros(flag)];
+	}
+
+	/** returns true if the marker at the 'idx' has the 'flag' */
+	public boolean hasFlagAt(final int idx, final int flag)
+	{ return (flags[idx] & flag) != 0; }
+
+	/** returns true if the marker 'label' is present and has any of the 'flags' (e.g., COLLIDING|NO_MATCHES) */
+	public boolean hasAnyFlag(final int label, final int flags)
+	{
+		final int idx = indexOf(label);
+		return idx > -1 && (this.flags[idx] & flags) != 0;
+	}
+
+	/** returns the number of markers with the 'flag' */
+	public int countOf(final int flag)
+	{ return flagCounts[Integer.numberOfTrailingZeros(flag)]; }
+}
@@ -0,0 +1,154 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sparse contingency table of overlaps between markers (rows) and labels of one
+ * input image: for every marker, it lists the input labels found "under" the
+ * marker's voxels together with the number of such voxels. The background
+ * (label 0) is listed as well, so the counts in a row sum up to the size of
+ * the marker.
+ *
+ * The rows are addressed by the same index as the markers in the accompanying
+ * (marker) LabelBoxTable.
+ */
+public class OverlapTable
+{
+	private int[][] rowLabels = new int[100][];
+	private int[][] rowCounts = new int[100][];
+	private int[] rowSizes = new int[100];
+	private int noOfRows = 0;
+
+
+	/** returns the number of rows, which is the highest row index used plus one */
+	public int size()
+	{ return noOfRows; }
+
+	/** returns the number of distinct input labels listed in the 'row' */
+	public int rowSize(final int row)
+	{ return row < noOfRows ? rowSizes[row] : 0; }
+
+	/** returns the 'k'-th input label listed in the 'row' */
+	public int labelAt(final int row, final int k)
+	{ return rowLabels[row][k]; }
+
+	/** returns the overlap of the 'k'-th input label listed in the 'row' */
+	public int countAt(final int row, final int k)
+	{ return rowCounts[row][k]; }
+
+	/** returns the overlap of the input 'label' with the marker of the 'row' */
+	public int getCount(final int row, final int label)
+	{
+		final int k = find(row, label);
+		return k > -1 ? rowCounts[row][k] : 0;
+	}
+
+	/** returns the sum of all overlaps in the 'row', which is the size of the marker */
+	public long rowTotal(final int row)
+	{
+		long sum = 0;
+		for (int k = 0; k < rowSize(row); ++k) sum += rowCounts[row][k];
+		return sum;
+	}
+
+	/** accounts one more voxel of the input 'label' under the marker of the 'row' */
+	public void add(final int row, final int label)
+	{ add(row, label, 1); }
+
+	/** accounts 'count' more voxels of the input 'label' under the marker of the 'row' */
+	public void add(final int row, final int label, final int count)
+	{
+		ensureRow(row);
+		int k = find(row, label);
+		if (k < 0)
+		{
+			k = rowSizes[row]++;
+			if (k == rowLabels[row].length) {
+				rowLabels[row] = Arrays.copyOf(rowLabels[row], 2*k);
+				rowCounts[row] = Arrays.copyOf(rowCounts[row], 2*k);
+			}
+			rowLabels[row][k] = label;
+			rowCounts[row][k] = 0;
+		}
+		rowCounts[row][k] += count;
+	}
+
+	/** adds the whole row 'srcRow' from the 'src' to the 'row' here */
+	/** returns an estimate of the memory (in bytes) occupied by this table */
+	public long estimateBytes()
+	{
+		long bytes = 8L*rowLabels.length + 8L*rowCounts.length + 4L*rowSizes.length;
+		for (int row = 0; row < noOfRows; ++row)
+			if (rowLabels[row] != null) bytes += 4L*(rowLabels[row].length + rowCounts[row].length) + 32;
+		return bytes;
+	}
+
+	public void addRow(final OverlapTable src, final int srcRow, final int row)
+	{
+		for (int k = 0; k < src.rowSize(srcRow); ++k)
+			add(row, src.rowLabels[srcRow][k], src.rowCounts[srcRow][k]);
+	}
+
+	/** writes all rows */
+	public void writeTo(final DataOutput out)
+	throws IOException
+	{
+		out.writeInt(noOfRows);
+		for (int row = 0; row < noOfRows; ++row) {
+			out.writeInt(rowSizes[row]);
+			for (int k = 0; k < rowSizes[row]; ++k) {
+				out.writeInt(rowLabels[row][k]);
+				out.writeInt(rowCounts[row][k]);
+			}
+		}
+	}
+
+	/** creates a new table from the content previously stored with writeTo() */
+	public static
+	OverlapTable readFrom(final DataInput in)
+	throws IOException
+	{
+		final OverlapTable table = new OverlapTable();
+		final int noOfRows = in.readInt();
+		if (noOfRows < 0)
+			throw new IOException("Corrupted overlap table: rows="+noOfRows);
+
+		for (int row = 0; row < noOfRows; ++row) {
+			final int rowSize = in.readInt();
+			if (rowSize == 0) continue;
+			for (int k = 0; k < rowSize; ++k) {
+				final int label = in.readInt();
+				table.add(row, label, in.readInt());
+			}
+		}
+		return table;
+	}
+
+	private int find(final int row, final int label)
+	{
+		if (row >= noOfRows || rowLabels[row] == null) return -1;
+		final int[] labels = rowLabels[row];
+		for (int k = 0; k < rowSizes[row]; ++k)
+			if (labels[k] == label) return k;
+		return -1;
+	}
+
+	private void ensureRow(final int row)
+	{
+		if (row >= rowLabels.length) {
+			final int newLength = Math.max(2*rowLabels.length, row+1);
+			rowLabels = Arrays.copyOf(rowLabels, newLength);
+			rowCounts = Arrays.copyOf(rowCounts, newLength);
+			rowSizes = Arrays.copyOf(rowSizes, newLength);
+		}
+		if (row >= noOfRows) noOfRows = row+1;
+
+		if (rowLabels[row] == null) {
+			rowLabels[row] = new int[4];
+			rowCounts[row] = new int[4];
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package de.mpicbg.ulman.fusion.util;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.IntervalView;
+
+/**
+ * Direct access to the primitive arrays behind an ArrayImg or a PlanarImg (or
+ * an interval view on them), to allow the hot loops to work with plain arrays
+ * instead of going through the (generic) cursors and types.
+ *
+ * The access is restricted to an ROI (the interval of the given view, or the
+ * whole image), which is traversed line by line: a line is the run of voxels
+ * along the first dimension, and since such a run is always stored consecutively
+ * in one array (one plane of the PlanarImg, or the only array of the ArrayImg),
+ * the voxels of the current line are addressed only with their index in the line.
+ * The lines are visited in the flat iteration order of the ROI.
+ *
+ * Use of() to obtain the access; it returns null for images that are not
+ * supported, in which case the caller shall use its generic code instead.
+ * An access obtained once can be moved on another ROI of the same image with
+ * reset(), which is much cheaper than obtaining a new access.
+ * The supported voxel types are the (un)signed 8, 16 and 32 bits integers,
+ * and the 32 and 64 bits floating point reals.
+ */
+public class PrimitiveImgAccess
+{
+	public enum Kind { BYTE, UBYTE, SHORT, USHORT, INT, UINT, FLOAT, DOUBLE }
+
+	/**
+	 * Returns the direct access for the 'img' (which can be an Img, ImgPlus,
+	 * or an interval view on them), or null if the 'img' is not backed by
+	 * supported primitive arrays.
+	 */
+	public static
+	PrimitiveImgAccess of(final Interval img)
+	{
+		//the ROI is given by the outer-most view
+		final Interval roi = img;
+
+		//find the underlying image
+		final Img<?> srcImg = sourceOf(img);
+		if (srcImg == null) return null;
+		final Object src = srcImg;
+		final int dim = srcImg.numDimensions();
+
+		final Object[] planes;
+		long planeSize;
+		if (src instanceof ArrayImg)
+		{
+			planes = new Object[] { ((ArrayDataAccess<?>)((ArrayImg<?,?>)src).update(null)).getCurrentStorageArray() };
+			planeSize = 1;
+			for (int d = 0; d < dim; ++d) planeSize *= srcImg.dimension(d);
+		}
+		else
+		{
+			final PlanarImg<?,?> pImg = (PlanarImg<?,?>)src;
+			planes = new Object[ pImg.numSlices() ];
+			for (int p = 0; p < planes.length; ++p)
+				planes[p] = ((ArrayDataAccess<?>)pImg.getPlane(p)).getCurrentStorageArray();
+			planeSize = srcImg.dimension(0) * (dim > 1 ? srcImg.dimension(1) : 1);
+		}
+
+		if (planes.length == 0 || planes[0] == null) return null;
+		final Kind kind = kindOf(srcImg.firstElement(), planes[0]);
+		if (kind == null) return null;
+
+		final PrimitiveImgAccess access = new PrimitiveImgAccess(kind, planes, planeSize, srcImg);
+		return access.reset(roi) ? access : null;
+	}
+
+	/**
+	 * Returns the ArrayImg or PlanarImg underneath the 'img' (which can be an Img,
+	 * ImgPlus, or an interval view on them), or null if there is no such image.
+	 * The returned image can serve to recognize accesses to the same image.
+	 */
+	public static
+	Img<?> sourceOf(final Interval img)
+	{
+		Object src = img;
+		while (src instanceof IntervalView || src instanceof ImgPlus)
+			src = src instanceof IntervalView ? ((IntervalView<?>)src).getSource() : ((ImgPlus<?>)src).getImg();
+		return src instanceof ArrayImg || src instanceof PlanarImg ? (Img<?>)src : null;
+	}
+
+	private static
+	Kind kindOf(final Object type, final Object array)
+	{
+		if (array instanceof byte[]) {
+			if (type instanceof UnsignedByteType) return Kind.UBYTE;
+			if (type instanceof ByteType) return Kind.BYTE;
+		}
+		else if (array instanceof short[]) {
+			if (type instanceof UnsignedShortType) return Kind.USHORT;
+			if (type instanceof ShortType) return Kind.SHORT;
+		}
+		else if (array instanceof int[]) {
+			if (type instanceof UnsignedIntType) return Kind.UINT;
+			if (type instanceof IntType) return Kind.INT;
+		}
+		else if (array instanceof float[]) {
+			if (type instanceof FloatType) return Kind.FLOAT;
+		}
+		else if (array instanceof double[]) {
+			if (type instanceof DoubleType) return Kind.DOUBLE;
+		}
+		return null;
+	}
+
+
+	private PrimitiveImgAccess(final Kind kind, final Object[] planes, final long planeSize,
+	                           final Interval img)
+	{
+		this.kind = kind;
+		this.planes = planes;
+		this.planeSize = planeSize;
+
+		dim = img.numDimensions();
+		imgMin = new long[dim];
+		imgMax = new long[dim];
+		strides = new long[dim];
+		roiMin = new long[dim];
+		roiMax = new long[dim];
+		linePos = new long[dim];
+
+		strides[0] = 1;
+		for (int d = 0; d < dim; ++d) {
+			imgMin[d] = img.min(d);
+			imgMax[d] = img.max(d);
+			if (d > 0) strides[d] = strides[d-1] * img.dimension(d-1);
+		}
+	}
+
+	public final Kind kind;
+	private final Object[] planes;
+	private final long planeSize;
+
+	private final int dim;
+	private final long[] imgMin, imgMax, strides;
+	private final long[] roiMin, roiMax;
+	private int lineLength;
+
+	//the current line
+	private final long[] linePos;
+	private Object line;
+	private int lineStart;
+	private boolean beforeFirstLine;
+
+	//the current line as typed arrays, to avoid casting for every voxel
+	private byte[] lineB;
+	private short[] lineS;
+	private int[] lineI;
+	private float[] lineF;
+	private double[] lineD;
+
+
+	public int numDimensions()
+	{ return dim; }
+
+	/** returns true if the 'other' has the ROI of the same size as this one */
+	public boolean isOfSameSize(final PrimitiveImgAccess other)
+	{
+		if (other.dim != dim) return false;
+		for (int d = 0; d < dim; ++d)
+			if (roiMax[d]-roiMin[d] != other.roiMax[d]-other.roiMin[d]) return false;
+		return true;
+	}
+
+	/** returns the number of voxels in the ROI */
+	public long size()
+	{
+		long size = 1;
+		for (int d = 0; d < dim; ++d) size *= roiMax[d]-roiMin[d] +1;
+		return size;
+	}
+
+	/** returns the number of voxels in every line */
+	public int lineLength()
+	{ return lineLength; }
+
+	/**
+	 * Moves the ROI onto the 'roi' (given in the coordinates of the image, which
+	 * is what an interval view on the image gives) and restarts the traversal.
+	 * Returns false, and leaves the access unusable, if the 'roi' does not
+	 * lie within the image.
+	 */
+	public boolean reset(final Interval roi)
+	{
+		if (roi.numDimensions() != dim) return false;
+		for (int d = 0; d < dim; ++d) {
+			roiMin[d] = roi.min(d);
+			roiMax[d] = roi.max(d);
+			if (roiMin[d] < imgMin[d] || roiMax[d] > imgMax[d] || roiMin[d] > roiMax[d]) return false;
+		}
+		lineLength = (int)(roiMax[0] - roiMin[0] +1);
+
+		resetLines();
+		return true;
+	}
+
+	/** restarts the traversal, the next call of nextLine() will move on the first line */
+	public void resetLines()
+	{
+		System.arraycopy(roiMin, 0, linePos, 0, dim);
+		beforeFirstLine = true;
+	}
+
+	/** moves on the next line, returns false if there is no more lines in the ROI */
+	public boolean nextLine()
+	{
+		if (beforeFirstLine) beforeFirstLine = false;
+		else
+		{
+			int d = 1;
+			while (d < dim && linePos[d] == roiMax[d]) { linePos[d] = roiMin[d]; ++d; }
+			if (d >= dim) return false;
+			++linePos[d];
+		}
+
+		long linear = 0;
+		for (int d = 0; d < dim; ++d) linear += (linePos[d]-imgMin[d]) * strides[d];
+		setLine(linear);
+		return true;
+	}
+
+	/** fills the 'pos' with the coordinate of the 'i'-th voxel of the current line */
+	public void localize(final int i, final int[] pos)
+	{
+		pos[0] = (int)(linePos[0] + i);
+		for (int d = 1; d < dim; ++d) pos[d] = (int)linePos[d];
+	}
+
+	/** returns the 'd'-th coordinate of the current line */
+	public long getLinePosition(final int d)
+	{ return linePos[d]; }
+
+	/** moves on the voxel given with its flat 'offset' from the image's min corner
+	    (see LabelVoxelLists), the voxel is then accessed with the index 0 */
+	public void setOffset(final long offset)
+	{ setLine(offset); }
+
+	private void setLine(final long linear)
+	{
+		line = planes[(int)(linear / planeSize)];
+		lineStart = (int)(linear % planeSize);
+		switch (kind) {
+		case BYTE: case UBYTE:  lineB = (byte[])line; break;
+		case SHORT: case USHORT: lineS = (short[])line; break;
+		case INT: case UINT:    lineI = (int[])line; break;
+		case FLOAT:  lineF = (float[])line; break;
+		case DOUBLE: lineD = (double[])line; break;
+		}
+	}
+
+
+	/** returns what getFloat() would return after the 'value' would be stored with setDouble() */
+	public float asStoredFloat(final double value)
+	{
+		switch (kind) {
+		case BYTE:   return (byte)(long)value;
+		case UBYTE:  return (long)value & 0xff;
+		case SHORT:  return (short)(long)value;
+		case USHORT: return (long)value & 0xffff;
+		case INT:    return (int)(long)value;
+		case UINT:   return (long)value & 0xffffffffL;
+		default:     return (float)value;
+		}
+	}
+
+	/** returns the 'i'-th voxel of the current line, the same as RealType.getRealFloat() would do */
+	public float getFloat(final int i)
+	{
+		final int j = lineStart + i;
+		switch (kind) {
+		case BYTE:   return lineB[j];
+		case UBYTE:  return lineB[j] & 0xff;
+		case SHORT:  return lineS[j];
+		case USHORT: return lineS[j] & 0xffff;
+		case INT:    return lineI[j];
+		case UINT:   return lineI[j] & 0xffffffffL;
+		case FLOAT:  return lineF[j];
+		default:     return (float)lineD[j];
+		}
+	}
+
+	/** returns the 'i'-th voxel of the current line, the same as RealType.getRealDouble() would do */
+	public double getDouble(final int i)
+	{
+		final int j = lineStart + i;
+		switch (kind) {
+		case BYTE:   return lineB[j];
+		case UBYTE:  return lineB[j] & 0xff;
+		case SHORT:  return lineS[j];
+		case USHORT: return lineS[j] & 0xffff;
+		case INT:    return lineI[j];
+		case UINT:   return lineI[j] & 0xffffffffL;
+		case FLOAT:  return lineF[j];
+		default:     return lineD[j];
+		}
+	}
+
+	/** returns the 'i'-th voxel of the current line, the same as IntegerType.getInteger() would do */
+	public int getInt(final int i)
+	{
+		final int j = lineStart + i;
+		switch (kind) {
+		case BYTE:   return lineB[j];
+		case UBYTE:  return lineB[j] & 0xff;
+		case SHORT:  return lineS[j];
+		case USHORT: return lineS[j] & 0xffff;
+		case INT: case UINT: return lineI[j];
+		case FLOAT:  return (int)lineF[j];
+		default:     return (int)lineD[j];
+		}
+	}
+
+	/** sets the 'i'-th voxel of the current line, integer types are set
+	    the same (wrapping) way as IntegerType.setInteger() would do */
+	public void setInt(final int i, final int value)
+	{
+		final int j = lineStart + i;
+		switch (kind) {
+		case BYTE: case UBYTE:   lineB[j] = (byte)value; break;
+		case SHORT: case USHORT: lineS[j] = (short)value; break;
+		case INT: case UINT:     lineI[j] = value; break;
+		case FLOAT:  lineF[j] = value; break;
+		default:     lineD[j] = value;
+		}
+	}
+
+	/** sets the 'i'-th voxel of the current line, the 'value' is expected to be
+	    an integer when setting integer types (which then wrap around their range) */
+	public void setDouble(final int i, final double value)
+	{
+		final int j = lineStart + i;
+		switch (kind) {
+		case BYTE: case UBYTE:   lineB[j] = (byte)(long)value; break;
+		case SHORT: case USHORT: lineS[j] = (short)(long)value; break;
+		case INT: case UINT:     lineI[j] = (int)(long)value; break;
+		case FLOAT:  lineF[j] = (float)value; break;
+		default:     lineD[j] = value;
+		}
+	}
+
+	/** adds the 'value' to the 'i'-th voxel of the current line, the same
+	    (wrapping or rounding) way as NumericType.add() would do */
+	public void add(final int i, final double value)
+	{
+		final int j = lineStart + i;
+		switch (kind) {
+		case BYTE: case UBYTE:   lineB[j] += (long)value; break;
+		case SHORT: case USHORT: lineS[j] += (long)value; break;
+		case INT: case UINT:     lineI[j] += (long)value; break;
+		case FLOAT:  lineF[j] += (float)value; break;
+		default:     lineD[j] += value;
+		}
+	}
+}
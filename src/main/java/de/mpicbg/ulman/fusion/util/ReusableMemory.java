@@ -1,7 +1,6 @@
 package de.mpicbg.ulman.fusion.util;
 
 import de.mpicbg.ulman.fusion.ng.AbstractWeightedVotingRoisFusionAlgorithm;
-import de.mpicbg.ulman.fusion.ng.insert.CollisionsManagingLabelInsertor.PxCoord;
 import net.imglib2.img.Img;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
@@ -12,7 +11,6 @@ import de.mpicbg.ulman.fusion.util.loggers.NoOutputLogger;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Vector;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -34,12 +32,8 @@ public class ReusableMemory<LT extends IntegerType<LT>, ET extends RealType<ET>>
 		return refImage.factory().imgFactory(refExtType).create(refImage);
 	}
 
-	private Vector<PxCoord> createPx() {
-		return new Vector<>(500000);
-	}
-
-	private Map<Long,Integer> createCatalogue() {
-		return new HashMap<>(5000);
+	private CollisionVoxels createCollisionVoxels() {
+		return new CollisionVoxels(50000);
 	}
 
 
@@ -80,9 +74,8 @@ public class ReusableMemory<LT extends IntegerType<LT>, ET extends RealType<ET>>
 	private final List<Img<LT>> ccaInImgs = new ArrayList<>(EXPECTED_BORROWERS_NUM);
 	private final List<Img<LT>> ccaOutImgs = new ArrayList<>(EXPECTED_BORROWERS_NUM);
 
-	private final List<Vector<PxCoord>> interesectionPxs = new ArrayList<>(EXPECTED_BORROWERS_NUM);
-	private final List<Vector<PxCoord>> tempHiddenPxs = new ArrayList<>(EXPECTED_BORROWERS_NUM);
-	private final List<Map<Long,Integer>> intersectionCatalogues = new ArrayList<>(EXPECTED_BORROWERS_NUM);
+	private final List<CollisionVoxels> collisionVoxels = new ArrayList<>(EXPECTED_BORROWERS_NUM);
+	private final List<CollisionVoxels> tempHiddenVoxels = new ArrayList<>(EXPECTED_BORROWERS_NUM);
 
 	/**
 	 * Borrows "tmpImg" to this caller, and blocks the other images from this object (the singleton)
@@ -112,14 +105,14 @@ public class ReusableMemory<LT extends IntegerType<LT>, ET extends RealType<ET>>
 		return ccaOutImgs.get( register(borrowerID) );
 	}
 
-	public Vector<PxCoord> getInteresectionPx(final int borrowerID) {
-		return interesectionPxs.get( register(borrowerID) );
-	}
-	public Vector<PxCoord> getTempHiddenPx(final int borrowerID) {
-		return tempHiddenPxs.get( register(borrowerID) );
+	/** See {@link #getTmpImg(int)} */
+	public CollisionVoxels getCollisionVoxels(final int borrowerID) {
+		return collisionVoxels.get( register(borrowerID) );
 	}
-	public Map<Long,Integer> getCatalogue(final int borrowerID) {
-		return intersectionCatalogues.get( register(borrowerID) );
+
+	/** See {@link #getTmpImg(int)} */
+	public CollisionVoxels getTempHiddenVoxels(final int borrowerID) {
+		return tempHiddenVoxels.get( register(borrowerID) );
 	}
 
 	/**
@@ -166,9 +159,8 @@ public class ReusableMemory<LT extends IntegerType<LT>, ET extends RealType<ET>>
 			outImgs.add( createLabelImage() );
 			ccaInImgs.add( createLabelImage() );
 			ccaOutImgs.add( createLabelImage() );
-			interesectionPxs.add( createPx() );
-			tempHiddenPxs.add( createPx() );
-			intersectionCatalogues.add( createCatalogue() );
+			collisionVoxels.add( createCollisionVoxels() );
+			tempHiddenVoxels.add( createCollisionVoxels() );
 			//log.debug("ReusableMem.registering: new borrower "+borrowerID+" will get new slot "+subjectToData.get(borrowerID));
 			return new_i;
 		}
@@ -224,9 +216,8 @@ public class ReusableMemory<LT extends IntegerType<LT>, ET extends RealType<ET>>
 				sb.append("  ccaOutImg["+i+"]: "
 						+AbstractWeightedVotingRoisFusionAlgorithm.reportImageSize(
 								ccaOutImgs.get(i), LTpxSize) +"\n");
-				sb.append("  intersectionPxs["+i+"] vector of capacity: "+interesectionPxs.get(i).capacity()+"\n");
-				sb.append("  temp_hidden_Pxs["+i+"] vector of capacity: "+tempHiddenPxs.get(i).capacity()+"\n");
-				sb.append("  intersectionCatalogue["+i+"] map of items: "+intersectionCatalogues.get(i).size()+"\n---\n");
+				sb.append("  collisionVoxels["+i+"] store of capacity: "+collisionVoxels.get(i).capacity()+"\n");
+				sb.append("  tempHiddenVoxels["+i+"] store of capacity: "+tempHiddenVoxels.get(i).capacity()+"\n---\n");
 			}
 			return sb.toString();
 		}
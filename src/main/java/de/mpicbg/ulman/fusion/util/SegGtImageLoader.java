@@ -15,7 +15,6 @@ import java.nio.file.Paths;
 import java.nio.file.PathMatcher;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.Collections;
 import java.util.stream.Collectors;
 import org.scijava.log.Logger;
@@ -143,11 +142,11 @@ public class SegGtImageLoader<LT extends IntegerType<LT>>
 		public String  lastLoadedImageName;
 		public Img<LT> lastLoadedImage = null;
 
-		public Map<Double,long[]> calculatedBoxes = null;
+		public LabelBoxTable calculatedBoxes = null;
 		//
 		public void calcBoxes()
 		{
-			calculatedBoxes = AbstractWeightedVotingRoisFusionAlgorithm.findBoxes(
+			calculatedBoxes = AbstractWeightedVotingRoisFusionAlgorithm.findBoxesInParallel(
 					lastLoadedImage,log,"SEG GT");
 		}
 
@@ -0,0 +1,286 @@
+package de.mpicbg.ulman.fusion.util;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sparse per-marker records of the accumulated votes, that is, of what the
+ * weighted voting fusers have summed up for a marker just before they
+ * thresholded it. A record is the marker's (fuse) ROI together with the
+ * non-zero votes in it, each given with its flat offset in the ROI (the
+ * flat iteration order of the ROI). The votes are stored as they were
+ * compared with the threshold, i.e., multiplied with the 'votesScale'.
+ *
+ * The records of one fused image can be saved into (and loaded from) one
+ * file, and threshold() can then produce the thresholded label image for
+ * any threshold without the inputs. Note that only the voting is re-done,
+ * the fail-safe insertions, the collision resolution and the post-processing
+ * of the fusion algorithm are not; voxels voted for more markers are left
+ * empty in the produced image.
+ *
+ * The file layout (gzipped, java.io.DataOutput encoding):
+ * MAGIC, number of dimensions, min and dimensions of the image, votesScale,
+ * number of markers, and per marker: its label, min and max of its ROI,
+ * number of votes, and the votes as pairs of (int) offset and (float) vote.
+ */
+public class VoteCountRecords
+{
+	public static final String MAGIC = "LFNG-VOTES-1";
+	public static final String FILE_SUFFIX = ".votes.gz";
+
+	/** returns the filename of the votes that belong to the image 'imgFile' */
+	public static
+	String filenameFor(final String imgFile)
+	{
+		final int dotPos = imgFile.lastIndexOf('.');
+		final int sepPos = Math.max( imgFile.lastIndexOf('/'), imgFile.lastIndexOf('\\') );
+		return (dotPos > sepPos ? imgFile.substring(0,dotPos) : imgFile) + FILE_SUFFIX;
+	}
+
+	private int dim = 0;
+	private long[] imgMin = new long[0];
+	private long[] imgDims = new long[0];
+	private double votesScale = 1.0;
+
+	//per marker: label, ROI as 2*dim-long-array, index of its first vote
+	private int noOfMarkers = 0;
+	private int[] labels = new int[64];
+	private long[] boxes = new long[0];
+	private int[] firstVotes = new int[65];
+
+	//all votes of all markers, one after another
+	private int noOfVotes = 0;
+	private int[] offsets = new int[1024];
+	private float[] votes = new float[1024];
+
+	/** forgets all records, and prepares for the records of the image 'img' */
+	public void reset(final Interval img, final double votesScale)
+	{
+		dim = img.numDimensions();
+		imgMin = new long[dim];
+		imgDims = new long[dim];
+		img.min(imgMin);
+		img.dimensions(imgDims);
+		this.votesScale = votesScale;
+		if (boxes.length < 2*dim*labels.length) boxes = new long[2*dim*labels.length];
+		noOfMarkers = 0;
+		noOfVotes = 0;
+		firstVotes[0] = 0;
+	}
+
+	/** starts the record of the marker 'label', the next addVote() will be relative to its 'roi' */
+	public void startMarker(final int label, final Interval roi)
+	{
+		long size = 1;
+		for (int d = 0; d < dim; ++d) size *= roi.dimension(d);
+		if (size > Integer.MAX_VALUE)
+			throw new RuntimeException("ROI of marker "+label+" is too large for the votes records.");
+
+		if (noOfMarkers == labels.length)
+		{
+			final int capacity = 2*labels.length;
+			labels = Arrays.copyOf(labels, capacity);
+			boxes = Arrays.copyOf(boxes, 2*dim*capacity);
+			firstVotes = Arrays.copyOf(firstVotes, capacity+1);
+		}
+		labels[noOfMarkers] = label;
+		for (int d = 0; d < dim; ++d) {
+			boxes[2*dim*noOfMarkers +d] = roi.min(d);
+			boxes[2*dim*noOfMarkers +dim +d] = roi.max(d);
+		}
+		++noOfMarkers;
+		firstVotes[noOfMarkers] = noOfVotes;
+	}
+
+	/** adds the 'vote' of the voxel at the flat 'offset' in the ROI of the
+	    lastly started marker, zero votes are not stored */
+	public void addVote(final int offset, final float vote)
+	{
+		if (vote == 0) return;
+		if (noOfMarkers == 0)
+			throw new RuntimeException("Start the marker first with startMarker().");
+
+		if (noOfVotes == offsets.length)
+		{
+			offsets = Arrays.copyOf(offsets, 2*noOfVotes);
+			votes = Arrays.copyOf(votes, 2*noOfVotes);
+		}
+		offsets[noOfVotes] = offset;
+		votes[noOfVotes] = vote;
+		++noOfVotes;
+		firstVotes[noOfMarkers] = noOfVotes;
+	}
+
+	/** returns the number of recorded markers */
+	public int size()
+	{ return noOfMarkers; }
+
+	/** returns the label of the 'm'-th recorded marker */
+	public int labelAt(final int m)
+	{ return labels[m]; }
+
+	/** returns the number of (non-zero) votes of the 'm'-th recorded marker */
+	public int votesAt(final int m)
+	{ return firstVotes[m+1] - firstVotes[m]; }
+
+	/** returns the scale with which the votes (and thus the thresholds) are multiplied */
+	public double getVotesScale()
+	{ return votesScale; }
+
+	/** returns the number of dimensions of the image the records belong to */
+	public int numDimensions()
+	{ return dim; }
+
+	/** fills the 'min' with the min corner of the image the records belong to */
+	public void min(final long[] min)
+	{ System.arraycopy(imgMin,0, min,0, dim); }
+
+	/** fills the 'dims' with the dimensions of the image the records belong to */
+	public void dimensions(final long[] dims)
+	{ System.arraycopy(imgDims,0, dims,0, dim); }
+
+
+	// ------------- thresholding -------------
+	/**
+	 * Writes into the (zeroed) 'outImg', which must cover the image of the
+	 * records, the labels of the markers at voxels whose votes reached the
+	 * 'threshold', voxels reached by more markers are set to zero, and returns
+	 * the number of such (collision) voxels.
+	 */
+	public <T extends IntegerType<T>>
+	long threshold(final double threshold, final RandomAccessibleInterval<T> outImg)
+	{
+		final double scaledThreshold = threshold * votesScale;
+		final RandomAccess<T> ra = outImg.randomAccess();
+		final long[] pos = new long[dim];
+		final long[] roiDims = new long[dim];
+
+		long[] collisions = new long[64];
+		int noOfCollisions = 0;
+
+		for (int m = 0; m < noOfMarkers; ++m)
+		{
+			final int label = labels[m];
+			final int boxOffset = 2*dim*m;
+			for (int d = 0; d < dim; ++d) roiDims[d] = boxes[boxOffset +dim +d] - boxes[boxOffset +d] +1;
+
+			for (int v = firstVotes[m]; v < firstVotes[m+1]; ++v)
+			{
+				if (votes[v] < scaledThreshold) continue;
+
+				long offset = offsets[v];
+				for (int d = 0; d < dim; ++d) {
+					pos[d] = boxes[boxOffset +d] + offset % roiDims[d];
+					offset /= roiDims[d];
+				}
+				ra.setPosition(pos);
+
+				final T px = ra.get();
+				final int prevLabel = px.getInteger();
+				if (prevLabel == 0) px.setInteger(label);
+				else if (prevLabel != label)
+				{
+					if (noOfCollisions == collisions.length) collisions = Arrays.copyOf(collisions, 2*noOfCollisions);
+					long flatPos = 0;
+					for (int d = dim-1; d >= 0; --d) flatPos = flatPos*imgDims[d] + (pos[d]-imgMin[d]);
+					collisions[noOfCollisions++] = flatPos;
+				}
+			}
+		}
+
+		//clear the collisions only now, so that no third marker can claim them
+		for (int c = 0; c < noOfCollisions; ++c)
+		{
+			long flatPos = collisions[c];
+			for (int d = 0; d < dim; ++d) {
+				pos[d] = imgMin[d] + flatPos % imgDims[d];
+				flatPos /= imgDims[d];
+			}
+			ra.setPosition(pos);
+			ra.get().setZero();
+		}
+		return noOfCollisions;
+	}
+
+
+	// ------------- IO -------------
+	public void save(final String file)
+	throws IOException
+	{
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+				new GZIPOutputStream( Files.newOutputStream(Paths.get(file)) ) ) ) )
+		{
+			out.writeUTF(MAGIC);
+			out.writeInt(dim);
+			for (int d = 0; d < dim; ++d) out.writeLong(imgMin[d]);
+			for (int d = 0; d < dim; ++d) out.writeLong(imgDims[d]);
+			out.writeDouble(votesScale);
+
+			out.writeInt(noOfMarkers);
+			for (int m = 0; m < noOfMarkers; ++m)
+			{
+				out.writeInt(labels[m]);
+				for (int d = 0; d < 2*dim; ++d) out.writeLong(boxes[2*dim*m +d]);
+				out.writeInt(votesAt(m));
+				for (int v = firstVotes[m]; v < firstVotes[m+1]; ++v)
+				{
+					out.writeInt(offsets[v]);
+					out.writeFloat(votes[v]);
+				}
+			}
+		}
+	}
+
+	public static
+	VoteCountRecords load(final String file)
+	throws IOException
+	{
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream(
+				new GZIPInputStream( Files.newInputStream(Paths.get(file)) ) ) ) )
+		{
+			if (!MAGIC.equals(in.readUTF()))
+				throw new IOException("File "+file+" is not a votes records file.");
+
+			final VoteCountRecords r = new VoteCountRecords();
+			r.dim = in.readInt();
+			r.imgMin = new long[r.dim];
+			r.imgDims = new long[r.dim];
+			for (int d = 0; d < r.dim; ++d) r.imgMin[d] = in.readLong();
+			for (int d = 0; d < r.dim; ++d) r.imgDims[d] = in.readLong();
+			r.votesScale = in.readDouble();
+
+			final int noOfMarkers = in.readInt();
+			r.labels = new int[Math.max(noOfMarkers,1)];
+			r.boxes = new long[2*r.dim*r.labels.length];
+			r.firstVotes = new int[r.labels.length+1];
+			for (int m = 0; m < noOfMarkers; ++m)
+			{
+				r.labels[m] = in.readInt();
+				for (int d = 0; d < 2*r.dim; ++d) r.boxes[2*r.dim*m +d] = in.readLong();
+				++r.noOfMarkers;
+				r.firstVotes[r.noOfMarkers] = r.noOfVotes;
+
+				final int n = in.readInt();
+				for (int v = 0; v < n; ++v)
+				{
+					final int offset = in.readInt();
+					r.addVote(offset, in.readFloat());
+				}
+			}
+			return r;
+		}
+	}
+}
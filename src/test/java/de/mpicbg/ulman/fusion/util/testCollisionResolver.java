@@ -0,0 +1,263 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the CollisionResolver, serial and split into parts (and resolved
+ * on threads), with the former list-based erosion of the collision area on
+ * random collision areas, the resulting images must be the same.
+ */
+public class testCollisionResolver {
+	static final int INTERSECTION = 65535;
+	static final int NO_OF_LABELS = 12;
+
+	/** one collision area in one image, and the "temporarily hidden" voxels */
+	static class Scene {
+		long[] dims;
+		int[] img;
+		long[] areaOffsets;
+		int[][] areaClaimers;
+		long[] hiddenOffsets;
+		int[] hiddenLabels;
+	}
+
+	public static void main(String[] args) {
+		//NB: daemon threads, so that a failed check is not kept waiting for the pool
+		final ExecutorService threads = Executors.newFixedThreadPool(4, r -> {
+			final Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t; });
+		final Random rnd = new Random(42);
+
+		int noOfScenes = 0;
+		for (int s = 0; s < 300; ++s) {
+			final Scene scene = s % 3 == 0 ? randomScene(rnd, new long[] {40+rnd.nextInt(40), 30+rnd.nextInt(40)})
+			                               : randomScene(rnd, new long[] {20+rnd.nextInt(20), 15+rnd.nextInt(20), 1+rnd.nextInt(8)});
+
+			final int[] expected = scene.img.clone();
+			final int expectedLeft = resolveTheFormerWay(scene, expected);
+
+			final int[] serial = scene.img.clone();
+			final int serialLeft = resolveWithResolver(scene, serial, 1, null);
+			compare(expected,expectedLeft, serial,serialLeft, "serial", s);
+
+			final int[] split = scene.img.clone();
+			final int splitLeft = resolveWithResolver(scene, split, 2+rnd.nextInt(15), threads);
+			compare(expected,expectedLeft, split,splitLeft, "split", s);
+			++noOfScenes;
+		}
+		threads.shutdown();
+
+		//a long thin collision area needs more than the 99 rounds of the first phase
+		final Scene longOne = new Scene();
+		longOne.dims = new long[] {250, 3};
+		longOne.img = new int[250*3];
+		longOne.areaOffsets = new long[248];
+		longOne.areaClaimers = new int[248][];
+		for (int x = 1; x < 249; ++x) {
+			longOne.img[250+x] = INTERSECTION;
+			longOne.areaOffsets[x-1] = 250+x;
+			longOne.areaClaimers[x-1] = new int[] {5};
+		}
+		longOne.img[250] = 5;
+		longOne.hiddenOffsets = new long[0];
+		longOne.hiddenLabels = new int[0];
+		final int[] expected = longOne.img.clone();
+		final int expectedLeft = resolveTheFormerWay(longOne, expected);
+		final int[] serial = longOne.img.clone();
+		compare(expected,expectedLeft, serial,resolveWithResolver(longOne, serial, 1, null), "long serial", -1);
+		if (expectedLeft == 0)
+			throw new RuntimeException("the long collision area should have not been resolved completely");
+
+		System.out.println("All "+noOfScenes+" random collision areas (and the long one) are resolved the same way.");
+	}
+
+	static void compare(final int[] expected, final int expectedLeft,
+	                    final int[] got, final int gotLeft,
+	                    final String what, final int scene) {
+		if (!Arrays.equals(expected, got))
+			throw new RuntimeException(what+" resolver gave different image in the scene "+scene);
+		if (expectedLeft != gotLeft)
+			throw new RuntimeException(what+" resolver left "+gotLeft+" voxels unresolved instead of "
+					+expectedLeft+" in the scene "+scene);
+	}
+
+	static Scene randomScene(final Random rnd, final long[] dims) {
+		final Scene scene = new Scene();
+		scene.dims = dims;
+		final int size = (int)(dims[0] * dims[1] * (dims.length > 2 ? dims[2] : 1));
+
+		//background of patches of labels (and some zeros)
+		scene.img = new int[size];
+		final int patch = 2+rnd.nextInt(6);
+		final int[] patchLabels = new int[size/patch + 1];
+		for (int i = 0; i < patchLabels.length; ++i) patchLabels[i] = rnd.nextInt(4) == 0 ? 0 : 1+rnd.nextInt(NO_OF_LABELS);
+		for (int i = 0; i < size; ++i) scene.img[i] = patchLabels[(int)((i % dims[0]) / patch + (i / dims[0]) % 7)
+		                                                     % patchLabels.length];
+
+		//the collision area as a few random boxes, so that it has more components
+		final boolean[] isArea = new boolean[size];
+		final int noOfBoxes = 1+rnd.nextInt(6);
+		for (int b = 0; b < noOfBoxes; ++b) {
+			final long[] min = new long[3], max = new long[3];
+			for (int d = 0; d < 3; ++d) {
+				final long extent = d < dims.length ? dims[d] : 1;
+				min[d] = rnd.nextInt((int)extent);
+				max[d] = Math.min(extent-1, min[d] + rnd.nextInt(12));
+			}
+			for (long z = min[2]; z <= max[2]; ++z)
+			for (long y = min[1]; y <= max[1]; ++y)
+			for (long x = min[0]; x <= max[0]; ++x)
+				isArea[(int)((z*dims[1] + y)*dims[0] + x)] = true;
+		}
+
+		//the area with its claimers, some voxels carry already some label (as with the TRA markers)
+		final List<Long> offsets = new ArrayList<>();
+		final List<int[]> claimers = new ArrayList<>();
+		for (int i = 0; i < size; ++i) {
+			if (!isArea[i]) continue;
+			final int[] c = new int[1+rnd.nextInt(3)];
+			for (int k = 0; k < c.length; ++k) c[k] = 1+rnd.nextInt(NO_OF_LABELS);
+			offsets.add((long)i);
+			claimers.add(c);
+			scene.img[i] = rnd.nextInt(20) == 0 ? c[0] : INTERSECTION;
+		}
+		scene.areaOffsets = new long[offsets.size()];
+		scene.areaClaimers = new int[offsets.size()][];
+		for (int i = 0; i < offsets.size(); ++i) {
+			scene.areaOffsets[i] = offsets.get(i);
+			scene.areaClaimers[i] = claimers.get(i);
+		}
+
+		//the hidden voxels are out of the area, zero now, and given back after the first phase
+		final List<Long> hidden = new ArrayList<>();
+		for (int i = 0; i < size; ++i)
+			if (!isArea[i] && rnd.nextInt(10) == 0) hidden.add((long)i);
+		scene.hiddenOffsets = new long[hidden.size()];
+		scene.hiddenLabels = new int[hidden.size()];
+		for (int i = 0; i < hidden.size(); ++i) {
+			scene.hiddenOffsets[i] = hidden.get(i);
+			scene.hiddenLabels[i] = 1+rnd.nextInt(NO_OF_LABELS);
+			scene.img[(int)scene.hiddenOffsets[i]] = 0;
+		}
+		return scene;
+	}
+
+	// ------------- the new way -------------
+	static int resolveWithResolver(final Scene scene, final int[] img,
+	                               final int maxParts, final ExecutorService threads) {
+		//claimers are registered in a random order, as the insertions would do it
+		final CollisionVoxels voxels = new CollisionVoxels(16);
+		final Random rnd = new Random(scene.areaOffsets.length);
+		final int[] order = new int[scene.areaOffsets.length];
+		for (int i = 0; i < order.length; ++i) order[i] = i;
+		for (int i = order.length-1; i > 0; --i) {
+			final int j = rnd.nextInt(i+1);
+			final int t = order[i]; order[i] = order[j]; order[j] = t;
+		}
+		for (int i : order)
+			for (int c : scene.areaClaimers[i]) voxels.addClaimer(scene.areaOffsets[i], c);
+		voxels.sortByOffsets();
+
+		final CollisionResolver resolver = resolverOver(img);
+		resolver.reset(voxels, scene.dims);
+		if (maxParts > 1) resolver.splitIntoParts(maxParts, () -> resolverOver(img));
+
+		resolver.resolve(99, threads);
+		for (int i = 0; i < scene.hiddenOffsets.length; ++i)
+			resolver.changeLabel(scene.hiddenOffsets[i], scene.hiddenLabels[i]);
+		resolver.resolve(99, threads);
+
+		voxels.removeColoured();
+		return voxels.size();
+	}
+
+	static CollisionResolver resolverOver(final int[] img) {
+		return new CollisionResolver() {
+			@Override
+			protected int getLabel(final long offset)
+			{ return img[(int)offset]; }
+			@Override
+			protected void setLabel(final long offset, final int label)
+			{ img[(int)offset] = label; }
+		};
+	}
+
+	// ------------- the former way -------------
+	static class PxCoord {
+		int x,y,z;
+		int[] claimers;
+		int color = -1;
+	}
+
+	static final int[][] formerPosDeltas = new int[][] {
+			{-1,-1,-1},{0,-1,-1},{1,-1,-1},  {-1,0,-1},{0,0,-1},{1,0,-1},  {-1,+1,-1},{0,+1,-1},{1,+1,-1},
+			{-1,-1, 0},{0,-1, 0},{1,-1, 0},  {-1,0, 0},         {1,0, 0},  {-1,+1, 0},{0,+1, 0},{1,+1, 0},
+			{-1,-1,+1},{0,-1,+1},{1,-1,+1},  {-1,0,-1},{0,0,+1},{1,0,+1},  {-1,+1,+1},{0,+1,+1},{1,+1,+1} };
+
+	static int resolveTheFormerWay(final Scene scene, final int[] img) {
+		final int[] posMax = new int[3];
+		for (int d = 0; d < scene.dims.length; ++d) posMax[d] = (int)scene.dims[d] -1;
+		final long xLine = scene.dims[0];
+		final long xyPlane = xLine * scene.dims[1];
+
+		//NB: the area offsets are ascending, as the former sort by coordinates did it
+		final List<PxCoord> pxInINTERSECTION = new ArrayList<>();
+		for (int i = 0; i < scene.areaOffsets.length; ++i) {
+			final PxCoord px = new PxCoord();
+			px.z = (int)(scene.areaOffsets[i] / xyPlane);
+			px.y = (int)((scene.areaOffsets[i] % xyPlane) / xLine);
+			px.x = (int)(scene.areaOffsets[i] % xLine);
+			px.claimers = scene.areaClaimers[i];
+			pxInINTERSECTION.add(px);
+		}
+
+		int lastSize = pxInINTERSECTION.size() +1;
+		int safetyCounter = 100;
+		while (pxInINTERSECTION.size() > 0 && pxInINTERSECTION.size() != lastSize && --safetyCounter > 0) {
+			lastSize = pxInINTERSECTION.size();
+			erodeCollisionRegion(pxInINTERSECTION, img, posMax, xLine, xyPlane);
+		}
+
+		for (int i = 0; i < scene.hiddenOffsets.length; ++i)
+			img[(int)scene.hiddenOffsets[i]] = scene.hiddenLabels[i];
+
+		safetyCounter = 100;
+		while (pxInINTERSECTION.size() > 0 && --safetyCounter > 0)
+			erodeCollisionRegion(pxInINTERSECTION, img, posMax, xLine, xyPlane);
+
+		return pxInINTERSECTION.size();
+	}
+
+	static void erodeCollisionRegion(final List<PxCoord> pxInINTERSECTION, final int[] img,
+	                                 final int[] posMax, final long xLine, final long xyPlane) {
+		for (PxCoord px : pxInINTERSECTION) {
+			for (int[] posDelta : formerPosDeltas) {
+				final int x = Math.min( Math.max(px.x + posDelta[0],0) , posMax[0] );
+				final int y = Math.min( Math.max(px.y + posDelta[1],0) , posMax[1] );
+				final int z = Math.min( Math.max(px.z + posDelta[2],0) , posMax[2] );
+				final int surroundingLabel = img[(int)(z*xyPlane + y*xLine + x)];
+				boolean isClaimer = false;
+				for (int c : px.claimers) isClaimer |= c == surroundingLabel;
+				if (isClaimer) {
+					px.color = surroundingLabel;
+					break;
+				}
+			}
+		}
+		final Iterator<PxCoord> pxIt = pxInINTERSECTION.iterator();
+		while (pxIt.hasNext()) {
+			final PxCoord px = pxIt.next();
+			if (px.color > -1) {
+				img[(int)(px.z*xyPlane + px.y*xLine + px.x)] = px.color;
+				pxIt.remove();
+			}
+		}
+	}
+}
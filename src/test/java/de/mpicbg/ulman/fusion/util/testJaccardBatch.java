@@ -0,0 +1,158 @@
+package de.mpicbg.ulman.fusion.util;
+
+import net.celltrackingchallenge.measures.util.Jaccard;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the Jaccard indices from the JaccardBatch with those from the
+ * Jaccard.Jaccard() of the CTC measures on random label images, for the pairs
+ * that are tested linearly (unknown sizes), that are hashed (known sizes, at least
+ * 8 pairs between the same two images) and whose second segment is a LabelMask;
+ * the indices must be bit-identical.
+ */
+public class testJaccardBatch {
+	static final int MAX_LABEL = 12;
+
+	public static void main(String[] args) {
+		final Random rnd = new Random(42);
+
+		int noOfPairs = 0;
+		for (int s = 0; s < 100; ++s) {
+			final long[] dims = s % 2 == 0 ? new long[] {20+rnd.nextInt(40), 20+rnd.nextInt(40)}
+			                               : new long[] {10+rnd.nextInt(20), 10+rnd.nextInt(20), 2+rnd.nextInt(6)};
+			//NB: a cell image every now and then, to test also the sweep with the cursors
+			final boolean useCells = s % 5 == 4;
+			final Img<UnsignedShortType> imgA = randomLabels(rnd, dims, false);
+			final Img<UnsignedShortType> imgB = randomLabels(rnd, dims, useCells);
+			final long[] sizesA = sizesOf(imgA);
+			final long[] sizesB = sizesOf(imgB);
+
+			final JaccardBatch batch = new JaccardBatch();
+			final int a = batch.addImage(imgA);
+			final int b = batch.addImage(imgB);
+
+			//linear: few pairs of unknown sizes
+			final int noOfLinear = 1 + rnd.nextInt(7);
+			final int[] linearLA = new int[noOfLinear], linearLB = new int[noOfLinear], linearP = new int[noOfLinear];
+			for (int i = 0; i < noOfLinear; ++i) {
+				linearLA[i] = 1 + rnd.nextInt(MAX_LABEL);
+				linearLB[i] = 1 + rnd.nextInt(MAX_LABEL);
+				linearP[i] = batch.addPair(a,linearLA[i], b,linearLB[i]);
+			}
+
+			//hashed: all couples of labels with known sizes (and in the opposite direction too)
+			final int[][] hashedP = new int[MAX_LABEL+1][MAX_LABEL+1];
+			final int[][] hashedBackP = new int[MAX_LABEL+1][MAX_LABEL+1];
+			for (int la = 1; la <= MAX_LABEL; ++la)
+				for (int lb = 1; lb <= MAX_LABEL; ++lb) {
+					hashedP[la][lb] = batch.addPair(a,la,sizesA[la], b,lb,sizesB[lb]);
+					hashedBackP[la][lb] = batch.addPair(b,lb,sizesB[lb], a,la,sizesA[la]);
+				}
+
+			//masks: segments of B, over the whole image or over a box that is only around them
+			final int noOfMasked = 1 + rnd.nextInt(6);
+			final int[] maskedLA = new int[noOfMasked], maskedLB = new int[noOfMasked], maskedP = new int[noOfMasked];
+			for (int i = 0; i < noOfMasked; ++i) {
+				maskedLA[i] = 1 + rnd.nextInt(MAX_LABEL);
+				maskedLB[i] = 1 + rnd.nextInt(MAX_LABEL);
+				final long[] min = new long[dims.length], max = new long[dims.length];
+				if (rnd.nextBoolean()) {
+					for (int d = 0; d < dims.length; ++d) max[d] = dims[d]-1;
+				} else if (!boxOf(imgB, maskedLB[i], min,max)) {
+					//not present, any box is fine
+					Arrays.fill(min, 0);
+					Arrays.fill(max, 1);
+				}
+				maskedP[i] = batch.addPair(a,maskedLA[i], LabelMask.of(imgB,maskedLB[i], min,max));
+			}
+
+			batch.compute(imgA);
+
+			for (int i = 0; i < noOfLinear; ++i)
+				check(batch, linearP[i], imgA,linearLA[i], imgB,linearLB[i], "linear", s);
+			for (int la = 1; la <= MAX_LABEL; ++la)
+				for (int lb = 1; lb <= MAX_LABEL; ++lb) {
+					check(batch, hashedP[la][lb], imgA,la, imgB,lb, "hashed", s);
+					check(batch, hashedBackP[la][lb], imgB,lb, imgA,la, "hashed", s);
+				}
+			for (int i = 0; i < noOfMasked; ++i)
+				check(batch, maskedP[i], imgA,maskedLA[i], imgB,maskedLB[i], "masked", s);
+
+			noOfPairs += batch.size();
+		}
+
+		System.out.println("All "+noOfPairs+" Jaccard indices are bit-identical with the CTC measures.");
+	}
+
+	static void check(final JaccardBatch batch, final int p,
+	                  final Img<UnsignedShortType> imgA, final int labelA,
+	                  final Img<UnsignedShortType> imgB, final int labelB,
+	                  final String what, final int sceneNo) {
+		//NB: two empty segments get 0.0 in the batch, the CTC measures are not asked then
+		final double expected = batch.unionAt(p) == 0 ? 0.0 : Jaccard.Jaccard(imgA,labelA, imgB,labelB);
+		final double got = batch.jaccardAt(p);
+		if (Double.doubleToLongBits(got) != Double.doubleToLongBits(expected))
+			throw new RuntimeException(what+" pair of labels "+labelA+" and "+labelB+" in the scene "+sceneNo
+				+": batch says "+got+", Jaccard() says "+expected);
+	}
+
+	/** random boxes of random labels, later ones over the earlier ones */
+	static Img<UnsignedShortType> randomLabels(final Random rnd, final long[] dims, final boolean useCells) {
+		final Img<UnsignedShortType> img = useCells ? new CellImgFactory<>(new UnsignedShortType(), 7).create(dims)
+		                                            : ArrayImgs.unsignedShorts(dims);
+		final int noOfBoxes = 3 + rnd.nextInt(10);
+		final long[] min = new long[dims.length], max = new long[dims.length];
+		final long[] pos = new long[dims.length];
+		for (int i = 0; i < noOfBoxes; ++i) {
+			//NB: some labels are thus never used
+			final int label = 1 + rnd.nextInt(MAX_LABEL);
+			for (int d = 0; d < dims.length; ++d) {
+				min[d] = rnd.nextInt((int)dims[d]);
+				max[d] = Math.min(dims[d]-1, min[d] + rnd.nextInt((int)dims[d]/2 +1));
+			}
+			final Cursor<UnsignedShortType> c = img.localizingCursor();
+			while (c.hasNext()) {
+				c.fwd();
+				c.localize(pos);
+				boolean inside = true;
+				for (int d = 0; d < dims.length; ++d) inside &= pos[d] >= min[d] && pos[d] <= max[d];
+				if (inside && rnd.nextInt(10) > 0) c.get().setInteger(label);
+			}
+		}
+		return img;
+	}
+
+	static long[] sizesOf(final RandomAccessibleInterval<UnsignedShortType> img) {
+		final long[] sizes = new long[MAX_LABEL+1];
+		for (UnsignedShortType px : Views.flatIterable(img)) ++sizes[px.getInteger()];
+		return sizes;
+	}
+
+	/** fills the bounding box of the 'label', returns false if it is not present in the 'img' */
+	static boolean boxOf(final Img<UnsignedShortType> img, final int label, final long[] min, final long[] max) {
+		Arrays.fill(min, Long.MAX_VALUE);
+		Arrays.fill(max, Long.MIN_VALUE);
+		final long[] pos = new long[min.length];
+		boolean found = false;
+		final Cursor<UnsignedShortType> c = img.localizingCursor();
+		while (c.hasNext()) {
+			if (c.next().getInteger() != label) continue;
+			c.localize(pos);
+			for (int d = 0; d < min.length; ++d) {
+				min[d] = Math.min(min[d], pos[d]);
+				max[d] = Math.max(max[d], pos[d]);
+			}
+			found = true;
+		}
+		return found;
+	}
+}
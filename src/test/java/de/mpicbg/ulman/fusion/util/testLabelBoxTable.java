@@ -0,0 +1,93 @@
+package de.mpicbg.ulman.fusion.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class testLabelBoxTable {
+	public static void main(String[] args) {
+		final int dim = 3;
+		final Random rnd = new Random(42);
+
+		//start small to exercise the growing of the table
+		final LabelBoxTable table = new LabelBoxTable(dim, 4);
+		final Map<Integer,long[]> refBoxes = new HashMap<>();
+		final Map<Integer,long[]> refStats = new HashMap<>(); //count, sums of coords
+
+		final long[] pos = new long[dim];
+		for (int i = 0; i < 200000; ++i) {
+			final int label = 1 + rnd.nextInt(5000);
+			for (int d = 0; d < dim; ++d) pos[d] = rnd.nextInt(1000);
+
+			table.extendBox(label, pos);
+
+			long[] box = refBoxes.get(label);
+			if (box == null) {
+				box = new long[2*dim];
+				for (int d = 0; d < dim; ++d) { box[d] = pos[d]; box[d+dim] = pos[d]; }
+				refBoxes.put(label, box);
+			}
+			for (int d = 0; d < dim; ++d) {
+				box[d] = Math.min(box[d], pos[d]);
+				box[d+dim] = Math.max(box[d+dim], pos[d]);
+			}
+
+			final long[] stats = refStats.computeIfAbsent(label, k -> new long[dim+1]);
+			++stats[0];
+			for (int d = 0; d < dim; ++d) stats[d+1] += pos[d];
+		}
+
+		if (table.size() != refBoxes.size())
+			throw new RuntimeException("size mismatch: "+table.size()+" vs. "+refBoxes.size());
+
+		for (Map.Entry<Integer,long[]> e : refBoxes.entrySet()) {
+			final long[] box = table.getBox(e.getKey());
+			if (box == null || !Arrays.equals(box, e.getValue()))
+				throw new RuntimeException("box mismatch for label "+e.getKey());
+
+			final long[] stats = refStats.get(e.getKey());
+			final int idx = table.indexOf(e.getKey());
+			if (table.countAt(idx) != stats[0])
+				throw new RuntimeException("count mismatch for label "+e.getKey());
+			for (int d = 0; d < dim; ++d)
+				if (table.centroidAt(idx,d) != (double)stats[d+1] / (double)stats[0])
+					throw new RuntimeException("centroid mismatch for label "+e.getKey());
+		}
+
+		for (int idx = 0; idx < table.size(); ++idx)
+			if (table.indexOf(table.labelAt(idx)) != idx)
+				throw new RuntimeException("index mismatch at "+idx);
+
+		if (table.contains(0) || table.contains(5001) || table.getBox(-3) != null)
+			throw new RuntimeException("found label that was never added");
+
+		//merging two halves must give the same as the whole
+		final LabelBoxTable a = new LabelBoxTable(dim), b = new LabelBoxTable(dim);
+		for (int idx = 0; idx < table.size(); ++idx)
+			(idx % 2 == 0 ? a : b).addBox(table.labelAt(idx), table.boxAt(idx));
+		a.unionWith(b);
+		for (int idx = 0; idx < table.size(); ++idx)
+			if (!Arrays.equals(a.getBox(table.labelAt(idx)), table.boxAt(idx)))
+				throw new RuntimeException("merged box mismatch at "+idx);
+
+		//statistics of split voxel streams must sum up
+		final LabelBoxTable c = new LabelBoxTable(dim), e = new LabelBoxTable(dim);
+		final Random rnd2 = new Random(7);
+		for (int i = 0; i < 10000; ++i) {
+			for (int d = 0; d < dim; ++d) pos[d] = rnd2.nextInt(100);
+			final int label = 1 + rnd2.nextInt(50);
+			(i < 5000 ? c : e).extendBox(label, pos);
+			table.extendBox(-label, pos); //NB: re-use the big table with "new" labels
+		}
+		c.unionWith(e);
+		for (int idx = 0; idx < c.size(); ++idx) {
+			final int ti = table.indexOf(-c.labelAt(idx));
+			if (c.countAt(idx) != table.countAt(ti) || c.centroidAt(idx,1) != table.centroidAt(ti,1)
+			    || !Arrays.equals(c.boxAt(idx), table.boxAt(ti)))
+				throw new RuntimeException("merged statistics mismatch at "+idx);
+		}
+
+		System.out.println("All "+table.size()+" boxes are correct.");
+	}
+}
@@ -0,0 +1,203 @@
+package de.mpicbg.ulman.fusion.util;
+
+import de.mpicbg.ulman.fusion.ng.extract.MajorityOverlapBasedLabelExtractor;
+import de.mpicbg.ulman.fusion.ng.fuse.SIMPLELabelFuser;
+import de.mpicbg.ulman.fusion.util.loggers.NoOutputLogger;
+import net.celltrackingchallenge.measures.util.Jaccard;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.operators.SetZero;
+import net.imglib2.view.Views;
+
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Compares the SIMPLE fusion over the voting patterns (which is used with the
+ * MajorityOverlapBasedLabelExtractor and the ArrayImgs) with the former iterative
+ * SIMPLE fusion (that re-fused the candidate and re-computed the Jaccards in every
+ * iteration) on random inputs, for the DOUBLE, FLOAT and integer voxel types of
+ * the fused image; the fused segments and the pruned inputs must be the same.
+ */
+public class testSIMPLELabelFuser {
+	public static void main(String[] args) {
+		final Random rnd = new Random(42);
+
+		int noOfScenes = 0;
+		for (int s = 0; s < 150; ++s) {
+			final long[] dims = s % 2 == 0 ? new long[] {20+rnd.nextInt(30), 20+rnd.nextInt(30)}
+			                               : new long[] {15+rnd.nextInt(15), 15+rnd.nextInt(15), 2+rnd.nextInt(5)};
+			final Scene scene = randomScene(rnd, dims);
+
+			compareFor(new DoubleType(), scene, "DOUBLE", s);
+			compareFor(new FloatType(), scene, "FLOAT", s);
+			compareFor(new UnsignedShortType(), scene, "USHORT", s);
+			++noOfScenes;
+		}
+
+		System.out.println("All "+noOfScenes+" random scenes are fused the same way, in all three voxel types.");
+	}
+
+	/** the inputs with their labels and weights, and the settings of the fuser */
+	static class Scene {
+		long[] dims;
+		Vector<RandomAccessibleInterval<UnsignedShortType>> inImgs = new Vector<>();
+		Vector<Float> inLabels = new Vector<>();
+		Vector<Double> inWeights = new Vector<>();
+		int maxIters, noOfNoUpdateIters;
+		double initialQualityThreshold, stepDownInQualityThreshold, minimalQualityThreshold;
+	}
+
+	static Scene randomScene(final Random rnd, final long[] dims) {
+		final Scene scene = new Scene();
+		scene.dims = dims;
+
+		//the "true" segment is a box, the inputs are its shifted and noisy versions
+		final long[] min = new long[dims.length], max = new long[dims.length];
+		for (int d = 0; d < dims.length; ++d) {
+			min[d] = rnd.nextInt((int)dims[d]/2);
+			max[d] = Math.min(dims[d]-1, min[d] + 2 + rnd.nextInt((int)dims[d]/2));
+		}
+
+		final int noOfInputs = 2 + rnd.nextInt(8);
+		final long[] pos = new long[dims.length];
+		for (int i = 0; i < noOfInputs; ++i) {
+			final Img<UnsignedShortType> img = ArrayImgs.unsignedShorts(dims);
+			final int label = 1 + rnd.nextInt(5);
+			//some inputs are way off, to have something to prune
+			final int maxShift = rnd.nextInt(4) == 0 ? 8 : 2;
+			final long[] shift = new long[dims.length];
+			for (int d = 0; d < dims.length; ++d) shift[d] = rnd.nextInt(2*maxShift+1) - maxShift;
+			final int noise = rnd.nextInt(15);
+
+			final Cursor<UnsignedShortType> c = img.localizingCursor();
+			while (c.hasNext()) {
+				c.fwd();
+				c.localize(pos);
+				boolean inside = true;
+				for (int d = 0; d < dims.length; ++d)
+					inside &= pos[d] >= min[d]+shift[d] && pos[d] <= max[d]+shift[d];
+				if (rnd.nextInt(100) < noise) inside = !inside;
+				//other labels around, some of them of the same value as in other inputs
+				c.get().setInteger( inside ? label : (rnd.nextInt(10) == 0 ? 1+rnd.nextInt(5) : 0) );
+			}
+
+			scene.inImgs.add(img);
+			scene.inLabels.add((float)label);
+			scene.inWeights.add(rnd.nextInt(3) == 0 ? 1.0 + rnd.nextInt(3) : 0.1 + 0.9*rnd.nextDouble());
+		}
+
+		scene.maxIters = 2 + rnd.nextInt(5);
+		scene.noOfNoUpdateIters = 1 + rnd.nextInt(3);
+		scene.initialQualityThreshold = 0.5 + 0.3*rnd.nextDouble();
+		scene.stepDownInQualityThreshold = 0.2*rnd.nextDouble();
+		scene.minimalQualityThreshold = 0.1 + 0.3*rnd.nextDouble();
+		return scene;
+	}
+
+	static <ET extends RealType<ET> & NativeType<ET>>
+	void compareFor(final ET type, final Scene scene, final String what, final int sceneNo) {
+		final SIMPLELabelFuser<UnsignedShortType,ET> fuser = new SIMPLELabelFuser<>();
+		fuser.useNowThisLog(new NoOutputLogger());
+		fuser.maxIters = scene.maxIters;
+		fuser.noOfNoUpdateIters = scene.noOfNoUpdateIters;
+		fuser.initialQualityThreshold = scene.initialQualityThreshold;
+		fuser.stepDownInQualityThreshold = scene.stepDownInQualityThreshold;
+		fuser.minimalQualityThreshold = scene.minimalQualityThreshold;
+
+		//NB: the fusers prune the inputs by setting them to null, hence the own copies
+		final Vector<RandomAccessibleInterval<UnsignedShortType>> patternInImgs = new Vector<>(scene.inImgs);
+		final Img<ET> patternOut = new ArrayImgFactory<>(type).create(scene.dims);
+		fuser.fuseMatchingLabels(patternInImgs, scene.inLabels,
+				new MajorityOverlapBasedLabelExtractor<UnsignedShortType,UnsignedShortType,ET>(),
+				scene.inWeights, patternOut);
+
+		final Vector<RandomAccessibleInterval<UnsignedShortType>> formerInImgs = new Vector<>(scene.inImgs);
+		final Img<ET> formerOut = new ArrayImgFactory<>(type).create(scene.dims);
+		fuseTheFormerWay(fuser, formerInImgs, scene.inLabels, scene.inWeights, formerOut);
+
+		final Cursor<ET> pc = patternOut.cursor();
+		final Cursor<ET> fc = formerOut.cursor();
+		while (pc.hasNext())
+			if (pc.next().getRealDouble() != fc.next().getRealDouble())
+				throw new RuntimeException(what+": different fused segment in the scene "+sceneNo);
+
+		for (int i = 0; i < patternInImgs.size(); ++i)
+			if ((patternInImgs.get(i) == null) != (formerInImgs.get(i) == null))
+				throw new RuntimeException(what+": input "+i+" pruned differently in the scene "+sceneNo);
+	}
+
+	// ------------- the former way -------------
+	static <ET extends RealType<ET>>
+	void fuseTheFormerWay(final SIMPLELabelFuser<UnsignedShortType,ET> settings,
+	                      final Vector<RandomAccessibleInterval<UnsignedShortType>> inImgs,
+	                      final Vector<Float> inLabels,
+	                      final Vector<Double> inWeights,
+	                      final RandomAccessibleInterval<ET> outImg) {
+		//initial candidate segment
+		fuseMajority(inImgs,inLabels, inWeights, getMajorityThreshold(inImgs,inWeights), outImg);
+
+		//own copy of the weights
+		final Vector<Double> myWeights = new Vector<>(inWeights);
+		double currentQualityThreshold = settings.initialQualityThreshold;
+		int iterationCnt = 1;
+
+		while (iterationCnt < settings.maxIters) {
+			//update weights of the inputs that still pass the quality threshold
+			for (int i=0; i < inImgs.size(); ++i) {
+				if (inImgs.get(i) == null) continue;
+
+				final double newWeight = Jaccard.Jaccard(inImgs.get(i),inLabels.get(i), outImg,1.0);
+				myWeights.set(i,newWeight);
+
+				if (iterationCnt >= settings.noOfNoUpdateIters && newWeight < currentQualityThreshold) inImgs.set(i,null);
+			}
+
+			//create a new candidate
+			LoopBuilder.setImages(outImg).forEachPixel(SetZero::setZero);
+			fuseMajority(inImgs,inLabels, myWeights, getMajorityThreshold(inImgs,myWeights), outImg);
+
+			//update the quality threshold
+			++iterationCnt;
+			if (iterationCnt > settings.noOfNoUpdateIters) currentQualityThreshold = Math.max(
+				currentQualityThreshold - settings.stepDownInQualityThreshold*(iterationCnt-settings.noOfNoUpdateIters),
+				settings.minimalQualityThreshold );
+		}
+	}
+
+	/** the former WeightedVotingLabelFuser.fuseMatchingLabels() */
+	static <ET extends RealType<ET>>
+	void fuseMajority(final Vector<RandomAccessibleInterval<UnsignedShortType>> inImgs,
+	                  final Vector<Float> inLabels,
+	                  final Vector<Double> inWeights,
+	                  final double minAcceptableWeight,
+	                  final RandomAccessibleInterval<ET> outImg) {
+		final ET ONE = Views.flatIterable(outImg).firstElement().createVariable();
+		for (int i=0; i < inImgs.size(); ++i) {
+			if (inImgs.get(i) == null) continue;
+			ONE.setReal(inWeights.get(i));
+			final float wantedLabel = inLabels.get(i);
+			LoopBuilder.setImages(inImgs.get(i),outImg).forEachPixel( (in,o) -> { if (in.getRealFloat() == wantedLabel) o.add(ONE); } );
+		}
+		LoopBuilder.setImages(outImg).forEachPixel(
+			(a) -> a.setReal( a.getRealFloat() >= minAcceptableWeight ? 1 : 0 ) );
+	}
+
+	static
+	double getMajorityThreshold(final Vector<RandomAccessibleInterval<UnsignedShortType>> inImgs,
+	                            final Vector<Double> inWeights) {
+		double sum = 0.0;
+		for (int i=0; i < inImgs.size(); ++i)
+			if (inImgs.get(i) != null) sum += inWeights.get(i);
+		return (0.5*sum + 0.0001);
+	}
+}